@@ -0,0 +1,23 @@
+-- Schema version 1: the tables and indexes for the JPA entities in com.test.service.jpa, for Derby
+-- Matches what EclipseLink generates with the dev profile. With the prod profile nothing is generated,
+-- so apply this (and any later versions, in order) before deploying, for example with Derby ij:
+--   ij> CONNECT 'jdbc:derby:<database>';
+--   ij> RUN 'V1__create_tables.sql';
+-- Never edit a version once it has been applied: add a new file with the next version number instead
+
+-- All the entities share a single table, DTYPE records the sub-class
+CREATE TABLE DBENTITY (
+	ID INTEGER GENERATED BY DEFAULT AS IDENTITY NOT NULL,
+	DTYPE VARCHAR(31),
+	DESCRIPTION VARCHAR(255),
+	NAME VARCHAR(255),
+	CONTENTS BLOB(64000),
+	PARENTID INTEGER,
+	PRIMARY KEY (ID)
+);
+
+ALTER TABLE DBENTITY ADD CONSTRAINT FK_DBENTITY_PARENTID FOREIGN KEY (PARENTID) REFERENCES DBENTITY (ID);
+
+-- Lookups by name, and the minions of a parent in name order
+CREATE INDEX DBENTITY_NAME ON DBENTITY (NAME);
+CREATE INDEX DBENTITY_PARENT_NAME ON DBENTITY (PARENTID, NAME);
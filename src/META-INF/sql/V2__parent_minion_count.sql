@@ -0,0 +1,8 @@
+-- Schema version 2: the minion count and time of the last minion change, maintained on each parent
+-- (ParentEntity.minionCount and lastMinionChange) so that parent listings don't have to count the minions.
+-- Apply after V1__create_tables.sql. The columns are null for minions
+ALTER TABLE DBENTITY ADD COLUMN MINIONCOUNT BIGINT;
+ALTER TABLE DBENTITY ADD COLUMN LASTMINIONCHANGE TIMESTAMP;
+
+-- Count the minions the parents already have. POST /1.0/Admin/repair/minionCounts does the same for a running service
+UPDATE DBENTITY P SET MINIONCOUNT = (SELECT COUNT(*) FROM DBENTITY M WHERE M.PARENTID = P.ID) WHERE P.DTYPE = 'Parent';
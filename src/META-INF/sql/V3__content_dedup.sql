@@ -0,0 +1,12 @@
+-- Schema version 3: minion contents shared between minions (ContentEntity), for the contents/dedup setting.
+-- Apply after V2__parent_minion_count.sql. Existing minions keep their own contents, and CONTENTSHASH stays null for them
+
+-- Each distinct contents list once, under the hex SHA-256 of its entries, with the number of minions referring to it
+CREATE TABLE CONTENT (
+	HASH VARCHAR(64) NOT NULL,
+	DATA BLOB(64000),
+	REFCOUNT BIGINT NOT NULL,
+	PRIMARY KEY (HASH)
+);
+
+ALTER TABLE DBENTITY ADD COLUMN CONTENTSHASH VARCHAR(64);
@@ -24,6 +24,9 @@ import com.test.service.model.Element;
  */
 public class Builder<D extends DBEntity, E extends Element> {
 	
+	// The message never changes, so this is thrown as it is
+	private static final ServiceException NAME_MISSING = new ServiceException.BadRequest("Must provide the name");
+	
 	/**
 	 * Default constructor
 	 */
@@ -32,16 +35,16 @@ public class Builder<D extends DBEntity, E extends Element> {
 
 	/**
 	 * Populate a database entity based on the incoming JAX-B element.
-	 * Some validation provided, which can produce IllegalArgumentException
+	 * Some validation provided, which can produce ServiceException.BadRequest
 	 * @param (blank) entity to be populated
 	 * @param element with incoming (user) data
 	 * @return populated entity
-	 * @throws IllegalArgumentException if there are validation failures
+	 * @throws ServiceException.BadRequest if there are validation failures
 	 */
-	public D populateEntityFromElement(D entity, E element) throws IllegalArgumentException {
+	public D populateEntityFromElement(D entity, E element) throws ServiceException {
 		
 		if (element.getName() == null) {
-			throw new IllegalArgumentException("Must provide the name");
+			throw NAME_MISSING;
 		}
 		
 		entity.setDescription(element.getDescription());
@@ -0,0 +1,159 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import com.test.service.jpa.DBEntity;
+
+/**
+ * Deletes rows of shared minion contents which nothing refers to. ContentDedup inserts new contents and commits
+ * them before the minion that refers to them, so a write which then rolls back leaves its row behind with no
+ * references. They are harmless, as the next writer of the same contents uses them, but take up space.
+ * Runs every contents/cleanupIntervalMinutes while deduplication is enabled (0 never runs it), and on demand
+ * with POST /Admin/repair/unusedContents
+ */
+public final class ContentCleanup {
+
+	// JNDI name of the container's default managed thread factory, whose threads have the java:comp context
+	private static final String THREAD_FACTORY_JNDI_NAME = "java:comp/DefaultManagedThreadFactory";
+
+	private static final long INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(Settings.getLong("contents/cleanupIntervalMinutes", 60));
+
+	private static final AtomicLong RUNS = new AtomicLong();
+	private static final AtomicLong REMOVED = new AtomicLong();
+	private static final AtomicLong FAILED = new AtomicLong();
+
+	private static volatile Thread cleaner;
+	private static volatile boolean stopping;
+
+	static {
+		Metrics.register("contents.cleanup", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("running", cleaner != null);
+				values.put("runs", RUNS.get());
+				values.put("removed", REMOVED.get());
+				values.put("failed", FAILED.get());
+			}
+		});
+	}
+
+	private ContentCleanup() {
+	}
+
+	/**
+	 * Start the periodic cleanup, if deduplication is enabled and there is an interval
+	 */
+	public static synchronized void start() {
+		if (cleaner != null || !ContentDedup.isEnabled() || INTERVAL_NANOS <= 0) {
+			return;
+		}
+
+		ThreadFactory threads;
+		try {
+			threads = (ThreadFactory) new InitialContext().lookup(THREAD_FACTORY_JNDI_NAME);
+		}
+		catch (NamingException ne) {
+			System.out.println("WARNING no managed thread factory, unused contents are only removed on demand: " + ne.getMessage());
+			return;
+		}
+
+		stopping = false;
+		cleaner = threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				clean();
+			}
+		});
+		cleaner.setName("Content cleanup");
+		cleaner.start();
+	}
+
+	/**
+	 * Stop the periodic cleanup: a run in progress finishes in the background
+	 */
+	public static synchronized void stop() {
+		Thread thread = cleaner;
+
+		if (thread == null) {
+			return;
+		}
+
+		stopping = true;
+		LockSupport.unpark(thread);
+		cleaner = null;
+	}
+
+	/**
+	 * Delete the unused rows now, on every shard
+	 * @return the number of rows deleted
+	 */
+	public static int run() {
+		List<Integer> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<Integer>() {
+			@Override
+			public Integer run(int shard) {
+				return new DBUtility<DBEntity>(shard).removeUnusedContents();
+			}
+		});
+
+		int removed = 0;
+		for (Integer count: perShard) {
+			removed += count;
+		}
+
+		RUNS.incrementAndGet();
+		REMOVED.addAndGet(removed);
+
+		return removed;
+	}
+
+	/**
+	 * The cleaner thread: wait out the interval, then clean up, until stopped
+	 */
+	private static void clean() {
+		long next = System.nanoTime() + INTERVAL_NANOS;
+
+		while (!stopping) {
+			long wait = next - System.nanoTime();
+
+			if (wait > 0) {
+				// Woken early by stop(), or spuriously: check again
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+
+			try {
+				run();
+			}
+			// Anything else would end the thread: try again next time
+			catch (Throwable t) {
+				FAILED.incrementAndGet();
+				System.out.println("ERROR failed to remove unused contents, will retry: " + t);
+			}
+			next = System.nanoTime() + INTERVAL_NANOS;
+		}
+	}
+}
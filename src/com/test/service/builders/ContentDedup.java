@@ -0,0 +1,435 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+import com.test.service.jpa.ContentEntity;
+
+/**
+ * Deduplication of minion contents: when enabled, each distinct contents list is written once to the shared
+ * content table (ContentEntity) under its SHA-256, and minions only hold the hash. DBUtility keeps the
+ * reference counts as minions are written and deleted.
+ * The setting only changes how contents are written: contents are read from wherever they are, so existing
+ * minions keep working when it is switched either way.
+ * Recently used contents are cached by hash: the contents of a hash never change, so the cache is never stale.
+ * Every minion read with the same cached contents gets the same list, which can't be modified: copy it first to
+ * change the contents.
+ * New rows are inserted through a persistence unit of their own (TestServiceContentPU), committed before the
+ * minion that refers to them: a row left with no references, by a write which then rolled back, is deleted by
+ * ContentCleanup.
+ * Off by default: enable with the contents/dedup setting
+ */
+public final class ContentDedup {
+
+	/**
+	 * JNDI name of the persistence unit new contents are inserted through: must match the persistence-unit-ref-name
+	 * in web.xml (with java:comp/env prefix added for Liberty)
+	 */
+	public static final String JNDI_NAME = "java:comp/env/TestServiceContentPU";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final boolean ENABLED = Settings.getBoolean("contents/dedup", false);
+	// The most contents lists held by the cache
+	private static final int CACHE_ENTRIES = Math.max(0, Settings.getInt("contents/cacheEntries", 1000));
+
+	// Least recently used contents are dropped first
+	private static final Map<String, ArrayList<String>> CACHE = new LinkedHashMap<String, ArrayList<String>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ArrayList<String>> eldest) {
+			return size() > CACHE_ENTRIES;
+		}
+	};
+
+	// Factories for the content persistence unit of each shard: container-managed, so they are shared and never closed here
+	private static final AtomicReferenceArray<EntityManagerFactory> FACTORIES = new AtomicReferenceArray<EntityManagerFactory>(ShardRouter.count());
+	// Set for shards where the lookup failed, so that we don't retry (and log) it on every insert
+	private static final AtomicIntegerArray UNAVAILABLE = new AtomicIntegerArray(ShardRouter.count());
+
+	private static final AtomicLong STORED = new AtomicLong();
+	private static final AtomicLong SHARED = new AtomicLong();
+	private static final AtomicLong RELEASED = new AtomicLong();
+	private static final AtomicLong CACHE_HITS = new AtomicLong();
+	private static final AtomicLong CACHE_MISSES = new AtomicLong();
+
+	static {
+		Metrics.register("contents", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("dedup", ENABLED);
+				values.put("stored", STORED.get());
+				values.put("shared", SHARED.get());
+				values.put("released", RELEASED.get());
+				values.put("cache.hits", CACHE_HITS.get());
+				values.put("cache.misses", CACHE_MISSES.get());
+				synchronized (CACHE) {
+					values.put("cache.entries", CACHE.size());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Contents shared by every minion that has them, so any attempt to change them fails.
+	 * An ArrayList, as contents are everywhere else, and serialized as a plain one
+	 */
+	private static final class SharedContents extends ArrayList<String> {
+		private static final long serialVersionUID = 1L;
+
+		SharedContents(Collection<String> contents) {
+			super(contents);
+		}
+
+		@Override
+		public boolean add(String e) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void add(int index, String element) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends String> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean addAll(int index, Collection<? extends String> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String set(int index, String element) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String remove(int index) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void clear() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return listIterator(0);
+		}
+
+		@Override
+		public ListIterator<String> listIterator() {
+			return listIterator(0);
+		}
+
+		@Override
+		public ListIterator<String> listIterator(int index) {
+			final ListIterator<String> iterator = super.listIterator(index);
+
+			return new ListIterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return iterator.next();
+				}
+
+				@Override
+				public boolean hasPrevious() {
+					return iterator.hasPrevious();
+				}
+
+				@Override
+				public String previous() {
+					return iterator.previous();
+				}
+
+				@Override
+				public int nextIndex() {
+					return iterator.nextIndex();
+				}
+
+				@Override
+				public int previousIndex() {
+					return iterator.previousIndex();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void set(String e) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void add(String e) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public List<String> subList(int fromIndex, int toIndex) {
+			return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+		}
+
+		/**
+		 * Serialize as a plain ArrayList, so that contents written from a shared list read back anywhere
+		 * @return a modifiable copy
+		 */
+		private Object writeReplace() {
+			return new ArrayList<String>(this);
+		}
+	}
+
+	private ContentDedup() {
+	}
+
+	/**
+	 * Check whether new contents are written to the shared table
+	 * @return true if deduplication is enabled
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Hash a contents list: the entries are length-prefixed, so no two different lists have the same input
+	 * @param contents the list, whose entries may be null
+	 * @return hex SHA-256
+	 */
+	static String hash(List<String> contents) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(nsae);
+		}
+
+		for (String content: contents) {
+			byte[] bytes = content == null ? new byte[0] : content.getBytes(UTF_8);
+			int length = content == null ? -1 : bytes.length;
+
+			digest.update(new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+			digest.update(bytes);
+		}
+
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Get the contents of a minion, from the minion itself or from the shared table
+	 * @param em entity manager for the minion's shard, used if the shared contents are not cached
+	 * @param hash the minion's contents hash, null if it holds its own contents
+	 * @param inline the minion's own contents
+	 * @return the shared contents, which can't be modified, or the minion's own
+	 */
+	static ArrayList<String> resolve(EntityManager em, String hash, ArrayList<String> inline) {
+		if (hash == null) {
+			return inline;
+		}
+
+		ArrayList<String> contents;
+		synchronized (CACHE) {
+			contents = CACHE.get(hash);
+		}
+
+		if (contents != null) {
+			CACHE_HITS.incrementAndGet();
+		}
+		else {
+			CACHE_MISSES.incrementAndGet();
+
+			ContentEntity content = em.find(ContentEntity.class, hash);
+			if (content == null) {
+				System.out.println("ERROR minion contents " + hash + " are not in the content table");
+				return null;
+			}
+
+			contents = cache(hash, content.getData());
+		}
+
+		return contents;
+	}
+
+	/**
+	 * Insert a row of shared contents with no references to it, committed straight away in a resource-local
+	 * transaction of its own. Two writers storing the same new contents can then both insert it, and the loser
+	 * fails on the duplicate key without failing the JTA transaction it is part of: both go on to count themselves
+	 * against the row (see DBUtility.storeContents())
+	 * @param shard index of the shard
+	 * @param hash hash of the contents
+	 * @param contents the contents
+	 * @return true if the row was inserted or may already be there, false if the content persistence unit is
+	 * not available
+	 */
+	static boolean insert(int shard, String hash, ArrayList<String> contents) {
+		EntityManagerFactory factory = getFactory(shard);
+
+		if (factory == null) {
+			return false;
+		}
+
+		EntityManager local = factory.createEntityManager();
+		EntityTransaction tran = local.getTransaction();
+
+		try {
+			tran.begin();
+			local.persist(new ContentEntity(hash, contents, 0));
+			tran.commit();
+		}
+		catch (PersistenceException pe) {
+			// Most likely the duplicate key: if not, the caller finds no row and tries again
+			if (tran.isActive()) {
+				tran.rollback();
+			}
+		}
+		finally {
+			local.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Look up the content persistence unit of a shard, once
+	 * @param shard index of the shard
+	 * @return the factory, or null if the lookup failed
+	 */
+	private static EntityManagerFactory getFactory(int shard) {
+		EntityManagerFactory factory = FACTORIES.get(shard);
+
+		if (factory == null && UNAVAILABLE.get(shard) == 0) {
+			try {
+				factory = (EntityManagerFactory) new InitialContext().lookup(shard == 0 ? JNDI_NAME : JNDI_NAME + shard);
+				FACTORIES.set(shard, factory);
+			}
+			catch (NamingException ne) {
+				UNAVAILABLE.set(shard, 1);
+				System.out.println("WARNING content persistence unit not available, inserting contents in the JTA transaction: " + ne.getMessage());
+			}
+		}
+
+		return factory;
+	}
+
+	/**
+	 * Record contents written to the shared table, and cache them: they are likely to be read straight back
+	 * @param hash of the contents
+	 * @param contents the contents: the cache keeps a copy
+	 * @param shared true if the table already had them, false if a new row was written
+	 */
+	static void stored(String hash, ArrayList<String> contents, boolean shared) {
+		(shared ? SHARED : STORED).incrementAndGet();
+		cache(hash, contents);
+	}
+
+	/**
+	 * Record references to shared contents dropped
+	 * @param count the number of references
+	 */
+	static void released(long count) {
+		RELEASED.addAndGet(count);
+	}
+
+	/**
+	 * Cache contents as a shared list, unless they are cached already
+	 * @param hash of the contents
+	 * @param contents the contents
+	 * @return the shared list, or null if there are no contents
+	 */
+	private static ArrayList<String> cache(String hash, ArrayList<String> contents) {
+		if (contents == null) {
+			return null;
+		}
+
+		if (CACHE_ENTRIES == 0) {
+			return new SharedContents(contents);
+		}
+
+		synchronized (CACHE) {
+			ArrayList<String> shared = CACHE.get(hash);
+			if (shared == null) {
+				shared = new SharedContents(contents);
+				CACHE.put(hash, shared);
+			}
+			return shared;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minion contents for ReadReplica, packed as UTF-8: one byte array for each minion, holding the number of strings
+ * and then the length and bytes of each, with the numbers as varints.
+ * On the heap, each minion has its own array. Off the heap, the packed contents are appended to direct buffers
+ * ("pages") and each minion keeps the page and offset: replaced contents are left behind as garbage until the
+ * store is rebuilt, which the metrics report.
+ * Not thread-safe: ReadReplica guards it with its lock
+ */
+final class ContentStore {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// Size of each direct buffer: contents bigger than this get a page of their own
+	private static final int PAGE_SIZE = 16 * 1024 * 1024;
+
+	private final boolean offHeap;
+
+	// On the heap: the packed contents by minion id, null for none
+	private byte[][] packed = new byte[1024][];
+
+	// Off the heap: the pages, and page index (high int) and offset (low int) by minion id, -1 for none
+	private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+	private long[] locations = new long[0];
+	private int[] lengths = new int[0];
+
+	// Bytes of contents held, and (off the heap) bytes left behind by replaced contents
+	private long live;
+	private long garbage;
+
+	/**
+	 * Constructor
+	 * @param offHeap true to keep the contents in direct buffers
+	 */
+	ContentStore(boolean offHeap) {
+		this.offHeap = offHeap;
+		if (offHeap) {
+			packed = null;
+			locations = new long[1024];
+			lengths = new int[1024];
+			Arrays.fill(locations, -1);
+		}
+	}
+
+	/**
+	 * Set the contents of a minion
+	 * @param id of the minion
+	 * @param contents the contents, or null for none
+	 */
+	void put(int id, List<String> contents) {
+		remove(id);
+
+		if (contents == null) {
+			return;
+		}
+
+		byte[] data = pack(contents);
+		live += data.length;
+
+		if (!offHeap) {
+			ensureCapacity(id);
+			packed[id] = data;
+			return;
+		}
+
+		ensureCapacity(id);
+		ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+		if (page == null || page.remaining() < data.length) {
+			page = ByteBuffer.allocateDirect(Math.max(PAGE_SIZE, data.length));
+			pages.add(page);
+		}
+
+		locations[id] = ((long) (pages.size() - 1) << 32) | page.position();
+		lengths[id] = data.length;
+		page.put(data);
+	}
+
+	/**
+	 * Get the contents of a minion
+	 * @param id of the minion
+	 * @return a new list of the contents, or null if there are none
+	 */
+	ArrayList<String> get(int id) {
+		byte[] data;
+
+		if (!offHeap) {
+			if (id >= packed.length || packed[id] == null) {
+				return null;
+			}
+			data = packed[id];
+		}
+		else {
+			if (id >= locations.length || locations[id] < 0) {
+				return null;
+			}
+			// Read through a duplicate, so that concurrent readers don't share a position
+			ByteBuffer page = pages.get((int) (locations[id] >>> 32)).duplicate();
+			page.position((int) locations[id]);
+			data = new byte[lengths[id]];
+			page.get(data);
+		}
+
+		return unpack(data);
+	}
+
+	/**
+	 * Drop the contents of a minion
+	 * @param id of the minion
+	 */
+	void remove(int id) {
+		if (!offHeap) {
+			if (id < packed.length && packed[id] != null) {
+				live -= packed[id].length;
+				packed[id] = null;
+			}
+		}
+		else if (id < locations.length && locations[id] >= 0) {
+			live -= lengths[id];
+			garbage += lengths[id];
+			locations[id] = -1;
+		}
+	}
+
+	/**
+	 * Check whether the contents are held off the heap
+	 * @return true for direct buffers
+	 */
+	boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Get the bytes of contents held
+	 * @return the size of the packed contents
+	 */
+	long getBytes() {
+		return live;
+	}
+
+	/**
+	 * Get the bytes left behind in the pages by replaced contents
+	 * @return the garbage, always 0 on the heap
+	 */
+	long getGarbage() {
+		return garbage;
+	}
+
+	/**
+	 * Grow the arrays indexed by minion id
+	 * @param id which must fit
+	 */
+	private void ensureCapacity(int id) {
+		if (!offHeap) {
+			if (id >= packed.length) {
+				packed = Arrays.copyOf(packed, Math.max(packed.length * 2, id + 1));
+			}
+		}
+		else if (id >= locations.length) {
+			int oldLength = locations.length;
+			locations = Arrays.copyOf(locations, Math.max(oldLength * 2, id + 1));
+			lengths = Arrays.copyOf(lengths, locations.length);
+			Arrays.fill(locations, oldLength, locations.length, -1);
+		}
+	}
+
+	/**
+	 * Pack a list of strings
+	 * @param contents the strings, none of which may be null
+	 * @return the packed bytes
+	 */
+	private static byte[] pack(List<String> contents) {
+		byte[][] encoded = new byte[contents.size()][];
+		int length = varintLength(encoded.length);
+
+		for (int i = 0; i < encoded.length; i++) {
+			String content = contents.get(i);
+			encoded[i] = (content == null ? "" : content).getBytes(UTF_8);
+			length += varintLength(encoded[i].length) + encoded[i].length;
+		}
+
+		byte[] data = new byte[length];
+		int position = writeVarint(data, 0, encoded.length);
+
+		for (byte[] content: encoded) {
+			position = writeVarint(data, position, content.length);
+			System.arraycopy(content, 0, data, position, content.length);
+			position += content.length;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Unpack a list of strings
+	 * @param data the packed bytes
+	 * @return the strings
+	 */
+	private static ArrayList<String> unpack(byte[] data) {
+		int[] position = new int[1];
+		int count = readVarint(data, position);
+		ArrayList<String> contents = new ArrayList<String>(count);
+
+		for (int i = 0; i < count; i++) {
+			int length = readVarint(data, position);
+			contents.add(new String(data, position[0], length, UTF_8));
+			position[0] += length;
+		}
+
+		return contents;
+	}
+
+	private static int varintLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static int writeVarint(byte[] data, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			data[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		data[position++] = (byte) value;
+		return position;
+	}
+
+	private static int readVarint(byte[] data, int[] position) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position[0]++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
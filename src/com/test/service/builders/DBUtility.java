@@ -16,16 +16,26 @@
 
 package com.test.service.builders;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Resource;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.transaction.Status;
 import javax.transaction.UserTransaction;
-import javax.ws.rs.NotFoundException;
 
+import com.test.service.jpa.ContentEntity;
 import com.test.service.jpa.DBEntity;
 import com.test.service.jpa.MinionEntity;
 import com.test.service.jpa.ParentEntity;
@@ -45,9 +55,51 @@ public class DBUtility<E extends DBEntity> {
 	private static final String QUERY_VAR = " x";
 	// Optional WHERE clause for name 
 	private static final String NAME_QUERY = " WHERE x.name = :name";	
+	// Alternative WHERE clause for a list of names
+	private static final String NAMES_QUERY = " WHERE x.name IN :names";
+	// Id of a parent by name, used by the set-based operations so that the parent is never loaded
+	static final String PARENT_ID_QUERY = "SELECT p.id FROM Parent p WHERE p.name = :name";
+	// Set-based reparenting of all the minions of a parent
+	private static final String MOVE_MINIONS_QUERY = "UPDATE Minion m SET m.parent = :to WHERE m.parent.id = :fromId";
+	// Set-based delete of all the minions of a parent
+	private static final String DELETE_MINIONS_QUERY = "DELETE FROM Minion m WHERE m.parent.id = :parentId";
+	// Set-based delete of a parent, once its minions have gone
+	private static final String DELETE_PARENT_QUERY = "DELETE FROM Parent p WHERE p.id = :parentId";
+	// Set-based delete of a minion by name
+	private static final String DELETE_MINION_QUERY = "DELETE FROM Minion m WHERE m.name = :name";
+	// Keeps ParentEntity.minionCount up to date, in the same transaction as the change to the minions
+	private static final String ADJUST_MINION_COUNT_QUERY =
+			"UPDATE Parent p SET p.minionCount = COALESCE(p.minionCount, 0) + :delta, p.lastMinionChange = :now WHERE p.id = :parentId";
+	// The same, only if the parent still has the name: checks an id from ParentIds while counting the minion
+	private static final String ADJUST_NAMED_MINION_COUNT_QUERY = ADJUST_MINION_COUNT_QUERY + " AND p.name = :name";
+	// Parents and shared contents of the minions with a name, before they are deleted
+	private static final String MINION_PARENT_QUERY = "SELECT p.id, m.contentsHash, p.name FROM Minion m LEFT JOIN m.parent p WHERE m.name = :name";
+	// Maintained minion counts, for repair
+	private static final String PARENT_COUNTS_QUERY = "SELECT p.id, p.minionCount FROM Parent p";
+	// Actual minion counts, for repair
+	static final String MINION_COUNT_QUERY = "SELECT m.parent.id, COUNT(m) FROM Minion m GROUP BY m.parent.id";
+	// Repair of a minion count, only if it hasn't changed since it was read
+	private static final String REPAIR_MINION_COUNT_QUERY =
+			"UPDATE Parent p SET p.minionCount = :count WHERE p.id = :parentId AND p.minionCount = :seen";
+	private static final String REPAIR_NULL_MINION_COUNT_QUERY =
+			"UPDATE Parent p SET p.minionCount = :count WHERE p.id = :parentId AND p.minionCount IS NULL";
+	// Reference counting of shared contents (see ContentDedup): a row is deleted once nothing refers to it
+	private static final String ACQUIRE_CONTENT_QUERY = "UPDATE Content c SET c.refCount = c.refCount + 1 WHERE c.hash = :hash";
+	private static final String RELEASE_CONTENT_QUERY = "UPDATE Content c SET c.refCount = c.refCount - :count WHERE c.hash = :hash";
+	private static final String DELETE_CONTENT_QUERY = "DELETE FROM Content c WHERE c.hash = :hash AND c.refCount <= 0";
+	// Rows of shared contents inserted for a transaction which then rolled back
+	private static final String DELETE_UNUSED_CONTENTS_QUERY = "DELETE FROM Content c WHERE c.refCount <= 0";
+	// Tries at inserting and then counting a new row of shared contents, which a concurrent release can delete in between
+	private static final int MAX_CONTENT_ATTEMPTS = 3;
+	// Shared contents of the minions of a parent, before they are deleted
+	private static final String MINION_CONTENTS_QUERY =
+			"SELECT m.contentsHash, COUNT(m) FROM Minion m WHERE m.parent.id = :parentId AND m.contentsHash IS NOT NULL GROUP BY m.contentsHash";
 	// Local entity manager 
 	private EntityManager em;
 	
+	// Shard this utility writes to
+	private final int shard;
+	
 	// Transaction for DB operations, populated via the JPA EntityManager
 	@Resource
 	private UserTransaction userTran;
@@ -55,6 +107,23 @@ public class DBUtility<E extends DBEntity> {
 	// initial JNDI context
 	private InitialContext ctx;
 	
+	// Parents and minions changed by the current transaction, passed to the read replica once it commits
+	private final ReadReplica.Changes changes = new ReadReplica.Changes();
+	
+	// Number of committed transactions which changed parents or minions, and of their changes applied to the read
+	// replica, see getWriteGeneration()
+	private static final AtomicLong WRITE_GENERATION = new AtomicLong();
+	
+	// Write generations by name, see getWriteGeneration(String, String): names share a generation when they hash
+	// to the same stripe, and a name's generation includes the one for every name of its type
+	private static final int NAME_STRIPES = 1024;
+	private static final AtomicLongArray PARENT_GENERATIONS = new AtomicLongArray(NAME_STRIPES);
+	private static final AtomicLongArray MINION_GENERATIONS = new AtomicLongArray(NAME_STRIPES);
+	private static final AtomicLong ALL_PARENTS_GENERATION = new AtomicLong();
+	private static final AtomicLong ALL_MINIONS_GENERATION = new AtomicLong();
+	// Set once something uses the generations by name, as the names changed are only recorded for them from then on
+	private static volatile boolean trackingNames;
+	
 	/** 
 	 * JNDI name of the DB persistence : must match the persistence-context-ref-name in web.xml 
 	 * (with java:comp/env prefix added for Liberty)
@@ -63,34 +132,52 @@ public class DBUtility<E extends DBEntity> {
 	public static final String JNDI_NAME = "java:comp/env/TestServicePC";
 	
 	/**
-	 * Default constructor
+	 * Default constructor, for the first (or only) shard
 	 */
 	public DBUtility() {
-		initEntityManager();
+		this(0);
+	}
+	
+	/**
+	 * Constructor for a specific shard, see ShardRouter
+	 * @param shard index of the shard: shard 0 uses JNDI_NAME, and shard n uses JNDI_NAME followed by n
+	 */
+	public DBUtility(int shard) {
+		this.shard = shard;
+		initEntityManager(shard == 0 ? JNDI_NAME : JNDI_NAME + shard);
 	}
 	
 	/**
 	 * Local helper method to populate an entity manager and connect to the database
 	 * No user transaction is provided
 	 * The entity manager is a global variable
+	 * @param jndiName name of the persistence context to use
 	 */
-	private void initEntityManager() {
+	private void initEntityManager(String jndiName) {
 		
 		try {
 			// Initialise the context
 			ctx = new InitialContext();
 			// Needed for Derby
-			em = (EntityManager) ctx.lookup(JNDI_NAME);			
+			em = (EntityManager) ctx.lookup(jndiName);			
 		}
 		catch (NamingException ne) {
 			System.out.println("getEntityManager naming error " + ne.getMessage());			
 		}
 		
 		if (em == null) {
-			System.out.println("ERROR failed to initialise entity manager");
+			System.out.println("ERROR failed to initialise entity manager " + jndiName + ", see GET /1.0/health/ready");
 		}
 	}
 	
+	/**
+	 * Get the entity manager, for the read-only utility to fall back on
+	 * @return the container-managed entity manager
+	 */
+	EntityManager getEntityManager() {
+		return em;
+	}
+	
 	/**
 	 * Local helper method to initialise a transaction and join it to the entity manager
 	 * Both entity manager and transaction are global variables
@@ -99,15 +186,34 @@ public class DBUtility<E extends DBEntity> {
 	public void getTran() {
 		
 		try {
-			userTran = (UserTransaction) ctx.lookup("java:comp/UserTransaction");
-			userTran.begin();
-			em.joinTransaction();
+			beginTran();
 		} 
 		catch (Exception e) {
 			System.out.println("getTran error " + e.getMessage());			
 		}
 	}
 	
+	/**
+	 * Start a transaction and join it to the entity manager, like getTran(), but report any failure to the caller
+	 * @throws Exception if the transaction could not be started
+	 */
+	void beginTran() throws Exception {
+		changes.clear();
+		NameFilter.begin();
+		userTran = (UserTransaction) ctx.lookup("java:comp/UserTransaction");
+		userTran.begin();
+		em.joinTransaction();
+	}
+	
+	/**
+	 * Join the transaction already started on this thread by another DBUtility, so that work on two shards
+	 * commits or rolls back together (the datasources are XA). Only the utility which started the transaction
+	 * should commit it
+	 */
+	public void joinTran() {
+		em.joinTransaction();
+	}
+	
 	/**
 	 * Commit the transaction after work is done
 	 * Should always be called after getEntityManagerWithTran()
@@ -117,13 +223,124 @@ public class DBUtility<E extends DBEntity> {
 		
 		// You must not close container-managed entity managers, so all we need to do here is 
 		// commit the transaction (if there was one)
+		try {
+			commitTran();
+		}
+		catch (Exception e) {
+			System.out.println("ERROR Commit failed " + e.getMessage() );
+		}
+	}
+	
+	/**
+	 * Commit the transaction, like commit(), but report any failure to the caller
+	 * @throws Exception if the commit failed: the transaction will have been rolled back
+	 */
+	void commitTran() throws Exception {
 		try {
 			if (userTran != null) {
 				userTran.commit();
 			}
 		}
 		catch (Exception e) {
-			System.out.println("ERROR Commit failed " + e.getMessage() );
+			NameFilter.rollback();
+			throw e;
+		}
+		// Deleted names only leave the filter once the deletes can't be rolled back
+		NameFilter.commit();
+		if (changes.hasChanges()) {
+			WRITE_GENERATION.incrementAndGet();
+			changes.advanceGenerations();
+		}
+		changes.publish();
+	}
+	
+	/**
+	 * Get the write generation, which goes up after every commit that changed parents or minions on this server,
+	 * so that anything computed from the DB can be checked for being out of date. It goes up again once the read
+	 * replica has applied the changes, as anything computed from the replica before then is out of date too
+	 * @return the number of such commits and replica updates so far
+	 */
+	public static long getWriteGeneration() {
+		return WRITE_GENERATION.get();
+	}
+	
+	/**
+	 * Get the write generation of a parent or minion, which goes up after every commit on this server that changed
+	 * it, and again once the read replica has applied the change, like getWriteGeneration(). A parent changes when
+	 * minions join or leave it, and a minion when its parent is changed. Only kept once trackNames() has been called,
+	 * and it may also go up for changes to other names
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name of the parent or minion
+	 * @return the generation
+	 */
+	public static long getWriteGeneration(String type, String name) {
+		int stripe = stripe(name);
+		
+		if (ParentEntity.TYPE.equals(type)) {
+			return PARENT_GENERATIONS.get(stripe) + ALL_PARENTS_GENERATION.get();
+		}
+		return MINION_GENERATIONS.get(stripe) + ALL_MINIONS_GENERATION.get();
+	}
+	
+	/**
+	 * Start recording the names each commit changes, for getWriteGeneration(String, String)
+	 */
+	public static void trackNames() {
+		trackingNames = true;
+	}
+	
+	/**
+	 * Check whether the names each commit changes are recorded for the write generations
+	 * @return true once trackNames() has been called
+	 */
+	static boolean isTrackingNames() {
+		return trackingNames;
+	}
+	
+	/**
+	 * Move on the write generation of one parent or minion
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name of the parent or minion
+	 */
+	static void advanceGeneration(String type, String name) {
+		(ParentEntity.TYPE.equals(type) ? PARENT_GENERATIONS : MINION_GENERATIONS).incrementAndGet(stripe(name));
+	}
+	
+	/**
+	 * Move on the write generation of every parent or every minion
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 */
+	static void advanceAllGenerations(String type) {
+		(ParentEntity.TYPE.equals(type) ? ALL_PARENTS_GENERATION : ALL_MINIONS_GENERATION).incrementAndGet();
+	}
+	
+	private static int stripe(String name) {
+		return (name.hashCode() & Integer.MAX_VALUE) % NAME_STRIPES;
+	}
+	
+	/**
+	 * Move the write generations on after the read replica has applied changes
+	 * @param applied the changes
+	 */
+	static void replicaUpdated(ReadReplica.Changes applied) {
+		WRITE_GENERATION.incrementAndGet();
+		applied.advanceGenerations();
+	}
+	
+	/**
+	 * Roll back the transaction, discarding the work done since getTran()
+	 * Safe to call if the transaction has already completed
+	 */
+	public void rollback() {
+		changes.clear();
+		NameFilter.rollback();
+		try {
+			if (userTran != null && userTran.getStatus() != Status.STATUS_NO_TRANSACTION) {
+				userTran.rollback();
+			}
+		}
+		catch (Exception e) {
+			System.out.println("ERROR Rollback failed " + e.getMessage() );
 		}
 	}
 	
@@ -135,29 +352,58 @@ public class DBUtility<E extends DBEntity> {
 	 */
 	public List<E> getEntitiesByName(String type, String name) 
 	{
-		String queryStr = TYPE_QUERY + type + QUERY_VAR;
-		Query query;
-		
 		// Entity manager must have been initialised
 		if (em == null) {
 			System.out.println("ERROR Failed to initialise JNDI and JPA");
 			return null;
 		}
 		
+		Query query = createNameQuery(em, type, name);
+		
+		// Run the query
+		List<E> queryResults = getEntitiesFromQuery(query);
+		
+		return queryResults;
+	}
+	
+	/**
+	 * Create a query for the DB entity objects matching sub-class and name
+	 * Shared with ReadDBUtility, so that both persistence paths run the same queries
+	 * @param entityManager to create the query with
+	 * @param type the name of a sub-class of DBEntity
+	 * @param name to match, can be null for all entries of the sub-class type
+	 * @return the query, ready to run
+	 */
+	static Query createNameQuery(EntityManager entityManager, String type, String name) {
+		String queryStr = TYPE_QUERY + type + QUERY_VAR;
+		Query query;
+		
 		// Null name is allowed: if so, don't query for name
 		if (name == null) {
-			query = em.createQuery(queryStr);
+			query = entityManager.createQuery(queryStr);
 		}
 		else {
 			queryStr += NAME_QUERY;
-			query = em.createQuery(queryStr);
+			query = entityManager.createQuery(queryStr);
 			query.setParameter("name",  name);
 		}
 		
-		// Run the query
-		List<E> queryResults = getEntitiesFromQuery(query);
+		return query;
+	}
+	
+	/**
+	 * Create a query for the DB entity objects of a sub-class with any of a list of names
+	 * Shared with ReadDBUtility, so that both persistence paths run the same queries
+	 * @param entityManager to create the query with
+	 * @param type the name of a sub-class of DBEntity
+	 * @param names to match: must not be empty, and should be short enough for a single statement
+	 * @return the query, ready to run
+	 */
+	static Query createNamesQuery(EntityManager entityManager, String type, Collection<String> names) {
+		Query query = entityManager.createQuery(TYPE_QUERY + type + QUERY_VAR + NAMES_QUERY);
+		query.setParameter("names", names);
 		
-		return queryResults;
+		return query;
 	}
 	
 	/**
@@ -165,7 +411,7 @@ public class DBUtility<E extends DBEntity> {
 	 * @param query
 	 * @return the list of entities, pre-cast to a generic DBEntity type
 	 */
-	private List<E> getEntitiesFromQuery(Query query) {
+	static <E extends DBEntity> List<E> getEntitiesFromQuery(Query query) {
 		
 		// All the database JPA entities extend DBEntity, so the cast is safe
 		@SuppressWarnings("unchecked")
@@ -185,7 +431,12 @@ public class DBUtility<E extends DBEntity> {
 		
 		// Persist the object
 		try {
+			if (entity instanceof MinionEntity) {
+				storeContents((MinionEntity) entity);
+			}
 			em.persist(entity);
+			changes.entity(entity);
+			NameFilter.added(entity);
 		}
 		catch (Exception e) {
 			System.out.println("ERROR Failed to persist entity " + entity.getName());
@@ -223,6 +474,14 @@ public class DBUtility<E extends DBEntity> {
 			for (DBEntity entity: entities) {
 				em.remove(entity);
 			}
+			adjustMinionCounts(entities, -1);
+			releaseContents(entities);
+			changes.everything();
+			// Removing the parents removes their minions too
+			NameFilter.rebuild(ParentEntity.TYPE.equals(type) ? null : type);
+			if (type == null || ParentEntity.TYPE.equals(type)) {
+				ParentIds.clear(shard);
+			}
 		}
 		catch (Exception e) {
 			System.out.println("ERROR in remove");
@@ -255,7 +514,14 @@ public class DBUtility<E extends DBEntity> {
 		try {
 			for (DBEntity entity: entities) {	
 				em.remove(entity);
+				changes.entity(entity);
+				NameFilter.removed(entity);
+				if (entity instanceof ParentEntity) {
+					ParentIds.remove(shard, entity.getName());
+				}
 			}
+			adjustMinionCounts(entities, -1);
+			releaseContents(entities);
 		}
 		catch (Exception e) {
 			System.out.println("removeObject");
@@ -274,23 +540,40 @@ public class DBUtility<E extends DBEntity> {
 	 * @param name of the parent to update
 	 * @param newParent element with the new contents
 	 * @return the updated parent entity now in the DB
-	 * @throws IllegalArgumentException if the DB contains more than one object with this name and type, the name should be unique
-	 * @throws NotFoundException if the DB does not contain any object with this name and type
+	 * @throws ServiceException.BadRequest if the DB contains more than one object with this name and type, the name should be unique
+	 * @throws ServiceException.NotFound if the DB does not contain any object with this name and type
 	 */
-	public ParentEntity updateParent(String name, Parent newParent) throws IllegalArgumentException, NotFoundException {
+	public ParentEntity updateParent(String name, Parent newParent) throws ServiceException {
 		// Initialise the transaction
 		getTran();
 		
+		ParentEntity parentToUpdate = applyParentUpdate(name, newParent);
+		
+		// Commit
+		commit();
+		
+		return parentToUpdate;
+	}
+	
+	/** 
+	 * Update the contents of a parent in the DB, as part of a transaction already started with getTran()
+	 * @param name of the parent to update
+	 * @param newParent element with the new contents
+	 * @return the updated parent entity
+	 * @throws ServiceException.BadRequest if the DB contains more than one object with this name and type, the name should be unique
+	 * @throws ServiceException.NotFound if the DB does not contain any object with this name and type
+	 */
+	ParentEntity applyParentUpdate(String name, Parent newParent) throws ServiceException {
 		// Cast is safe because we know the type (ParentEntity)
 		@SuppressWarnings("unchecked")
 		List<ParentEntity> entities = (List<ParentEntity>)getEntitiesByName(ParentEntity.TYPE, name);
 		
 		if (entities.size() > 1) {
-			throw new IllegalArgumentException("More than one parent found with name " + name);
+			throw new ServiceException.BadRequest("More than one parent found with name " + name);
 		}
 		
 		if (entities.size() == 0) {
-			throw new NotFoundException("No parent found with name " + name);			
+			throw new ServiceException.NotFound("No parent found with name " + name);			
 		}
 		
 		// If we get here, there must be exactly one match - otherwise, we'll have thrown one of the previous two exceptions
@@ -304,86 +587,826 @@ public class DBUtility<E extends DBEntity> {
 		// If the name has been updated in the incoming object, also update it in DB
 		if (newParent.getName() != null) {
 			parentToUpdate.setName(newParent.getName());			
+			ParentIds.remove(shard, name);
+			NameFilter.added(ParentEntity.TYPE, newParent.getName());
+			NameFilter.removed(ParentEntity.TYPE, name, 1);
 		}
 		
 		// Merge (update) the contents in the DB
 		em.merge(parentToUpdate);
-	
-		// Commit
-		commit();
+		changes.parent(name);
+		changes.parent(newParent.getName());
 		
 		return (ParentEntity)parentToUpdate;
 	}
+	
+	/**
+	 * Persist a new minion under its parent, as part of a transaction already started with getTran():
+	 * the parent is found in the same transaction, but not read (see countMinionAgainst())
+	 * @param minion the new minion entity, without its parent relationship
+	 * @param parentName name of the parent, which must be in the DB
+	 * @throws ServiceException.NotFound if the DB does not contain a parent with this name
+	 */
+	void applyMinionCreate(MinionEntity minion, String parentName) throws ServiceException {
+		Integer parentId = countMinionAgainst(parentName);
+		
+		minion.setParent(em.getReference(ParentEntity.class, parentId));
+		storeContents(minion);
+		em.persist(minion);
+		changes.minion(minion.getName());
+		changes.minionsOf(parentName);
+		NameFilter.added(MinionEntity.TYPE, minion.getName());
+	}
+	
+	/**
+	 * Persist a new minion under its own transaction, counting it against its parent
+	 * @param minion the new minion entity
+	 * @param parentName name of the parent to add it to
+	 * @throws ServiceException.NotFound if there is no parent with the name
+	 */
+	public void persistMinion(MinionEntity minion, String parentName) throws ServiceException {
+		try {
+			beginTran();
+			applyMinionCreate(minion, parentName);
+			commitTran();
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to persist minion " + minion.getName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Persist a new entity, as part of a transaction already started with beginTran(): nothing is looked up,
+	 * so inserts can be batched until the commit
+	 * @param entity the new entity, with any relationships already set
+	 */
+	void applyCreate(DBEntity entity) {
+		if (entity instanceof MinionEntity) {
+			storeContents((MinionEntity) entity);
+		}
+		em.persist(entity);
+		changes.entity(entity);
+		NameFilter.added(entity);
+	}
+	
+	/**
+	 * Get a reference to a parent by name, as part of a transaction already started with beginTran():
+	 * only the id is read, the parent itself is not loaded
+	 * @param name of the parent
+	 * @return the reference, which can be set as the parent of a minion
+	 * @throws ServiceException.NotFound if there is no parent with this name
+	 */
+	ParentEntity getParentReference(String name) throws ServiceException.NotFound {
+		return em.getReference(ParentEntity.class, getParentId(name));
+	}
 
 	/** 
 	 * Update the contents of a minion in the DB: type-specific method because we need to be to query and update
 	 * under the same transaction, and we need to know about the type-specific fields to update
 	 * @param name of the minion to update
 	 * @param newMinion element with the new contents
+	 * @param clearDescription true to remove the description: a null description in newMinion leaves it as it is
 	 * @return the updated minion entity now in the DB
-	 * @throws IllegalArgumentException if the DB contains more than one object with this name and type, the name should be unique
-	 * @throws NotFoundException if the DB does not contain any minion with this name and type, or a parent matching the new parentName
+	 * @throws ServiceException.BadRequest if the DB contains more than one object with this name and type, the name should be unique
+	 * @throws ServiceException.NotFound if the DB does not contain any minion with this name and type, or a parent matching the new parentName
 	 */
 	
-	public MinionEntity updateMinion(String name, Minion newMinion) throws IllegalArgumentException {
-		getTran();
-		
+	public MinionEntity updateMinion(String name, Minion newMinion, boolean clearDescription) throws ServiceException {
+		try {
+			beginTran();
+			MinionEntity minionToUpdate = applyMinionUpdate(name, newMinion, clearDescription);
+			commitTran();
+			
+			return minionToUpdate;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to update minion " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/** 
+	 * Update the contents of a minion in the DB, as part of a transaction already started with getTran()
+	 * Only the fields that are set are changed: the entity tracks changes to its attributes, so only their columns
+	 * are written, and the contents are not even read unless they are replaced
+	 * @param name of the minion to update
+	 * @param newMinion element with the new contents
+	 * @param clearDescription true to remove the description
+	 * @return the updated minion entity
+	 * @throws ServiceException.BadRequest if the DB contains more than one object with this name and type, the name should be unique
+	 * @throws ServiceException.NotFound if the DB does not contain any minion with this name and type, or a parent matching the new parentName
+	 */
+	MinionEntity applyMinionUpdate(String name, Minion newMinion, boolean clearDescription) throws ServiceException {
 		// Cast is safe because the type is the same
 		@SuppressWarnings("unchecked")
 		List<DBEntity> entities = (List<DBEntity>) getEntitiesByName(MinionEntity.TYPE, name);
 		
 		if (entities.size() > 1) {
-			throw new IllegalArgumentException("More than one minion found with name " + name);
+			throw new ServiceException.BadRequest("More than one minion found with name " + name);
 		}
 		
 		if (entities.size() == 0) {
-			throw new NotFoundException("No minion found with name " + name);			
+			throw new ServiceException.NotFound("No minion found with name " + name);			
 		}
 		
 		// If we get here, there must be exactly one match - otherwise, we'll have thrown one of the previous two exceptions
 		MinionEntity minionToUpdate = (MinionEntity)entities.get(0);
 
 		// If the description has been updated in the incoming object, also update it in DB
-		if (newMinion.getDescription() != null) {
+		if (newMinion.getDescription() != null || clearDescription) {
 			minionToUpdate.setDescription(newMinion.getDescription());
 		}
 		
 		// If the name has been updated in the incoming object, also update it in DB
 		if (newMinion.getName() != null) {
 			minionToUpdate.setName(newMinion.getName());			
+			NameFilter.added(MinionEntity.TYPE, newMinion.getName());
+			NameFilter.removed(MinionEntity.TYPE, name, 1);
+			
+			// The parent lists its minions by name
+			if (!newMinion.getName().equals(name)) {
+				changes.minionsOf(minionToUpdate.getParent() == null ? null : minionToUpdate.getParent().getName());
+			}
 		}
 		
 		// If the contents have been updated in the incoming object, also update them in DB
 		if (newMinion.getContents() != null) {
-			minionToUpdate.setContents(newMinion.getContents());			
+			String oldHash = minionToUpdate.getContentsHash();
+			
+			minionToUpdate.setContents(newMinion.getContents());
+			minionToUpdate.setContentsHash(null);
+			storeContents(minionToUpdate);
+			
+			// Released after the new contents are stored, so unchanged contents keep their row
+			if (oldHash != null) {
+				releaseContents(oldHash, 1);
+			}
 		}
 		
 		// If the parent has been updated in the incoming object, also update it in DB
 		if (newMinion.getParentName() != null) {
 			String pName = newMinion.getParentName();
+			ParentEntity oldParent = minionToUpdate.getParent();
+			
+			// Nothing to do if the minion is already under the parent: otherwise keep the counts of both parents right
+			if (oldParent == null || !pName.equals(oldParent.getName())) {
+				Integer newParentId = countMinionAgainst(pName);
+				if (oldParent != null) {
+					adjustMinionCount(oldParent.getId(), -1);
+					changes.minionsOf(oldParent.getName());
+				}
+				minionToUpdate.setParent(em.getReference(ParentEntity.class, newParentId));
+				changes.minionsOf(pName);
+			}
+		}
+		
+		// Update the DB with the new entity contents
+		em.merge(minionToUpdate);
+		changes.minion(name);
+		changes.minion(newMinion.getName());
+		
+		return minionToUpdate;
+	}	
+	
+	/**
+	 * Add entries to the end of the contents of a minion, without the client sending the contents back.
+	 * The contents are held in a single column (or a shared row, see ContentDedup), so that is rewritten,
+	 * but nothing else is
+	 * @param name of the minion
+	 * @param entries to add
+	 * @return the number of entries in the contents now
+	 * @throws ServiceException.BadRequest if the DB contains more than one minion with this name
+	 * @throws ServiceException.NotFound if the DB does not contain a minion with this name
+	 */
+	public int appendMinionContents(String name, List<String> entries) throws ServiceException {
+		try {
+			beginTran();
 			
-			// Check the parent is in the DB: cast is safe because we are searching for the parententity type
+			// Cast is safe because the type is the same
 			@SuppressWarnings("unchecked")
-			List<ParentEntity> parents = (List<ParentEntity>)getEntitiesByName(ParentEntity.TYPE, pName);
+			List<MinionEntity> entities = (List<MinionEntity>) getEntitiesByName(MinionEntity.TYPE, name);
+			
+			if (entities.size() > 1) {
+				throw new ServiceException.BadRequest("More than one minion found with name " + name);
+			}
 			
-			if (parents.size() > 1) {
-				throw new IllegalArgumentException("More than one parent found with name " + name);
+			if (entities.size() == 0) {
+				throw new ServiceException.NotFound("No minion found with name " + name);
 			}
 			
-			if (parents.size() == 0) {
-				throw new NotFoundException("No parent found with name " + name);			
+			MinionEntity minion = entities.get(0);
+			String oldHash = minion.getContentsHash();
+			
+			// A new list, so that the change goes through the woven setter
+			ArrayList<String> contents = new ArrayList<String>(getContents(minion));
+			contents.addAll(entries);
+			
+			minion.setContents(contents);
+			minion.setContentsHash(null);
+			storeContents(minion);
+			
+			if (oldHash != null) {
+				releaseContents(oldHash, 1);
 			}
+			changes.minion(name);
+			
+			commitTran();
 			
-			// If we get here, there was exactly one match
-			minionToUpdate.setParent((ParentEntity)parents.get(0));
+			return contents.size();
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to append to the contents of minion " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Move a minion to a parent on another shard, updating its contents on the way: the minion is copied to the
+	 * target shard and removed from this one under a single (XA) transaction
+	 * @param target utility for the shard of the new parent
+	 * @param name of the minion to move
+	 * @param newMinion element with the new contents, including the new parentName
+	 * @param clearDescription true to remove the description
+	 * @return the minion entity now in the target shard
+	 * @throws ServiceException.BadRequest if either shard contains more than one match for the minion or the parent
+	 * @throws ServiceException.NotFound if the minion or the new parent can't be found
+	 */
+	public MinionEntity moveMinion(DBUtility<?> target, String name, Minion newMinion, boolean clearDescription) throws ServiceException {
+		try {
+			beginTran();
+			target.joinTran();
+			
+			// Cast is safe because the type is the same
+			@SuppressWarnings("unchecked")
+			List<MinionEntity> entities = (List<MinionEntity>) getEntitiesByName(MinionEntity.TYPE, name);
+			
+			if (entities.size() > 1) {
+				throw new ServiceException.BadRequest("More than one minion found with name " + name);
+			}
+			
+			if (entities.size() == 0) {
+				throw new ServiceException.NotFound("No minion found with name " + name);			
+			}
+			
+			MinionEntity existing = entities.get(0);
+			
+			// Take each field from the incoming object if it has been set, otherwise keep the current value
+			MinionEntity moved = new MinionEntity();
+			moved.setName(newMinion.getName() != null ? newMinion.getName() : existing.getName());
+			moved.setDescription(newMinion.getDescription() != null || clearDescription ? newMinion.getDescription() : existing.getDescription());
+			moved.setContents(newMinion.getContents() != null ? newMinion.getContents() : getContents(existing));
+			
+			target.applyMinionCreate(moved, newMinion.getParentName());
+			em.remove(existing);
+			if (existing.getParent() != null) {
+				adjustMinionCount(existing.getParent().getId(), -1);
+			}
+			if (existing.getContentsHash() != null) {
+				releaseContents(existing.getContentsHash(), 1);
+			}
+			changes.minion(name);
+			changes.minion(moved.getName());
+			changes.minionsOf(existing.getParent() == null ? null : existing.getParent().getName());
+			changes.minionsOf(newMinion.getParentName());
+			NameFilter.removed(MinionEntity.TYPE, name, 1);
+			
+			commitTran();
+			
+			return moved;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to move minion " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Rename a parent to a name which belongs on another shard: the parent and all its minions are copied to the
+	 * target shard and removed from this one under a single (XA) transaction
+	 * @param target utility for the shard of the new name
+	 * @param name of the parent to move
+	 * @param newParent element with the new contents, including the new name
+	 * @return the parent entity now in the target shard
+	 * @throws ServiceException.BadRequest if the DB contains more than one parent with this name
+	 * @throws ServiceException.NotFound if the DB does not contain a parent with this name
+	 */
+	public ParentEntity moveParent(DBUtility<?> target, String name, Parent newParent) throws ServiceException {
+		try {
+			beginTran();
+			target.joinTran();
+			
+			// Cast is safe because we know the type (ParentEntity)
+			@SuppressWarnings("unchecked")
+			List<ParentEntity> entities = (List<ParentEntity>)getEntitiesByName(ParentEntity.TYPE, name);
+			
+			if (entities.size() > 1) {
+				throw new ServiceException.BadRequest("More than one parent found with name " + name);
+			}
+			
+			if (entities.size() == 0) {
+				throw new ServiceException.NotFound("No parent found with name " + name);			
+			}
+			
+			ParentEntity existing = entities.get(0);
+			
+			ParentEntity moved = new ParentEntity();
+			moved.setName(newParent.getName());
+			moved.setDescription(newParent.getDescription() != null ? newParent.getDescription() : existing.getDescription());
+			moved.setMinionCount(existing.getMinions().size());
+			moved.setLastMinionChange(existing.getLastMinionChange());
+			target.em.persist(moved);
+			NameFilter.added(ParentEntity.TYPE, moved.getName());
+			
+			// Copy the minions: the originals are removed with the parent, by cascade
+			for (MinionEntity minion: existing.getMinions()) {
+				MinionEntity copy = new MinionEntity();
+				copy.setName(minion.getName());
+				copy.setDescription(minion.getDescription());
+				copy.setContents(getContents(minion));
+				copy.setParent(moved);
+				
+				target.storeContents(copy);
+				target.em.persist(copy);
+				moved.getMinions().add(copy);
+			}
+			
+			releaseContents(existing.getMinions());
+			em.remove(existing);
+			changes.parent(name);
+			changes.parent(moved.getName());
+			ParentIds.remove(shard, name);
+			NameFilter.removed(ParentEntity.TYPE, name, 1);
+			
+			commitTran();
+			
+			return moved;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to move parent " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Move all the minions of one parent to another parent with a single UPDATE: the minions are never loaded,
+	 * so the number of statements is the same however many minions there are
+	 * @param fromName name of the parent which currently has the minions
+	 * @param toName name of the parent to move them to
+	 * @return the number of minions moved
+	 * @throws ServiceException.NotFound if either parent is not in the DB
+	 */
+	public int moveMinions(String fromName, String toName) throws ServiceException.NotFound {
+		try {
+			beginTran();
+			
+			Integer fromId = getParentId(fromName);
+			Integer toId = getParentId(toName);
+			
+			Query update = em.createQuery(MOVE_MINIONS_QUERY);
+			update.setParameter("to", em.getReference(ParentEntity.class, toId));
+			update.setParameter("fromId", fromId);
+			int moved = update.executeUpdate();
+			
+			if (moved > 0 && !fromId.equals(toId)) {
+				adjustMinionCount(fromId, -moved);
+				adjustMinionCount(toId, moved);
+			}
+			changes.parent(fromName);
+			changes.parent(toName);
+			
+			commitTran();
+			
+			return moved;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to move the minions of " + fromName + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Delete all the minions of a parent with a single DELETE, leaving the parent in place
+	 * @param parentName name of the parent
+	 * @return the number of minions deleted
+	 * @throws ServiceException.NotFound if the parent is not in the DB
+	 */
+	public int removeMinions(String parentName) throws ServiceException.NotFound {
+		try {
+			beginTran();
+			
+			Integer parentId = getParentId(parentName);
+			int removed = removeMinions(parentId);
+			if (removed > 0) {
+				adjustMinionCount(parentId, -removed);
+			}
+			changes.parent(parentName);
+			
+			commitTran();
+			
+			return removed;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to delete the minions of " + parentName + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Delete a parent and all its minions with two DELETEs, minions first, without loading any of them:
+	 * the same number of statements however many minions the parent has
+	 * @param name of the parent
+	 * @return the number of minions deleted with the parent
+	 * @throws ServiceException.NotFound if the parent is not in the DB
+	 */
+	public int removeParent(String name) throws ServiceException.NotFound {
+		try {
+			beginTran();
+			
+			Integer parentId = getParentId(name);
+			int removed = removeMinions(parentId);
+			
+			Query delete = em.createQuery(DELETE_PARENT_QUERY);
+			delete.setParameter("parentId", parentId);
+			delete.executeUpdate();
+			changes.parent(name);
+			ParentIds.remove(shard, name);
+			// The names of the minions deleted with it aren't known: they stay in the filter until it is rebuilt
+			NameFilter.removed(ParentEntity.TYPE, name, 1);
+			
+			commitTran();
+			
+			return removed;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to delete parent " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Delete a minion with a single DELETE, without loading it
+	 * @param name of the minion
+	 * @return the number of minions deleted, 0 if there is no minion with this name
+	 */
+	public int removeMinion(String name) {
+		try {
+			beginTran();
+			
+			// The parents are needed for their counts, so find them before the minion goes
+			Query parentQuery = em.createQuery(MINION_PARENT_QUERY);
+			parentQuery.setParameter("name", name);
+			List<?> minions = parentQuery.getResultList();
+			
+			Query delete = em.createQuery(DELETE_MINION_QUERY);
+			delete.setParameter("name", name);
+			int removed = delete.executeUpdate();
+			
+			for (Object minion: minions) {
+				Object[] columns = (Object[]) minion;
+				
+				adjustMinionCount((Integer) columns[0], -1);
+				if (columns[1] != null) {
+					releaseContents((String) columns[1], 1);
+				}
+				changes.minionsOf((String) columns[2]);
+			}
+			changes.minion(name);
+			NameFilter.removed(MinionEntity.TYPE, name, removed);
+			
+			commitTran();
+			
+			return removed;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to delete minion " + name + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Delete all the minions of a parent, as part of a transaction already started
+	 * @param parentId id of the parent
+	 * @return the number of minions deleted
+	 */
+	private int removeMinions(Integer parentId) {
+		// Release the shared contents first, with one update for each distinct contents
+		Query contents = em.createQuery(MINION_CONTENTS_QUERY);
+		contents.setParameter("parentId", parentId);
+		for (Object row: contents.getResultList()) {
+			Object[] columns = (Object[]) row;
+			releaseContents((String) columns[0], ((Number) columns[1]).longValue());
 		}
 		
-		// Update the DB with the new entity contents
-		em.merge(minionToUpdate);
+		Query delete = em.createQuery(DELETE_MINIONS_QUERY);
+		delete.setParameter("parentId", parentId);
+		
+		return delete.executeUpdate();
+	}
 	
-		// Commit the transaction
-		commit();
+	/**
+	 * Correct any maintained minion counts (ParentEntity.minionCount) which don't match the minions,
+	 * for example after data was loaded outside the service. A count which changes while the repair is
+	 * running is left alone, so the repair can run alongside normal traffic: it will be checked next time
+	 * @return the number of parents whose count was corrected
+	 */
+	public int repairMinionCounts() {
+		try {
+			beginTran();
+			
+			// Read the maintained counts first: a minion added after this shows up as a changed count below, and is skipped
+			Map<Integer, Long> seen = new HashMap<Integer, Long>();
+			for (Object row: em.createQuery(PARENT_COUNTS_QUERY).getResultList()) {
+				Object[] columns = (Object[]) row;
+				seen.put((Integer) columns[0], columns[1] == null ? null : ((Number) columns[1]).longValue());
+			}
+			
+			Map<Integer, Long> actual = new HashMap<Integer, Long>();
+			for (Object row: em.createQuery(MINION_COUNT_QUERY).getResultList()) {
+				Object[] columns = (Object[]) row;
+				actual.put((Integer) columns[0], ((Number) columns[1]).longValue());
+			}
+			
+			int repaired = 0;
+			
+			for (Map.Entry<Integer, Long> parent: seen.entrySet()) {
+				Long count = actual.get(parent.getKey());
+				long expected = count == null ? 0 : count;
+				
+				if (parent.getValue() == null || parent.getValue() != expected) {
+					Query update = em.createQuery(parent.getValue() == null ? REPAIR_NULL_MINION_COUNT_QUERY : REPAIR_MINION_COUNT_QUERY);
+					update.setParameter("count", expected);
+					update.setParameter("parentId", parent.getKey());
+					if (parent.getValue() != null) {
+						update.setParameter("seen", parent.getValue());
+					}
+					repaired += update.executeUpdate();
+				}
+			}
+			
+			commitTran();
+			
+			return repaired;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to repair the minion counts: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Delete the rows of shared contents which nothing refers to, left by writes which inserted new contents
+	 * (see storeContents()) and then rolled back. Safe alongside normal traffic: a row being stored right now is
+	 * found missing by its writer, which inserts it again
+	 * @return the number of rows deleted
+	 */
+	public int removeUnusedContents() {
+		try {
+			beginTran();
+			int removed = em.createQuery(DELETE_UNUSED_CONTENTS_QUERY).executeUpdate();
+			commitTran();
+			
+			return removed;
+		}
+		catch (RuntimeException re) {
+			rollback();
+			throw re;
+		}
+		catch (Exception e) {
+			rollback();
+			throw new PersistenceException("Failed to remove the unused contents: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Add to the maintained minion count of a parent, as part of a transaction already started.
+	 * A bulk update, so concurrent changes to the same parent don't overwrite each other's counts
+	 * @param parentId id of the parent
+	 * @param delta the change in the number of minions
+	 */
+	void adjustMinionCount(Integer parentId, long delta) {
+		Query update = em.createQuery(ADJUST_MINION_COUNT_QUERY);
+		update.setParameter("delta", delta);
+		update.setParameter("now", new Date());
+		update.setParameter("parentId", parentId);
+		update.executeUpdate();
+	}
+	
+	/**
+	 * Find the parent of a new or reparented minion and count the minion against it, as part of a transaction
+	 * already started. A cached id (see ParentIds) is checked by the count update itself, so the parent is never
+	 * read, and its name is only looked up when it isn't cached or the cached id is out of date
+	 * @param parentName name of the parent
+	 * @return the id of the parent, for a reference
+	 * @throws ServiceException.NotFound if there is no parent with this name
+	 */
+	private Integer countMinionAgainst(String parentName) throws ServiceException.NotFound {
+		Integer cached = ParentIds.get(shard, parentName);
 		
-		return minionToUpdate;
-	}	
+		if (cached != null) {
+			Query update = em.createQuery(ADJUST_NAMED_MINION_COUNT_QUERY);
+			update.setParameter("delta", 1L);
+			update.setParameter("now", new Date());
+			update.setParameter("parentId", cached);
+			update.setParameter("name", parentName);
+			
+			if (update.executeUpdate() > 0) {
+				return cached;
+			}
+			// Renamed or deleted since it was cached
+			ParentIds.stale(shard, parentName);
+		}
+		
+		Integer parentId = getParentId(parentName);
+		ParentIds.put(shard, parentName, parentId);
+		adjustMinionCount(parentId, 1);
+		
+		return parentId;
+	}
+	
+	/**
+	 * Adjust the minion counts of the parents of a list of entities, with one update for each parent
+	 * @param entities the entities: any which are not minions are ignored
+	 * @param delta the change for each minion
+	 */
+	private void adjustMinionCounts(List<? extends DBEntity> entities, long delta) {
+		Map<Integer, Long> deltas = new HashMap<Integer, Long>();
+		
+		for (DBEntity entity: entities) {
+			if (entity instanceof MinionEntity && ((MinionEntity) entity).getParent() != null) {
+				Integer parentId = ((MinionEntity) entity).getParent().getId();
+				Long total = deltas.get(parentId);
+				deltas.put(parentId, (total == null ? 0 : total) + delta);
+			}
+		}
+		
+		for (Map.Entry<Integer, Long> parent: deltas.entrySet()) {
+			adjustMinionCount(parent.getKey(), parent.getValue());
+		}
+	}
+	
+	/**
+	 * Get the contents of a minion read through this utility, wherever they are stored
+	 * @param minion the minion entity
+	 * @return the contents
+	 */
+	public ArrayList<String> getContents(MinionEntity minion) {
+		return ContentDedup.resolve(em, minion.getContentsHash(), minion.getContents());
+	}
+	
+	/**
+	 * Move the contents of a new or changed minion to the shared content table, as part of a transaction
+	 * already started, if deduplication is enabled: the minion is left holding just the hash
+	 * @param minion the minion, with its contents set
+	 */
+	void storeContents(MinionEntity minion) {
+		ArrayList<String> contents = minion.getContents();
+		
+		if (!ContentDedup.isEnabled() || contents == null) {
+			return;
+		}
+		
+		String hash = ContentDedup.hash(contents);
+		boolean shared = acquireContents(hash);
+		
+		// New contents: the row is inserted and committed on its own, with no references, and then counted like
+		// any other. Inserting it in this transaction would fail the whole transaction on the duplicate key when
+		// another writer stores the same contents at the same time
+		boolean stored = shared;
+		for (int attempt = 0; !stored; attempt++) {
+			// A concurrent release deletes a row with no references, so it can go between the insert and the count
+			if (attempt == MAX_CONTENT_ATTEMPTS) {
+				throw new PersistenceException("Failed to store the contents " + hash + ": the row keeps being deleted");
+			}
+			if (ContentDedup.insert(shard, hash, contents)) {
+				stored = acquireContents(hash);
+			}
+			else {
+				// No content persistence unit to insert with: insert in this transaction
+				em.persist(new ContentEntity(hash, contents));
+				// Written now, so that later minions in the same transaction find the row
+				em.flush();
+				stored = true;
+			}
+		}
+		ContentDedup.stored(hash, contents, shared);
+		
+		minion.setContents(null);
+		minion.setContentsHash(hash);
+	}
+	
+	/**
+	 * Count a minion against a row of shared contents, if there is one
+	 * @param hash hash of the contents
+	 * @return true if the row is there
+	 */
+	private boolean acquireContents(String hash) {
+		Query acquire = em.createQuery(ACQUIRE_CONTENT_QUERY);
+		acquire.setParameter("hash", hash);
+		
+		return acquire.executeUpdate() > 0;
+	}
+	
+	/**
+	 * Drop references to shared contents, as part of a transaction already started, deleting the row if
+	 * nothing refers to it any more
+	 * @param hash of the contents
+	 * @param count the number of references to drop
+	 */
+	void releaseContents(String hash, long count) {
+		Query release = em.createQuery(RELEASE_CONTENT_QUERY);
+		release.setParameter("count", count);
+		release.setParameter("hash", hash);
+		release.executeUpdate();
+		
+		Query delete = em.createQuery(DELETE_CONTENT_QUERY);
+		delete.setParameter("hash", hash);
+		delete.executeUpdate();
+		
+		ContentDedup.released(count);
+	}
+	
+	/**
+	 * Drop the references to shared contents held by deleted entities, with one update for each distinct contents
+	 * @param entities the entities: the minions of any parents are included, as they are deleted by cascade
+	 */
+	private void releaseContents(List<? extends DBEntity> entities) {
+		Map<String, Long> references = new HashMap<String, Long>();
+		
+		for (DBEntity entity: entities) {
+			List<? extends DBEntity> minions = entity instanceof ParentEntity ? ((ParentEntity) entity).getMinions() : Collections.singletonList(entity);
+			
+			for (DBEntity minion: minions) {
+				if (minion instanceof MinionEntity && ((MinionEntity) minion).getContentsHash() != null) {
+					String hash = ((MinionEntity) minion).getContentsHash();
+					Long total = references.get(hash);
+					references.put(hash, (total == null ? 0 : total) + 1);
+				}
+			}
+		}
+		
+		for (Map.Entry<String, Long> content: references.entrySet()) {
+			releaseContents(content.getKey(), content.getValue());
+		}
+	}
+	
+	/**
+	 * Get the id of a parent, without loading the parent
+	 * @param name of the parent
+	 * @return the id
+	 * @throws ServiceException.NotFound if there is no parent with this name
+	 */
+	private Integer getParentId(String name) throws ServiceException.NotFound {
+		Query query = em.createQuery(PARENT_ID_QUERY);
+		query.setParameter("name", name);
+		query.setMaxResults(1);
+		
+		List<?> ids = query.getResultList();
+		
+		if (ids.isEmpty()) {
+			throw new ServiceException.NotFound("No parent found with name " + name);
+		}
+		
+		return (Integer) ids.get(0);
+	}
 }
@@ -0,0 +1,324 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.persistence.PersistenceException;
+
+import com.test.service.jpa.DBEntity;
+
+/**
+ * Group commit for independent single-entity writes.
+ * Concurrent writes are queued for up to maxDelayMillis and then applied together under a single transaction,
+ * so the cost of the transaction and the Derby log flush is shared by the whole batch.
+ * There is no background thread: the first writer to find no batch being collected becomes the leader, waits
+ * for others to join, and runs the batch on its own request thread, which has the JNDI context DBUtility needs.
+ * Every writer still gets its own result: if the batch fails, it is rolled back and each write is retried
+ * in its own transaction, so one bad write can't fail the others.
+ * Off by default: enable with the groupCommit/enabled setting
+ */
+public class GroupCommitter {
+
+	/**
+	 * A write which can be applied as part of a batch. apply() may run more than once (if the batch is retried
+	 * one write at a time), so it must build any new entities itself rather than reuse them
+	 * @param <T> type of the result returned to the writer
+	 */
+	public abstract static class Write<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private T result;
+		private RuntimeException failure;
+
+		/**
+		 * Apply the write, inside a transaction which has already been started
+		 * @param db utility holding the transaction
+		 * @return the result for the writer
+		 */
+		protected abstract T apply(DBUtility<DBEntity> db);
+
+		/**
+		 * Get the result, or throw the failure, once the write has been committed or rejected
+		 * @return the result of apply()
+		 */
+		private T get() {
+			if (failure != null) {
+				throw failure;
+			}
+			return result;
+		}
+
+		private void succeed(T value) {
+			result = value;
+			done.countDown();
+		}
+
+		private void fail(RuntimeException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		private boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		private void await(long nanos) {
+			try {
+				done.await(nanos, TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new PersistenceException("Interrupted while waiting for a group commit", ie);
+			}
+		}
+	}
+
+	// The committers shared by all the service helpers, one for each shard
+	private static final GroupCommitter[] INSTANCES = new GroupCommitter[ShardRouter.count()];
+
+	static {
+		for (int shard = 0; shard < INSTANCES.length; shard++) {
+			INSTANCES[shard] = new GroupCommitter(shard,
+					Settings.getBoolean("groupCommit/enabled", false),
+					Settings.getLong("groupCommit/maxDelayMillis", 5),
+					Settings.getInt("groupCommit/maxBatch", 64));
+		}
+	}
+
+	// The shard written to: a transaction can only batch writes to a single database
+	private final int shard;
+	private final boolean enabled;
+	// The longest a write waits for others to join its batch
+	private final long maxDelayNanos;
+	// The most writes in one transaction
+	private final int maxBatch;
+
+	// Writes waiting for a leader
+	private final ConcurrentLinkedQueue<Write<?>> queue = new ConcurrentLinkedQueue<Write<?>>();
+	private final AtomicInteger queued = new AtomicInteger();
+	// Set while a leader is collecting or committing a batch
+	private final AtomicBoolean leading = new AtomicBoolean();
+	// The leader's thread while it is waiting for the batch to fill, so it can be woken early
+	private volatile Thread leaderThread;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param shard the shard written to
+	 * @param enabled false to commit every write on its own
+	 * @param maxDelayMillis the longest a write waits for others to join its batch
+	 * @param maxBatch the most writes in one transaction
+	 */
+	GroupCommitter(int shard, boolean enabled, long maxDelayMillis, int maxBatch) {
+		this.shard = shard;
+		this.enabled = enabled;
+		// Writers waiting for another leader wake up this often: with no delay at all they would spin
+		if (maxDelayMillis < 1) {
+			System.out.println("WARNING groupCommit/maxDelayMillis must be at least 1, using 1");
+		}
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxDelayMillis));
+		this.maxBatch = Math.max(1, maxBatch);
+
+		Metrics.register(shard == 0 ? "groupCommit" : "groupCommit.shard" + shard, new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("enabled", GroupCommitter.this.enabled);
+				values.put("batches", batches.get());
+				values.put("writes", writes.get());
+				values.put("failedBatches", failedBatches.get());
+				values.put("queued", queued.get());
+			}
+		});
+	}
+
+	/**
+	 * Get the committer shared by the service helpers, for the first (or only) shard
+	 * @return the committer
+	 */
+	public static GroupCommitter getInstance() {
+		return INSTANCES[0];
+	}
+
+	/**
+	 * Get the committer shared by the service helpers for a shard
+	 * @param shard index of the shard, see ShardRouter
+	 * @return the committer
+	 */
+	public static GroupCommitter getInstance(int shard) {
+		return INSTANCES[shard];
+	}
+
+	/**
+	 * Check whether writes should go through the committer
+	 * @return true if group commit is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get the number of writes waiting for a batch
+	 * @return the queue depth
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Apply a write as part of a batch, and wait for it to be committed
+	 * @param write the write
+	 * @return the result of the write
+	 * @throws RuntimeException thrown by the write, or PersistenceException if its transaction failed
+	 */
+	public <T> T submit(Write<T> write) {
+		queue.add(write);
+
+		// Wake the leader if this write fills its batch
+		if (queued.incrementAndGet() >= maxBatch) {
+			Thread leader = leaderThread;
+			if (leader != null) {
+				LockSupport.unpark(leader);
+			}
+		}
+
+		while (!write.isDone()) {
+			if (leading.compareAndSet(false, true)) {
+				try {
+					lead();
+				}
+				finally {
+					leading.set(false);
+				}
+			}
+			else {
+				// Another writer is leading: wait for it, but take over if our write is left in the queue
+				write.await(maxDelayNanos);
+			}
+		}
+
+		return write.get();
+	}
+
+	/**
+	 * Collect a batch, waiting up to the maximum delay for it to fill, then commit it
+	 */
+	private void lead() {
+		long deadline = System.nanoTime() + maxDelayNanos;
+
+		leaderThread = Thread.currentThread();
+		try {
+			long remaining;
+			while (queued.get() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		finally {
+			leaderThread = null;
+		}
+
+		List<Write<?>> batch = new ArrayList<Write<?>>();
+		Write<?> write;
+		while (batch.size() < maxBatch && (write = queue.poll()) != null) {
+			queued.decrementAndGet();
+			batch.add(write);
+		}
+
+		if (!batch.isEmpty()) {
+			try {
+				commitBatch(batch);
+			}
+			finally {
+				// An Error from a write leaves the rest of the batch without an outcome: fail them, or their writers wait for ever
+				for (Write<?> polled: batch) {
+					if (!polled.isDone()) {
+						polled.fail(new PersistenceException("The group commit of this write did not complete"));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply a batch of writes under one transaction: if that fails, retry the writes one at a time
+	 * so that each gets its own outcome
+	 * @param batch the writes
+	 */
+	private void commitBatch(List<Write<?>> batch) {
+		batches.incrementAndGet();
+		writes.addAndGet(batch.size());
+
+		List<Object> results = new ArrayList<Object>(batch.size());
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+
+		try {
+			db.beginTran();
+
+			for (Write<?> write: batch) {
+				results.add(write.apply(db));
+			}
+
+			db.commitTran();
+		}
+		catch (Exception e) {
+			db.rollback();
+
+			// A batch of one has nothing to retry
+			if (batch.size() == 1) {
+				batch.get(0).fail(e instanceof RuntimeException ? (RuntimeException) e : new PersistenceException(e.getMessage(), e));
+				return;
+			}
+
+			failedBatches.incrementAndGet();
+			for (Write<?> write: batch) {
+				commitBatch(Collections.<Write<?>>singletonList(write));
+			}
+			return;
+		}
+		catch (Error err) {
+			db.rollback();
+			failedBatches.incrementAndGet();
+			throw err;
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			succeed(batch.get(i), results.get(i));
+		}
+	}
+
+	/**
+	 * Complete a write with its result: the result was returned by the same write's apply(), so the cast is safe
+	 * @param write the write
+	 * @param result the result of apply()
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> void succeed(Write<T> write, Object result) {
+		write.succeed((T) result);
+	}
+}
@@ -0,0 +1,233 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import com.test.service.jpa.DBEntity;
+
+/**
+ * Probe of the DB for the health endpoints: for each shard, checks that the persistence context can be looked up,
+ * then times taking a connection from the pool and running a trivial statement on it.
+ * Probes are cached for health/probeIntervalMillis, and only one runs at a time, so however often the load
+ * balancer asks, the DB sees at most one probe per interval. A probe which is still waiting for a connection is
+ * itself a sign of trouble, so the time it has been running is reported as well
+ */
+public final class HealthCheck {
+
+	// Non-XA data source of the first shard: shard n appends n, like the persistence units
+	private static final String DATA_SOURCE_JNDI_NAME = "jdbc/DBConnectionNonXA";
+	private static final String PROBE_STATEMENT = "VALUES 1";
+
+	private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("health/probeIntervalMillis", 5000));
+
+	private static final AtomicBoolean PROBING = new AtomicBoolean();
+	private static final AtomicLong PROBES = new AtomicLong();
+	private static final AtomicLong FAILURES = new AtomicLong();
+
+	private static volatile Result last;
+	private static volatile long probeStartedNanos;
+
+	static {
+		Metrics.register("health", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				Result result = last;
+
+				values.put("probes", PROBES.get());
+				values.put("failures", FAILURES.get());
+				values.put("acquireMillis", result == null ? -1 : result.getAcquireMillis());
+				values.put("queryMillis", result == null ? -1 : result.getQueryMillis());
+			}
+		});
+	}
+
+	/**
+	 * Outcome of a probe
+	 */
+	public static final class Result {
+		private final boolean ok;
+		private final long acquireMillis;
+		private final long queryMillis;
+		private final String error;
+		private final Date time = new Date();
+		private final long nanos = System.nanoTime();
+
+		private Result(boolean ok, long acquireMillis, long queryMillis, String error) {
+			this.ok = ok;
+			this.acquireMillis = acquireMillis;
+			this.queryMillis = queryMillis;
+			this.error = error;
+		}
+
+		/**
+		 * Check whether the probe succeeded
+		 * @return true if every shard answered
+		 */
+		public boolean isOk() {
+			return ok;
+		}
+
+		/**
+		 * Get the connection acquire time
+		 * @return the longest time taken to get a connection from a shard's pool, in milliseconds
+		 */
+		public long getAcquireMillis() {
+			return acquireMillis;
+		}
+
+		/**
+		 * Get the time taken by the probe statement
+		 * @return the longest time taken to run the probe statement on a shard, in milliseconds
+		 */
+		public long getQueryMillis() {
+			return queryMillis;
+		}
+
+		/**
+		 * Get the reason for a failure
+		 * @return why the probe failed, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * Get the time of the probe
+		 * @return when the probe ran
+		 */
+		public Date getTime() {
+			return time;
+		}
+	}
+
+	private HealthCheck() {
+	}
+
+	/**
+	 * Get a recent probe of the DB, running a new one if the last is out of date and no other is running
+	 * @return the latest probe, or null if the first probe is still running on another thread
+	 */
+	public static Result probe() {
+		Result result = last;
+
+		if ((result == null || System.nanoTime() - result.nanos > INTERVAL_NANOS) && PROBING.compareAndSet(false, true)) {
+			try {
+				probeStartedNanos = System.nanoTime();
+				result = runProbe();
+				last = result;
+			}
+			finally {
+				PROBING.set(false);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get the latest probe, without running one
+	 * @return the latest probe, or null if none has finished
+	 */
+	public static Result getLast() {
+		return last;
+	}
+
+	/**
+	 * Get how long the probe which is running now has been running
+	 * @return the time in milliseconds, 0 if no probe is running
+	 */
+	public static long getRunningMillis() {
+		return PROBING.get() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStartedNanos) : 0;
+	}
+
+	/**
+	 * Probe every shard
+	 * @return the outcome, with the slowest times of any shard
+	 */
+	private static Result runProbe() {
+		PROBES.incrementAndGet();
+
+		long acquireNanos = 0;
+		long queryNanos = 0;
+
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			if (new DBUtility<DBEntity>(shard).getEntityManager() == null) {
+				return failed("No entity manager for shard " + shard);
+			}
+
+			String dataSourceName = shard == 0 ? DATA_SOURCE_JNDI_NAME : DATA_SOURCE_JNDI_NAME + shard;
+			DataSource dataSource;
+			try {
+				dataSource = (DataSource) new InitialContext().lookup(dataSourceName);
+			}
+			catch (NamingException ne) {
+				return failed("No data source " + dataSourceName + ": " + ne.getMessage());
+			}
+
+			Connection connection = null;
+			try {
+				long start = System.nanoTime();
+				connection = dataSource.getConnection();
+				long acquired = System.nanoTime();
+
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute(PROBE_STATEMENT);
+				}
+				finally {
+					statement.close();
+				}
+
+				acquireNanos = Math.max(acquireNanos, acquired - start);
+				queryNanos = Math.max(queryNanos, System.nanoTime() - acquired);
+			}
+			catch (SQLException sqle) {
+				return failed("Probe of shard " + shard + " failed: " + sqle.getMessage());
+			}
+			finally {
+				if (connection != null) {
+					try {
+						connection.close();
+					}
+					catch (SQLException sqle) {
+						// The probe result stands
+					}
+				}
+			}
+		}
+
+		return new Result(true, TimeUnit.NANOSECONDS.toMillis(acquireNanos), TimeUnit.NANOSECONDS.toMillis(queryNanos), null);
+	}
+
+	private static Result failed(String error) {
+		FAILURES.incrementAndGet();
+		System.out.println("ERROR health probe: " + error);
+		return new Result(false, -1, -1, error);
+	}
+}
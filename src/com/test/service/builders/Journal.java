@@ -0,0 +1,331 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in a memory-mapped file, for writes which have been accepted but not yet applied.
+ * Each record is its length, a CRC32 of its payload, and the payload. The header holds the checkpoint: the
+ * offset of the first record not yet applied. When the file is opened, the records from the checkpoint are
+ * checked and any torn or corrupt record (and everything after it) is dropped, so a crash loses at most the
+ * write in progress.
+ * Once every record has been applied the log starts again from the beginning of the file, so it only fills
+ * up if the records are appended faster than they are applied.
+ * Appends and reads are synchronized: there should be a single reader
+ */
+class Journal {
+
+	/**
+	 * Records read from the journal, with the offset after each so they can be checkpointed one at a time
+	 */
+	static class Batch {
+		final List<byte[]> records = new ArrayList<byte[]>();
+		final List<Integer> ends = new ArrayList<Integer>();
+	}
+
+	// Identifies the file as a journal, "JRN1"
+	private static final int MAGIC = 0x4a524e31;
+	// Magic number and checkpoint
+	private static final int HEADER_SIZE = 12;
+	private static final int CHECKPOINT_OFFSET = 4;
+	// Length and CRC before each payload
+	private static final int RECORD_HEADER_SIZE = 8;
+	// Zero length after the last record: stale records from before a restart of the log are never read
+	private static final int END_MARKER_SIZE = 4;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	// Flush every append to disk before acknowledging it
+	private final boolean force;
+
+	// Offset of the first record not yet applied
+	private int checkpoint;
+	// Offset where the next record will be written
+	private int end;
+	// Records between the checkpoint and the end
+	private int pending;
+	// Set by close(): nothing more is appended
+	private boolean closed;
+	// Records appended (or recovered) and applied since the journal was opened, for awaitApplied()
+	private long appended;
+	private long applied;
+
+	/**
+	 * Open a journal, creating the file if needed, and recover the records not yet applied
+	 * @param file the journal file
+	 * @param capacity size of the file in bytes
+	 * @param force true to flush each append to disk before returning
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	Journal(File file, int capacity, boolean force) throws IOException {
+		this.file = file;
+		this.force = force;
+
+		raf = new RandomAccessFile(file, "rw");
+		// An existing journal keeps its size, so that changing the setting can't cut off records
+		this.capacity = (int) Math.max(raf.length(), capacity);
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+
+		if (buffer.getInt(0) != MAGIC) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(HEADER_SIZE, 0);
+			setCheckpoint(HEADER_SIZE);
+			end = HEADER_SIZE;
+		}
+		else {
+			checkpoint = buffer.getInt(CHECKPOINT_OFFSET);
+			recover();
+		}
+	}
+
+	/**
+	 * Find the end of the valid records after the checkpoint
+	 */
+	private void recover() {
+		if (checkpoint < HEADER_SIZE || checkpoint > capacity - END_MARKER_SIZE) {
+			System.out.println("WARNING journal " + file + " has an invalid checkpoint, discarding it");
+			restart();
+			return;
+		}
+
+		int position = checkpoint;
+		byte[] payload;
+
+		while ((payload = readRecord(position)) != null) {
+			position += RECORD_HEADER_SIZE + payload.length;
+			pending++;
+		}
+
+		end = position;
+		appended = pending;
+		// Cut off anything torn after the last good record
+		if (end <= capacity - END_MARKER_SIZE) {
+			buffer.putInt(end, 0);
+		}
+
+		if (pending > 0) {
+			System.out.println("Journal " + file + " has " + pending + " records to replay");
+		}
+	}
+
+	/**
+	 * Append a record
+	 * @param payload the record
+	 * @return false if the journal is full, or closed
+	 */
+	synchronized boolean append(byte[] payload) {
+		if (closed) {
+			return false;
+		}
+
+		int size = RECORD_HEADER_SIZE + payload.length;
+
+		if (end + size + END_MARKER_SIZE > capacity) {
+			if (pending > 0 || HEADER_SIZE + size + END_MARKER_SIZE > capacity) {
+				return false;
+			}
+			restart();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		// The end marker first and the length last, so a record is never valid until it is complete
+		buffer.putInt(end + size, 0);
+		ByteBuffer target = buffer.duplicate();
+		target.position(end + RECORD_HEADER_SIZE);
+		target.put(payload);
+		buffer.putInt(end + 4, (int) crc.getValue());
+		buffer.putInt(end, payload.length);
+
+		if (force) {
+			buffer.force();
+		}
+
+		end += size;
+		pending++;
+		appended++;
+
+		return true;
+	}
+
+	/**
+	 * Read the next records not yet applied, without removing them
+	 * @param max the most records to read
+	 * @return the records, with the offset after each
+	 */
+	synchronized Batch read(int max) {
+		Batch batch = new Batch();
+		int position = checkpoint;
+
+		while (batch.records.size() < max && position < end) {
+			byte[] payload = readRecord(position);
+			if (payload == null) {
+				break;
+			}
+
+			position += RECORD_HEADER_SIZE + payload.length;
+			batch.records.add(payload);
+			batch.ends.add(position);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Mark records as applied
+	 * @param offset the end offset of the last record applied, from a Batch
+	 * @param count the number of records applied
+	 */
+	synchronized void advance(int offset, int count) {
+		setCheckpoint(offset);
+		pending -= count;
+		applied += count;
+		notifyAll();
+
+		// Everything has been applied, so start again at the beginning of the file
+		if (pending == 0) {
+			restart();
+		}
+		else if (force) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Wait until every record appended so far has been applied
+	 * @param timeoutMillis the longest to wait
+	 * @return true if they have all been applied, false if they haven't in time or the journal was closed first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized boolean awaitApplied(long timeoutMillis) throws InterruptedException {
+		long target = appended;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		while (applied < target) {
+			long remaining = deadline - System.nanoTime();
+			if (closed || remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the number of records not yet applied
+	 * @return the number of records
+	 */
+	synchronized int getPendingRecords() {
+		return pending;
+	}
+
+	/**
+	 * Get the size of the records not yet applied
+	 * @return the number of bytes
+	 */
+	synchronized int getPendingBytes() {
+		return end - checkpoint;
+	}
+
+	/**
+	 * Get the size of the journal file
+	 * @return the number of bytes
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Flush and close the file
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		notifyAll();
+		buffer.force();
+		try {
+			raf.close();
+		}
+		catch (IOException ioe) {
+			System.out.println("WARNING failed to close journal " + file + ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Empty the journal: only when everything has been applied
+	 */
+	private void restart() {
+		// The end marker first, so that a crash before the checkpoint is moved leaves an empty journal
+		buffer.putInt(HEADER_SIZE, 0);
+		end = HEADER_SIZE;
+		pending = 0;
+		setCheckpoint(HEADER_SIZE);
+		buffer.force();
+	}
+
+	/**
+	 * Write the checkpoint to the header
+	 * @param offset the offset of the first record not yet applied
+	 */
+	private void setCheckpoint(int offset) {
+		checkpoint = offset;
+		buffer.putInt(CHECKPOINT_OFFSET, offset);
+	}
+
+	/**
+	 * Read and check a record
+	 * @param position offset of the record
+	 * @return the payload, or null if there is no valid record at this offset
+	 */
+	private byte[] readRecord(int position) {
+		if (position > capacity - RECORD_HEADER_SIZE) {
+			return null;
+		}
+
+		int length = buffer.getInt(position);
+		if (length <= 0 || length > capacity - position - RECORD_HEADER_SIZE) {
+			return null;
+		}
+
+		byte[] payload = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(position + RECORD_HEADER_SIZE);
+		source.get(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		return (int) crc.getValue() == buffer.getInt(position + 4) ? payload : null;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the runtime metrics published by the service.
+ * Components register a Source under a prefix, and the values are collected on demand
+ * when the metrics are read, so there is no cost on the request path
+ */
+public final class Metrics {
+
+	/**
+	 * A component that can report its current metric values
+	 */
+	public interface Source {
+		/**
+		 * Add the current values to the map
+		 * @param values map to populate, keyed by the metric name (without the prefix)
+		 */
+		void report(Map<String, Object> values);
+	}
+
+	// Registered sources, keyed by their prefix
+	private static final ConcurrentHashMap<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Register a source of metrics: a later registration with the same prefix replaces the earlier one
+	 * @param prefix prepended to the metric names of the source, for example "minion.reads"
+	 * @param source the source of the values
+	 */
+	public static void register(String prefix, Source source) {
+		SOURCES.put(prefix, source);
+	}
+
+	/**
+	 * Collect the current values of all the registered sources
+	 * @return map of metric values, sorted by the full metric name
+	 */
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+		for (Map.Entry<String, Source> entry: SOURCES.entrySet()) {
+			Map<String, Object> values = new TreeMap<String, Object>();
+			entry.getValue().report(values);
+
+			for (Map.Entry<String, Object> value: values.entrySet()) {
+				snapshot.put(entry.getKey() + "." + value.getKey(), value.getValue());
+			}
+		}
+
+		return snapshot;
+	}
+}
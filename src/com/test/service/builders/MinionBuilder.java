@@ -35,9 +35,9 @@ public class MinionBuilder extends Builder<MinionEntity, Minion> {
 	 * So you will need to set it explicitly after calling this method
 	 * @param minion
 	 * @return MinionEntity populated except for the parent relationship
-	 * @throws IllegalArgumentException
+	 * @throws ServiceException.BadRequest
 	 */
-	public MinionEntity createEntityFromElement(Minion minion) throws IllegalArgumentException {
+	public MinionEntity createEntityFromElement(Minion minion) throws ServiceException {
 		MinionEntity minionEntity = new MinionEntity();
 		
 		// Call the superclass to populate common parameters (name and description)
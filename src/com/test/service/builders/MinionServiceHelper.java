@@ -16,20 +16,47 @@
 
 package com.test.service.builders;
 
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
-import javax.ws.rs.NotFoundException;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
 
 import com.test.service.jpa.DBEntity;
 import com.test.service.jpa.MinionEntity;
-import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Batch;
 import com.test.service.model.Minion;
 
 /**
  * Implementation of the RESTful MinionService
  */
 public class MinionServiceHelper {
+	// Shared by all helpers, so that identical concurrent reads run a single query
+	private static final RequestCoalescer<List<Minion>> READS = new RequestCoalescer<List<Minion>>("minion.reads");
+	// The messages never change, so these are thrown as they are
+	private static final ServiceException NAME_MISSING = new ServiceException.BadRequest("The name parameter is mandatory when creating a Minion");
+	private static final ServiceException PARENT_NAME_MISSING = new ServiceException.BadRequest("The parentName parameter is mandatory when creating a Minion");
+	private static final ServiceException PATCH_NOT_OBJECT = new ServiceException.BadRequest("A merge patch for a minion must be a JSON object");
+	private static final ServiceException NO_ENTRIES = new ServiceException.BadRequest("Provide the entries to add to the contents");
+	
+	// Looking up the JSON provider is slow, so it's done once
+	private static final JsonReaderFactory READERS = Json.createReaderFactory(null);
+	// Members of a minion in a merge patch
+	private static final String NAME = "name";
+	private static final String DESCRIPTION = "description";
+	private static final String PARENT_NAME = "parentName";
+	private static final String CONTENTS = "contents";
 	// Local copy of the DBUtility used to manage interactions with the database
 	private DBUtility<MinionEntity> dbUtil;
 	// Builder for converting between minion element and DB entity
@@ -46,19 +73,164 @@ public class MinionServiceHelper {
      * @param name to match, null for all minions
      * @return list of minion elements
      */
- 	public List<Minion> get(String name) {
+ 	public List<Minion> get(final String name) {
+ 		// Served from memory if the read replica is enabled and loaded
+ 		List<Minion> replica = ReadReplica.getMinions(name);
+ 		if (replica != null) {
+ 			return replica;
+ 		}
+ 		
+ 		// A name the filter has never seen is not in the DB
+ 		if (NameFilter.isMissing(MinionEntity.TYPE, name)) {
+ 			return new ArrayList<Minion>();
+ 		}
+ 		
+ 		// Join any identical read already in flight rather than running the same query again
+ 		List<Minion> shared = READS.get(RequestCoalescer.key(MinionEntity.TYPE, name), new Callable<List<Minion>>() {
+ 			@Override
+ 			public List<Minion> call() {
+ 				return load(name);
+ 			}
+ 		});
+ 		
+ 		// The list may be shared with other callers, so hand out a copy
+ 		return new ArrayList<Minion>(shared);
+ 	}
+ 	
+ 	/**
+ 	 * Get the minions with any of a list of names: a single query on each shard for each
+ 	 * multiGet/namesPerQuery names, rather than one for each name
+ 	 * @param names to match, without duplicates
+ 	 * @return the minions in the order of the names, with the names that were not found
+ 	 */
+ 	public Batch<Minion> get(final List<String> names) {
+ 		Map<String, Minion> byName = new HashMap<String, Minion>();
+ 		
+ 		// Served from memory if the read replica is enabled and loaded
+ 		if (!fromReplica(names, byName)) {
+ 			// Names the filter has never seen are left out, and reported missing
+ 			final List<String> candidates = new ArrayList<String>();
+ 			for (String name: names) {
+ 				if (!NameFilter.isMissing(MinionEntity.TYPE, name)) {
+ 					candidates.add(name);
+ 				}
+ 			}
+ 			
+ 			// The names don't tell us the shards, so ask every shard for all of them
+ 			List<List<Minion>> perShard = candidates.isEmpty() ? new ArrayList<List<Minion>>() : ShardRouter.scatter(new ShardRouter.ShardTask<List<Minion>>() {
+ 				@Override
+ 				public List<Minion> run(int shard) {
+ 					return load(shard, candidates);
+ 				}
+ 			});
+ 			
+ 			for (List<Minion> minions: perShard) {
+ 				for (Minion minion: minions) {
+ 					byName.put(minion.getName(), minion);
+ 				}
+ 			}
+ 		}
+ 		
+ 		Batch<Minion> batch = new Batch<Minion>();
+ 		for (String name: names) {
+ 			batch.add(name, byName.get(name));
+ 		}
+ 		
+ 		return batch;
+ 	}
+ 	
+ 	/**
+ 	 * Look up minions in the read replica
+ 	 * @param names to match
+ 	 * @param byName to add the minions found to
+ 	 * @return true if the replica answered for every name, false if the DB has to be read instead
+ 	 */
+ 	private static boolean fromReplica(List<String> names, Map<String, Minion> byName) {
+ 		for (String name: names) {
+ 			List<Minion> replica = ReadReplica.getMinions(name);
+ 			if (replica == null) {
+ 				byName.clear();
+ 				return false;
+ 			}
+ 			if (!replica.isEmpty()) {
+ 				byName.put(name, replica.get(0));
+ 			}
+ 		}
+ 		
+ 		return true;
+ 	}
+ 	
+ 	/**
+ 	 * Read the minions matching the name from the DB: the name doesn't tell us the shard, so read them all
+ 	 * @param name to match, null for all minions
+ 	 * @return list of minion elements
+ 	 */
+ 	private List<Minion> load(final String name) {
+ 		List<List<Minion>> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<List<Minion>>() {
+ 			@Override
+ 			public List<Minion> run(int shard) {
+ 				return load(shard, name);
+ 			}
+ 		});
+ 		
+ 		return ShardRouter.gather(perShard);
+ 	}
+ 	
+ 	/**
+ 	 * Read the minions matching the name from one shard
+ 	 * @param shard index of the shard
+ 	 * @param name to match, null for all minions
+ 	 * @return list of minion elements
+ 	 */
+ 	private List<Minion> load(int shard, String name) {
+		// Reads don't need a transaction, so use the read-only persistence path
+		ReadDBUtility<MinionEntity> reader = new ReadDBUtility<MinionEntity>(shard);
+		
+		try {
+			// Get the minion entities from the DB
+			return toElements(reader, reader.getEntitiesByName(MinionEntity.TYPE, name));
+		}
+		// The elements are complete, so the entities are no longer needed
+		finally {
+			reader.close();
+		}
+	}
+	
+ 	/**
+ 	 * Read the minions with any of a list of names from one shard
+ 	 * @param shard index of the shard
+ 	 * @param names to match
+ 	 * @return list of minion elements, in no particular order
+ 	 */
+ 	private List<Minion> load(int shard, List<String> names) {
+		ReadDBUtility<MinionEntity> reader = new ReadDBUtility<MinionEntity>(shard);
+		
+		try {
+			return toElements(reader, reader.getEntitiesByNames(MinionEntity.TYPE, names));
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+ 	/**
+ 	 * Convert minion entities to elements, while the reader is still open
+ 	 * @param reader the reader the entities came from
+ 	 * @param entities the minion entities
+ 	 * @return list of minion elements
+ 	 */
+ 	private List<Minion> toElements(ReadDBUtility<MinionEntity> reader, List<MinionEntity> entities) {
  		// List of minion elements to return
 		List<Minion> elements = new ArrayList<Minion>();
 		
-		// Get the minion entities from the DB
-		List<MinionEntity>entities = dbUtil.getEntitiesByName(MinionEntity.TYPE, name);
-		
 		// Convert each entity to an element
 		for(DBEntity entity: entities) {
 			MinionEntity mEntity = (MinionEntity) entity;
 			
 			// Populate the element fields from the entity
 			Minion minion = builder.createElementFromEntity(mEntity);
+			// The contents may be shared with other minions, in which case the entity only has their hash
+			minion.setContents(reader.getContents(mEntity));
 			
 			// Process the parent
 			if (mEntity.getParent() != null) {
@@ -74,10 +246,38 @@ public class MinionServiceHelper {
  	/**
  	 * Delete a minion
  	 * @param name of minion to delete
+ 	 * @throws ServiceException.NotFound if a name is given and there is no minion with that name
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
  	 */
-	public void delete(String name) {
-
-		dbUtil.remove(MinionEntity.TYPE, name);
+	public void delete(final String name) throws ServiceException {
+		
+		// Apply any queued POST or PUT first, so that it can't bring back a minion deleted after it was accepted
+		WriteBehind.flush();
+		
+		// Null name deletes all the minions, on every shard
+		if (name == null) {
+			for (int shard = 0; shard < ShardRouter.count(); shard++) {
+				dbUtil(shard).remove(MinionEntity.TYPE, name);
+			}
+			return;
+		}
+		
+		// A single DELETE on each shard: cheaper than finding the shard first, and the minion is never loaded
+		List<Integer> removed = ShardRouter.scatter(new ShardRouter.ShardTask<Integer>() {
+			@Override
+			public Integer run(int shard) {
+				return dbUtil(shard).removeMinion(name);
+			}
+		});
+		
+		int total = 0;
+		for (Integer count: removed) {
+			total += count;
+		}
+		
+		if (total == 0) {
+			throw new ServiceException.NotFound("No minion found with name " + name);
+		}
 	}
 	
 	/**
@@ -85,69 +285,291 @@ public class MinionServiceHelper {
 	 * @param name of the minion to update
 	 * @param newMinion new details of the minion properties
 	 * @return the updated minion properties
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
 	 */
 	public Minion update (String name, Minion newMinion) {
-		
-		// Update the DB contents
-		MinionEntity mEntity = dbUtil.updateMinion(name, newMinion);
+		MinionEntity mEntity = write(name, newMinion, false);
 		
 		// Convert the returned DB minion entity into a minion element
 		Minion minion = builder.createElementFromEntity(mEntity);
+		minion.setContents(dbUtil(ShardRouter.shardFor(minion.getParentName())).getContents(mEntity));
 		
 		return minion;
 	}	
 	
+	/**
+	 * Apply a JSON merge patch (RFC 7386) to a minion: members that are present replace the current values, a null
+	 * removes the description or empties the contents, and members that are left out are not touched, so their
+	 * columns are neither read nor written. An array replaces the whole of the contents: use appendContents() to add
+	 * to them
+	 * @param name of the minion to update
+	 * @param document the merge patch document
+	 * @throws ServiceException.BadRequest if the patch is not a JSON object, has members a minion doesn't have, or
+	 * removes the name or parentName
+	 * @throws ServiceException.NotFound if there is no minion with this name, or no parent with the new parentName
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
+	 */
+	public void patch(String name, String document) throws ServiceException {
+		JsonStructure patch;
+		JsonReader reader = READERS.createReader(new StringReader(document == null ? "" : document));
+		
+		try {
+			patch = reader.read();
+		}
+		catch (JsonException je) {
+			throw PATCH_NOT_OBJECT;
+		}
+		finally {
+			reader.close();
+		}
+		
+		if (!(patch instanceof JsonObject)) {
+			throw PATCH_NOT_OBJECT;
+		}
+		
+		Minion newMinion = new Minion();
+		boolean clearDescription = false;
+		
+		for (Map.Entry<String, JsonValue> member: ((JsonObject) patch).entrySet()) {
+			String field = member.getKey();
+			JsonValue value = member.getValue();
+			boolean remove = value.getValueType() == JsonValue.ValueType.NULL;
+			
+			if (NAME.equals(field) || PARENT_NAME.equals(field)) {
+				if (remove) {
+					throw new ServiceException.BadRequest("The " + field + " of a minion can't be removed");
+				}
+				if (NAME.equals(field)) {
+					newMinion.setName(patchString(field, value));
+				}
+				else {
+					newMinion.setParentName(patchString(field, value));
+				}
+			}
+			else if (DESCRIPTION.equals(field)) {
+				clearDescription = remove;
+				newMinion.setDescription(remove ? null : patchString(field, value));
+			}
+			else if (CONTENTS.equals(field)) {
+				newMinion.setContents(remove ? new ArrayList<String>() : patchStrings(field, value));
+			}
+			else {
+				throw new ServiceException.BadRequest("A minion has no " + field);
+			}
+		}
+		
+		write(name, newMinion, clearDescription);
+	}
+	
+	/**
+	 * Add entries to the end of the contents of a minion
+	 * @param name of the minion
+	 * @param entries to add
+	 * @return the number of entries in the contents now
+	 * @throws ServiceException.BadRequest if there are no entries
+	 * @throws ServiceException.NotFound if there is no minion with this name
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
+	 */
+	public int appendContents(String name, List<String> entries) throws ServiceException {
+		if (entries == null || entries.isEmpty()) {
+			throw NO_ENTRIES;
+		}
+		
+		// Apply any queued PUT or POST first, so that the entries are added to what they wrote
+		WriteBehind.flush();
+		
+		// With a single shard there is no need to look: appendMinionContents() reports a missing minion
+		int shard = ShardRouter.count() == 1 ? 0 : locate(name);
+		
+		if (shard < 0) {
+			throw new ServiceException.NotFound("No minion found with name " + name);
+		}
+		
+		return dbUtil(shard).appendMinionContents(name, entries);
+	}
+	
+	/**
+	 * Write the set fields of a minion to the DB, moving it to another shard if its new parent is there
+	 * @param name of the minion to update
+	 * @param newMinion new details of the minion properties
+	 * @param clearDescription true to remove the description
+	 * @return the updated minion entity
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
+	 */
+	private MinionEntity write(String name, Minion newMinion, boolean clearDescription) {
+		// Apply any queued PUT or POST first: an older queued PUT must not overwrite this write, and a queued POST creates the minion
+		WriteBehind.flush();
+		
+		// With a single shard there is no need to look: updateMinion() reports a missing minion
+		int shard = ShardRouter.count() == 1 ? 0 : locate(name);
+		
+		if (shard < 0) {
+			throw new ServiceException.NotFound("No minion found with name " + name);
+		}
+		
+		// A new parent on another shard means the minion has to move with it
+		int targetShard = newMinion.getParentName() == null ? shard : ShardRouter.shardFor(newMinion.getParentName());
+		
+		// Update the DB contents
+		if (targetShard == shard) {
+			return dbUtil(shard).updateMinion(name, newMinion, clearDescription);
+		}
+		return dbUtil(shard).moveMinion(dbUtil(targetShard), name, newMinion, clearDescription);
+	}
+	
+	/**
+	 * Get a string member of a merge patch
+	 * @param field name of the member
+	 * @param value of the member
+	 * @return the string
+	 * @throws ServiceException.BadRequest if the value is not a string
+	 */
+	private static String patchString(String field, JsonValue value) throws ServiceException {
+		if (value.getValueType() != JsonValue.ValueType.STRING) {
+			throw new ServiceException.BadRequest("The " + field + " of a minion must be a string");
+		}
+		return ((JsonString) value).getString();
+	}
+	
+	/**
+	 * Get a member of a merge patch which is an array of strings
+	 * @param field name of the member
+	 * @param value of the member
+	 * @return the strings
+	 * @throws ServiceException.BadRequest if the value is not an array of strings
+	 */
+	private static ArrayList<String> patchStrings(String field, JsonValue value) throws ServiceException {
+		if (value.getValueType() != JsonValue.ValueType.ARRAY) {
+			throw new ServiceException.BadRequest("The " + field + " of a minion must be an array of strings");
+		}
+		
+		ArrayList<String> strings = new ArrayList<String>();
+		for (JsonValue item: (JsonArray) value) {
+			strings.add(patchString(field, item));
+		}
+		return strings;
+	}
+	
+	/**
+	 * Count the minions, without loading them
+	 * @return the number of minions
+	 */
+	public long count() {
+		return ReadDBUtility.countAll(MinionEntity.TYPE);
+	}
+	
+	/**
+	 * Accept a new minion for write-behind, if it is enabled: the minion is written to the DB later, in the background,
+	 * and isn't checked against the DB until then
+	 * @param min the new user-populated minion element
+	 * @return true if the minion was accepted, false if it has to be written with persist()
+	 * @throws ServiceException.BadRequest if a mandatory parameter is missing (name, parentName)
+	 */
+	public boolean persistLater(Minion min) throws ServiceException {
+		if (min.getName() == null) {
+			throw NAME_MISSING;
+		}
+		
+		if (min.getParentName() == null) {
+			throw PARENT_NAME_MISSING;
+		}
+		
+		return WriteBehind.create(min);
+	}
+	
+	/**
+	 * Accept an update to a minion for write-behind, if it is enabled
+	 * @param name of the minion to update
+	 * @param newMinion new details of the minion properties
+	 * @return true if the update was accepted, false if it has to be made with update()
+	 */
+	public boolean updateLater(String name, Minion newMinion) {
+		return WriteBehind.update(name, newMinion);
+	}
+	
 	/**
 	 * Write the contents of a minion to the DB
 	 * @param min the new user-populated minion element
 	 * @return the minion contents that were written
-	 * @throws IllegalArgumentException if a minion with this name is already in the DB, or if a mandatory parameter is missing (name, parentName)
+	 * @throws ServiceException.Conflict if a minion with this name is already in the DB
+	 * @throws ServiceException.BadRequest if a mandatory parameter is missing (name, parentName)
+	 * @throws ServiceException.Unavailable if queued writes are taking too long to apply
 	 */
-	public Minion persist(Minion min) {
+	public Minion persist(final Minion min) {
 		String name = min.getName();
 		
 		if (name == null) {
-			throw new IllegalArgumentException("The name parameter is mandatory when creating a Minion");			
+			throw NAME_MISSING;			
 		}
 		
-		// Look up the DB to see if there are any existing minions with this name
-		List<MinionEntity> existingMinions = dbUtil.getEntitiesByName(MinionEntity.TYPE, name);
+		// Apply any queued POST first, so that the name is checked against it
+		WriteBehind.flush();
 		
-		if (existingMinions.size() > 0) {
-			throw new IllegalArgumentException("Minion with name " + name + " already exists");
+		// Look up the DB to see if there are any existing minions with this name
+		if (locate(name) >= 0) {
+			throw new ServiceException.Conflict("Minion with name " + name + " already exists");
 		}
 		
-		// Convert the incoming minion element into a DB entity
-		MinionEntity minionEntity = builder.createEntityFromElement(min);
-		
-		String pName = min.getParentName();
+		final String pName = min.getParentName();
 		
 		if (pName == null) {
-			throw new IllegalArgumentException("The parentName parameter is mandatory when creating a Minion");
+			throw PARENT_NAME_MISSING;
 		}
 		
-		// We need to look up the parent
-		DBUtility<ParentEntity> parentUtil = new DBUtility<ParentEntity>();
+		// The minion lives on the same shard as its parent
+		int shard = ShardRouter.shardFor(pName);
 		
-		// Cast is safe because the search is for the parententity type
-		//@SuppressWarnings("unchecked")
-		List<ParentEntity> parents = (List<ParentEntity>)parentUtil.getEntitiesByName(ParentEntity.TYPE, pName);
-		
-		if (parents.size() == 0) {
-			throw new NotFoundException("Parent not found: " + pName);
-		}
-		else if (parents.size() == 1) {
-			//System.out.println("Setting parent " + pName);
-			minionEntity.setParent((ParentEntity)parents.get(0));
-		} 
-		else {
-			throw new IllegalArgumentException("More than one match found for parent " + pName);
+		// Share a transaction with other concurrent writes: the parent is looked up inside that transaction
+		GroupCommitter committer = GroupCommitter.getInstance(shard);
+		if (committer.isEnabled()) {
+			committer.submit(new GroupCommitter.Write<Void>() {
+				@Override
+				protected Void apply(DBUtility<DBEntity> db) {
+					db.applyMinionCreate(builder.createEntityFromElement(min), pName);
+					return null;
+				}
+			});
+			
+			return min;
 		}
 		
-		// Store the minion object (and related parent)
-		dbUtil.persistObject(minionEntity);
+		// Convert the incoming minion element into a DB entity
+		MinionEntity minionEntity = builder.createEntityFromElement(min);
+		
+		// Look up the parent and store the minion, counting it against the parent in the same transaction
+		dbUtil(shard).persistMinion(minionEntity, pName);
 		
 		return min;
 	}
 	
+	/**
+	 * Find the shard holding a minion: minions are placed by their parent's name, so look on every shard
+	 * @param name of the minion
+	 * @return index of the shard, or -1 if the minion is not in the DB
+	 */
+	int locate(final String name) {
+		// A name the filter has never seen is on no shard
+		if (NameFilter.isMissing(MinionEntity.TYPE, name)) {
+			return -1;
+		}
+		
+		List<Boolean> found = ShardRouter.scatter(new ShardRouter.ShardTask<Boolean>() {
+			@Override
+			public Boolean run(int shard) {
+				return dbUtil(shard).getEntitiesByName(MinionEntity.TYPE, name).size() > 0;
+			}
+		});
+		
+		return found.indexOf(Boolean.TRUE);
+	}
+	
+	/**
+	 * Get the DBUtility for a shard
+	 * @param shard index of the shard
+	 * @return the utility
+	 */
+	private DBUtility<MinionEntity> dbUtil(int shard) {
+		return shard == 0 ? dbUtil : new DBUtility<MinionEntity>(shard);
+	}
+	
 }
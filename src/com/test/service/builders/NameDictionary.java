@@ -0,0 +1,182 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Dictionary of strings, each stored once as UTF-8 and identified by a small int.
+ * The strings are packed end to end in one byte array and found through an open-addressing table of ints,
+ * so a name costs its UTF-8 bytes plus about 12 bytes, rather than the 80 or so of a String in a HashMap.
+ * Ids are handed out in order from 0 and never reused: a string stays in the dictionary until it is rebuilt.
+ * Not thread-safe: ReadReplica guards it with its lock
+ */
+final class NameDictionary {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// Largest fraction of the table in use before it is doubled
+	private static final float LOAD_FACTOR = 0.6f;
+
+	// The UTF-8 bytes of every string, end to end
+	private byte[] bytes = new byte[1024];
+	private int used;
+	// Start of each string in bytes, by id: the string ends where the next one starts
+	private int[] offsets = new int[65];
+	private int size;
+	// Open-addressing hash table of id + 1, 0 for an empty slot
+	private int[] table = new int[128];
+
+	/**
+	 * Get the id of a string, adding it if it is not already in the dictionary
+	 * @param value the string
+	 * @return the id
+	 */
+	int intern(String value) {
+		byte[] encoded = value.getBytes(UTF_8);
+		int slot = slot(encoded);
+
+		if (table[slot] != 0) {
+			return table[slot] - 1;
+		}
+
+		if (used + encoded.length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + encoded.length));
+		}
+		System.arraycopy(encoded, 0, bytes, used, encoded.length);
+		used += encoded.length;
+
+		if (size + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		int id = size++;
+		offsets[id + 1] = used;
+		table[slot] = id + 1;
+
+		if (size > table.length * LOAD_FACTOR) {
+			rehash();
+		}
+
+		return id;
+	}
+
+	/**
+	 * Get the id of a string, without adding it
+	 * @param value the string
+	 * @return the id, or -1 if the string is not in the dictionary
+	 */
+	int find(String value) {
+		return table[slot(value.getBytes(UTF_8))] - 1;
+	}
+
+	/**
+	 * Get a string
+	 * @param id of the string, from intern()
+	 * @return the string
+	 */
+	String get(int id) {
+		return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], UTF_8);
+	}
+
+	/**
+	 * Get the number of strings
+	 * @return one more than the highest id handed out
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the memory used, for the metrics
+	 * @return approximate size of the arrays in bytes
+	 */
+	long getBytes() {
+		return bytes.length + 4L * offsets.length + 4L * table.length;
+	}
+
+	/**
+	 * Find the slot for a string: either the one holding it, or the empty one where it belongs
+	 * @param encoded the UTF-8 bytes of the string
+	 * @return index into the table
+	 */
+	private int slot(byte[] encoded) {
+		int mask = table.length - 1;
+		int slot = hash(encoded, 0, encoded.length) & mask;
+
+		while (table[slot] != 0 && !matches(table[slot] - 1, encoded)) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Check whether a string in the dictionary has the given bytes
+	 * @param id of the string in the dictionary
+	 * @param encoded the bytes to compare with
+	 * @return true if they are the same
+	 */
+	private boolean matches(int id, byte[] encoded) {
+		int start = offsets[id];
+
+		if (offsets[id + 1] - start != encoded.length) {
+			return false;
+		}
+
+		for (int i = 0; i < encoded.length; i++) {
+			if (bytes[start + i] != encoded[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Double the table, and put every id back in it
+	 */
+	private void rehash() {
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+
+		for (int id = 0; id < size; id++) {
+			int slot = hash(bytes, offsets[id], offsets[id + 1] - offsets[id]) & mask;
+
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	/**
+	 * Hash some bytes, spreading the bits so that the low ones can be used as an index
+	 * @param data the bytes
+	 * @param start of the bytes to hash
+	 * @param length number of bytes to hash
+	 * @return the hash
+	 */
+	private static int hash(byte[] data, int start, int length) {
+		int hash = 1;
+
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + data[i];
+		}
+
+		return hash ^ (hash >>> 16) ^ (hash >>> 8);
+	}
+}
@@ -0,0 +1,691 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.eclipse.persistence.queries.ScrollableCursor;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+
+/**
+ * Counting Bloom filter over the names of the parents, and another over the names of the minions, so that a
+ * lookup of a name which doesn't exist is answered without going to the DB: a name the filter has never seen is
+ * certainly not there, while one it may have seen is looked up as before.
+ * The filters are built from the DB by a background thread when the application starts, and kept current by
+ * DBUtility. Names are added as soon as they are written, before the commit, so a name is never missing from the
+ * filter once it can be read: a rollback just leaves a false positive. Names are removed only once the delete has
+ * committed, and only if the filter was built before the transaction started. Deletes which don't know the names
+ * (the minions of a deleted parent) leave false positives, which go when the filter is next built: when the names
+ * outgrow its capacity, or after removing everything of a type.
+ * Each counter is 4 bits, 16 to a long, and one that reaches 15 is never decremented again.
+ * Only changes made through this server reach the filters, so a name created by another server would be reported
+ * missing: only enable the filter when this server is the only one writing to the DB.
+ * Off by default: enable with the nameFilter/enabled setting
+ */
+public final class NameFilter {
+
+	// JNDI name of the container's default managed thread factory, whose threads have the java:comp context
+	private static final String THREAD_FACTORY_JNDI_NAME = "java:comp/DefaultManagedThreadFactory";
+
+	private static final int COUNTER_BITS = 4;
+	private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+	private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+	private static final int MAX_HASHES = 16;
+
+	private static final boolean ENABLED = Settings.getBoolean("nameFilter/enabled", false);
+	// False positives the filter is sized for, per thousand lookups of names that don't exist
+	private static final double FALSE_POSITIVE_RATE = Math.min(500, Math.max(1, Settings.getInt("nameFilter/falsePositivesPerThousand", 10))) / 1000.0;
+	// Room left for new names when the filter is built, as a percentage of the names in the DB
+	private static final int GROWTH_PERCENT = Math.max(0, Settings.getInt("nameFilter/growthPercent", 100));
+	// Fewest names a filter is sized for, so that an empty DB doesn't need a rebuild straight away
+	private static final long MIN_CAPACITY = Math.max(1, Settings.getLong("nameFilter/minCapacity", 10000));
+	// Rows fetched from the DB at a time when building the filter
+	private static final int FETCH_SIZE = Math.max(1, Settings.getInt("nameFilter/fetchSize", 1000));
+	// How long to wait before building again after the DB has failed
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("nameFilter/retryMillis", 5000));
+
+	private static final NameFilter PARENTS = new NameFilter(ParentEntity.TYPE, "parents", 0);
+	private static final NameFilter MINIONS = new NameFilter(MinionEntity.TYPE, "minions", 1);
+	private static final NameFilter[] FILTERS = {PARENTS, MINIONS};
+
+	// The transaction running on each thread: DBUtility begins and ends it with its own
+	private static final ThreadLocal<Transaction> CURRENT = new ThreadLocal<Transaction>();
+	// Transactions which have begun and not ended: their names are added to a filter that starts building
+	private static final Set<Transaction> OPEN = Collections.newSetFromMap(new ConcurrentHashMap<Transaction, Boolean>());
+
+	private static final AtomicLong FAILURES = new AtomicLong();
+
+	private static volatile Thread builder;
+	private static volatile boolean stopping;
+
+	static {
+		Metrics.register("nameFilter", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("enabled", ENABLED);
+				values.put("failures", FAILURES.get());
+				for (NameFilter filter: FILTERS) {
+					filter.report(values);
+				}
+			}
+		});
+	}
+
+	private final String type;
+	private final String metricPrefix;
+	private final int index;
+
+	// Set when the filter has to be built, and cleared by the background thread when it starts building
+	private final AtomicBoolean requested = new AtomicBoolean(true);
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+	private final AtomicLong lastBuildMillis = new AtomicLong();
+
+	// The filter lookups use: null until it has been built
+	private volatile Counters current;
+	// The filter being built, which gets the names added in the meantime as well: guarded by this
+	private Counters building;
+
+	private NameFilter(String type, String metricPrefix, int index) {
+		this.type = type;
+		this.metricPrefix = metricPrefix + ".";
+		this.index = index;
+	}
+
+	/**
+	 * Start the background thread, which builds the filters and then rebuilds them when they are outgrown
+	 */
+	public static synchronized void start() {
+		if (!ENABLED || builder != null) {
+			return;
+		}
+
+		ThreadFactory threads;
+		try {
+			threads = (ThreadFactory) new InitialContext().lookup(THREAD_FACTORY_JNDI_NAME);
+		}
+		catch (NamingException ne) {
+			System.out.println("ERROR no managed thread factory, the name filter is disabled: " + ne.getMessage());
+			return;
+		}
+
+		stopping = false;
+		builder = threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				buildWhenRequested();
+			}
+		});
+		builder.setName("NameFilter builder");
+		builder.start();
+	}
+
+	/**
+	 * Stop the background thread and drop the filters: lookups go back to the DB
+	 */
+	public static synchronized void stop() {
+		Thread thread = builder;
+
+		if (thread == null) {
+			return;
+		}
+
+		stopping = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		builder = null;
+		for (NameFilter filter: FILTERS) {
+			filter.current = null;
+			filter.requested.set(true);
+		}
+	}
+
+	/**
+	 * Check whether a name is certainly not in the DB, so the lookup can be skipped
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name to look up
+	 * @return true if there is no parent or minion with this name, false if there may be one (or the filter is
+	 * disabled or not built yet)
+	 */
+	public static boolean isMissing(String type, String name) {
+		NameFilter filter = forType(type);
+		Counters counters = filter == null ? null : filter.current;
+
+		if (counters == null || name == null) {
+			return false;
+		}
+
+		if (counters.mightContain(name)) {
+			filter.passes.incrementAndGet();
+			return false;
+		}
+
+		filter.misses.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Start tracking the names changed by the transaction beginning on this thread, replacing any transaction that
+	 * was never ended
+	 */
+	static void begin() {
+		if (!ENABLED) {
+			return;
+		}
+
+		Transaction abandoned = CURRENT.get();
+		if (abandoned != null) {
+			OPEN.remove(abandoned);
+		}
+
+		Transaction transaction = new Transaction();
+		CURRENT.set(transaction);
+		OPEN.add(transaction);
+	}
+
+	/**
+	 * Add the name of an entity which is being created
+	 * @param entity the new parent or minion: other entities are ignored
+	 */
+	static void added(DBEntity entity) {
+		added(typeOf(entity), entity.getName());
+	}
+
+	/**
+	 * Add a name which is being created or renamed to: straight away, so that it is in the filter before the
+	 * transaction commits
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name the new name
+	 */
+	static void added(String type, String name) {
+		NameFilter filter = forType(type);
+
+		if (filter == null || name == null) {
+			return;
+		}
+
+		// Recorded first, so that a filter which starts building from now on gets it one way or the other
+		Transaction transaction = CURRENT.get();
+		if (transaction != null) {
+			transaction.added(filter, name);
+		}
+		filter.add(name);
+	}
+
+	/**
+	 * Remove the name of an entity which is being deleted, once the transaction commits
+	 * @param entity the parent or minion: other entities are ignored
+	 */
+	static void removed(DBEntity entity) {
+		removed(typeOf(entity), entity.getName(), 1);
+	}
+
+	/**
+	 * Remove a name which is being deleted or renamed from, once the transaction commits
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name the old name
+	 * @param count the number of rows with this name which are being deleted
+	 */
+	static void removed(String type, String name, int count) {
+		NameFilter filter = forType(type);
+		Transaction transaction = CURRENT.get();
+
+		// Without a transaction there is no commit to wait for, so the name is left as a false positive
+		if (filter != null && name != null && transaction != null) {
+			transaction.removed(filter, name, count);
+		}
+	}
+
+	/**
+	 * Rebuild a filter once the transaction commits: for deletes of a whole type, whose names aren't known
+	 * @param type ParentEntity.TYPE, MinionEntity.TYPE, or null for both
+	 */
+	static void rebuild(String type) {
+		Transaction transaction = CURRENT.get();
+
+		if (transaction != null) {
+			for (NameFilter filter: FILTERS) {
+				if (type == null || filter.type.equals(type)) {
+					transaction.rebuild(filter);
+				}
+			}
+		}
+	}
+
+	/**
+	 * End the transaction on this thread, which has committed: remove the names it deleted
+	 */
+	static void commit() {
+		Transaction transaction = end();
+
+		if (transaction != null) {
+			for (NameFilter filter: FILTERS) {
+				transaction.apply(filter);
+			}
+		}
+	}
+
+	/**
+	 * End the transaction on this thread, which has rolled back: the names it added stay as false positives
+	 */
+	static void rollback() {
+		end();
+	}
+
+	private static Transaction end() {
+		Transaction transaction = CURRENT.get();
+
+		if (transaction != null) {
+			CURRENT.remove();
+			OPEN.remove(transaction);
+		}
+
+		return transaction;
+	}
+
+	private static NameFilter forType(String type) {
+		if (!ENABLED) {
+			return null;
+		}
+		if (ParentEntity.TYPE.equals(type)) {
+			return PARENTS;
+		}
+		if (MinionEntity.TYPE.equals(type)) {
+			return MINIONS;
+		}
+		return null;
+	}
+
+	private static String typeOf(DBEntity entity) {
+		if (entity instanceof ParentEntity) {
+			return ParentEntity.TYPE;
+		}
+		return entity instanceof MinionEntity ? MinionEntity.TYPE : null;
+	}
+
+	/**
+	 * Run by the background thread: build each filter when asked to, and wait for the next request
+	 */
+	private static void buildWhenRequested() {
+		while (!stopping) {
+			boolean failed = false;
+
+			for (NameFilter filter: FILTERS) {
+				if (!stopping && filter.requested.getAndSet(false) && !filter.build()) {
+					filter.requested.set(true);
+					failed = true;
+				}
+			}
+
+			if (failed) {
+				LockSupport.parkNanos(RETRY_NANOS);
+			}
+			else if (!PARENTS.requested.get() && !MINIONS.requested.get()) {
+				LockSupport.park(NameFilter.class);
+			}
+		}
+	}
+
+	/**
+	 * Ask the background thread to build this filter again
+	 */
+	private void requestBuild() {
+		requested.set(true);
+
+		Thread thread = builder;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Add a name to the filter in use and to the one being built
+	 * @param name the name
+	 */
+	private synchronized void add(String name) {
+		Counters counters = current;
+
+		if (counters != null && counters.add(name)) {
+			requestBuild();
+		}
+		if (building != null) {
+			building.add(name);
+		}
+	}
+
+	/**
+	 * Build a new filter from the names in the DB, sized for the number there now, and put it in use
+	 * @return true if it was built, false if the DB failed: the filter in use, if any, stays
+	 */
+	private boolean build() {
+		long start = System.currentTimeMillis();
+
+		try {
+			long expected = ReadDBUtility.countAll(type);
+			Counters fresh = new Counters(Math.max(MIN_CAPACITY, expected + expected * GROWTH_PERCENT / 100));
+
+			synchronized (this) {
+				building = fresh;
+			}
+
+			// Names added by transactions which may commit after the scan has gone past them
+			for (Transaction transaction: OPEN) {
+				transaction.addTo(this, fresh);
+			}
+
+			for (int shard = 0; shard < ShardRouter.count() && !stopping; shard++) {
+				scan(shard, fresh);
+			}
+
+			synchronized (this) {
+				building = null;
+				if (stopping) {
+					return true;
+				}
+				current = fresh;
+			}
+
+			builds.incrementAndGet();
+			lastBuildMillis.set(System.currentTimeMillis() - start);
+			System.out.println("Name filter for " + type + " built in " + lastBuildMillis.get() + "ms: " + fresh.entries.get() + " names");
+
+			return true;
+		}
+		catch (RuntimeException re) {
+			synchronized (this) {
+				building = null;
+			}
+			FAILURES.incrementAndGet();
+			System.out.println("ERROR building the name filter for " + type + ": " + re.getMessage());
+
+			return false;
+		}
+	}
+
+	/**
+	 * Add all the names of this type on a shard, through a cursor
+	 * @param shard index of the shard
+	 * @param counters the filter to add them to
+	 */
+	private void scan(int shard, Counters counters) {
+		ReadDBUtility<DBEntity> reader = new ReadDBUtility<DBEntity>(shard);
+
+		try {
+			ScrollableCursor names = reader.scrollNames(type, FETCH_SIZE);
+			try {
+				while (names.hasNext()) {
+					counters.add((String) names.next());
+				}
+			}
+			finally {
+				names.close();
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private void report(Map<String, Object> values) {
+		Counters counters = current;
+
+		values.put(metricPrefix + "ready", counters != null);
+		values.put(metricPrefix + "misses", misses.get());
+		values.put(metricPrefix + "passes", passes.get());
+		values.put(metricPrefix + "builds", builds.get());
+		values.put(metricPrefix + "lastBuildMillis", lastBuildMillis.get());
+		if (counters != null) {
+			values.put(metricPrefix + "entries", counters.entries.get());
+			values.put(metricPrefix + "capacity", counters.capacity);
+			values.put(metricPrefix + "hashes", counters.hashes);
+			values.put(metricPrefix + "memoryBytes", (long) counters.words.length() * (Long.SIZE / Byte.SIZE));
+			values.put(metricPrefix + "falsePositiveRate", counters.falsePositiveRate());
+		}
+	}
+
+	/**
+	 * The names a transaction has added, which are added again to a filter which starts building while it runs,
+	 * and the names it has deleted, which are removed when it commits
+	 */
+	private static final class Transaction {
+		// For each filter, by index
+		private final List<List<String>> added = new ArrayList<List<String>>();
+		private final List<List<String>> removed = new ArrayList<List<String>>();
+		private final Counters[] atBegin = new Counters[FILTERS.length];
+		private final boolean[] rebuild = new boolean[FILTERS.length];
+
+		Transaction() {
+			for (NameFilter filter: FILTERS) {
+				added.add(new ArrayList<String>());
+				removed.add(new ArrayList<String>());
+				atBegin[filter.index] = filter.current;
+			}
+		}
+
+		synchronized void added(NameFilter filter, String name) {
+			added.get(filter.index).add(name);
+		}
+
+		synchronized void addTo(NameFilter filter, Counters counters) {
+			for (String name: added.get(filter.index)) {
+				counters.add(name);
+			}
+		}
+
+		void removed(NameFilter filter, String name, int count) {
+			for (int i = 0; i < count; i++) {
+				removed.get(filter.index).add(name);
+			}
+		}
+
+		void rebuild(NameFilter filter) {
+			rebuild[filter.index] = true;
+		}
+
+		/**
+		 * Remove the deleted names from a filter, unless it was built while the transaction ran: the build may
+		 * not have seen the rows, and a counter decremented for a name it doesn't hold could hide another name
+		 * @param filter the filter
+		 */
+		void apply(NameFilter filter) {
+			Counters counters = filter.current;
+
+			if (counters != null && counters == atBegin[filter.index]) {
+				for (String name: removed.get(filter.index)) {
+					counters.remove(name);
+				}
+			}
+			if (rebuild[filter.index]) {
+				filter.requestBuild();
+			}
+		}
+	}
+
+	/**
+	 * The counters of one filter, 4 bits each, sized for a number of names and the false positive rate.
+	 * Counters are updated with compare-and-set, so lookups never wait
+	 */
+	private static final class Counters {
+		private final AtomicLongArray words;
+		private final long size;
+		private final int hashes;
+		private final long capacity;
+
+		private final AtomicLong entries = new AtomicLong();
+		// Counters which are not zero, for the false positive rate
+		private final AtomicLong set = new AtomicLong();
+		private final AtomicBoolean outgrown = new AtomicBoolean();
+
+		Counters(long capacity) {
+			// The optimal size for n names and rate p is -n ln(p) / (ln 2)^2 counters, with (size / n) ln 2 hashes
+			double optimal = -capacity * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+			int length = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (long) Math.ceil(optimal / COUNTERS_PER_WORD)));
+
+			this.words = new AtomicLongArray(length);
+			this.size = (long) length * COUNTERS_PER_WORD;
+			this.hashes = (int) Math.min(MAX_HASHES, Math.max(1, Math.round((double) size / capacity * Math.log(2))));
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Add a name
+		 * @param name the name
+		 * @return true if this is the first name beyond the capacity, so the filter should be built again
+		 */
+		boolean add(String name) {
+			long hash = hash(name);
+
+			for (int i = 0; i < hashes; i++) {
+				increment(index(hash, i));
+			}
+
+			return entries.incrementAndGet() > capacity && outgrown.compareAndSet(false, true);
+		}
+
+		void remove(String name) {
+			long hash = hash(name);
+
+			for (int i = 0; i < hashes; i++) {
+				decrement(index(hash, i));
+			}
+			entries.decrementAndGet();
+		}
+
+		boolean mightContain(String name) {
+			long hash = hash(name);
+
+			for (int i = 0; i < hashes; i++) {
+				long index = index(hash, i);
+				if (counter(words.get((int) (index / COUNTERS_PER_WORD)), index) == 0) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Estimate the false positive rate from the counters which are set
+		 * @return the chance that a name which was never added is reported as possibly there
+		 */
+		double falsePositiveRate() {
+			return Math.pow((double) set.get() / size, hashes);
+		}
+
+		private void increment(long index) {
+			int word = (int) (index / COUNTERS_PER_WORD);
+			long one = 1L << shift(index);
+
+			while (true) {
+				long value = words.get(word);
+				long counter = counter(value, index);
+
+				// Saturated: the true count is no longer known, so it stays
+				if (counter == COUNTER_MASK) {
+					return;
+				}
+				if (words.compareAndSet(word, value, value + one)) {
+					if (counter == 0) {
+						set.incrementAndGet();
+					}
+					return;
+				}
+			}
+		}
+
+		private void decrement(long index) {
+			int word = (int) (index / COUNTERS_PER_WORD);
+			long one = 1L << shift(index);
+
+			while (true) {
+				long value = words.get(word);
+				long counter = counter(value, index);
+
+				if (counter == 0 || counter == COUNTER_MASK) {
+					return;
+				}
+				if (words.compareAndSet(word, value, value - one)) {
+					if (counter == 1) {
+						set.decrementAndGet();
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Get the i-th counter for a hash, by double hashing: the two halves of the hash give every index
+		 */
+		private long index(long hash, int i) {
+			long combined = (int) hash + (long) i * ((int) (hash >>> 32) | 1);
+
+			return (combined & Long.MAX_VALUE) % size;
+		}
+
+		private static int shift(long index) {
+			return (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		}
+
+		private static long counter(long word, long index) {
+			return (word >>> shift(index)) & COUNTER_MASK;
+		}
+
+		/**
+		 * 64-bit hash of a name: FNV-1a over the characters, then mixed so that both halves are usable
+		 */
+		private static long hash(String name) {
+			long hash = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < name.length(); i++) {
+				hash ^= name.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+
+			return hash;
+		}
+	}
+}
@@ -37,9 +37,9 @@ public class ParentBuilder extends Builder<ParentEntity, Parent> {
 	 * Build a parentEntity based on an incoming parent element
 	 * @param parent with incoming (user) data
 	 * @return the entity object populated with the same parameters
-	 * @throws IllegalArgumentException if the name is not set
+	 * @throws ServiceException.BadRequest if the name is not set
 	 */
-	public ParentEntity createEntityFromElement(Parent parent) throws IllegalArgumentException{
+	public ParentEntity createEntityFromElement(Parent parent) throws ServiceException {
 		ParentEntity pe = new ParentEntity();
 
 		// Call the superclass to populate common parameters (name and description)
@@ -77,4 +77,26 @@ public class ParentBuilder extends Builder<ParentEntity, Parent> {
 		
 		return parent;
 	}	
+	
+	/**
+	 * Build a parent element which carries the number of minions and a link to them, instead of all their names:
+	 * the minions relationship is not read, so large parents stay cheap
+	 * @param pEntity the parent DB entity
+	 * @param minionCount number of minions the parent has
+	 * @param minionsLink link to the pages of minions
+	 * @return a populated parent element
+	 */
+	public Parent createSummaryFromEntity(ParentEntity pEntity, long minionCount, String minionsLink) {
+		Parent parent = new Parent();
+		
+		// Call the superclass to populate common parameters (name and description)
+		parent = super.populateElementFromEntity(parent, pEntity);
+		
+		parent.setMinionNames(null);
+		parent.setMinionCount(minionCount);
+		parent.setMinionsLink(minionsLink);
+		parent.setLastMinionChange(pEntity.getLastMinionChange());
+		
+		return parent;
+	}
 }
@@ -0,0 +1,138 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of parent ids by name for each shard, so that a minion create or reparent can set its parent with
+ * EntityManager.getReference() rather than reading the parent.
+ * An id from the cache is only trusted together with an update which checks that the parent still has the name:
+ * the update of the parent's minion count, which the write makes anyway (see DBUtility). So an entry made out of
+ * date by another server, or by a rename racing with the lookup, costs one more query, and never puts a minion
+ * under the wrong parent. Renames and deletes on this server drop their entries straight away.
+ * Holds at most parentIds/maxEntries names for each shard: when full, an arbitrary entry is dropped.
+ * On by default: disable with the parentIds/enabled setting
+ */
+final class ParentIds {
+
+	private static final boolean ENABLED = Settings.getBoolean("parentIds/enabled", true);
+	private static final int MAX_ENTRIES = Math.max(1, Settings.getInt("parentIds/maxEntries", 10000));
+
+	private static final List<Map<String, Integer>> SHARDS = new ArrayList<Map<String, Integer>>();
+
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong STALE = new AtomicLong();
+
+	static {
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			SHARDS.add(new ConcurrentHashMap<String, Integer>());
+		}
+
+		Metrics.register("parentIds", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				int size = 0;
+				for (Map<String, Integer> ids: SHARDS) {
+					size += ids.size();
+				}
+
+				values.put("enabled", ENABLED);
+				values.put("size", size);
+				values.put("hits", HITS.get());
+				values.put("misses", MISSES.get());
+				values.put("stale", STALE.get());
+			}
+		});
+	}
+
+	private ParentIds() {
+	}
+
+	/**
+	 * Get the id of a parent, if it is cached
+	 * @param shard index of the shard holding the parent
+	 * @param name of the parent
+	 * @return the id, or null if it is not cached
+	 */
+	static Integer get(int shard, String name) {
+		Integer id = ENABLED ? SHARDS.get(shard).get(name) : null;
+
+		(id == null ? MISSES : HITS).incrementAndGet();
+
+		return id;
+	}
+
+	/**
+	 * Cache the id of a parent
+	 * @param shard index of the shard holding the parent
+	 * @param name of the parent
+	 * @param id of the parent
+	 */
+	static void put(int shard, String name, Integer id) {
+		if (!ENABLED) {
+			return;
+		}
+
+		Map<String, Integer> ids = SHARDS.get(shard);
+
+		// Make room first: the size of a concurrent map is only an estimate, which is all the bound needs
+		if (ids.size() >= MAX_ENTRIES) {
+			Iterator<String> names = ids.keySet().iterator();
+			if (names.hasNext()) {
+				names.next();
+				names.remove();
+			}
+		}
+		ids.put(name, id);
+	}
+
+	/**
+	 * Drop the id of a parent which was found to be out of date
+	 * @param shard index of the shard holding the parent
+	 * @param name of the parent
+	 */
+	static void stale(int shard, String name) {
+		STALE.incrementAndGet();
+		remove(shard, name);
+	}
+
+	/**
+	 * Drop the id of a parent which has been renamed or deleted
+	 * @param shard index of the shard holding the parent
+	 * @param name of the parent
+	 */
+	static void remove(int shard, String name) {
+		if (name != null) {
+			SHARDS.get(shard).remove(name);
+		}
+	}
+
+	/**
+	 * Drop every id on a shard, after all its parents have been deleted
+	 * @param shard index of the shard
+	 */
+	static void clear(int shard) {
+		SHARDS.get(shard).clear();
+	}
+}
@@ -16,19 +16,32 @@
 
 package com.test.service.builders;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-
-import javax.ws.rs.NotFoundException;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.test.service.jpa.DBEntity;
 import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Batch;
+import com.test.service.model.Minion;
+import com.test.service.model.MinionPage;
 import com.test.service.model.Parent;
+import com.test.service.model.ParentStats;
 
 /**
  * Implementation of the RESTful ParentService
  */
 public class ParentServiceHelper {
+	// Shared by all helpers, so that identical concurrent reads run a single query
+	private static final RequestCoalescer<List<Parent>> READS = new RequestCoalescer<List<Parent>>("parent.reads");
+	// The message never changes, so this is thrown as it is
+	private static final ServiceException TO_NAME_MISSING = new ServiceException.BadRequest("The name of the parent to move the minions to is mandatory");
 	// Local copy of the DBUtility used to manage interactions with the database
 	private DBUtility<ParentEntity> dbUtil;
 	// Builder for converting between parent element and DB entity
@@ -43,35 +56,464 @@ public class ParentServiceHelper {
     /**
      * Get a list of parents matching the name
      * @param name to match, null for all parents
-     * @return list of minion elements
+     * @return list of parent elements
      */    
-	public List<Parent> get(String name) {
+	public List<Parent> get(final String name) {
+		// Served from memory if the read replica is enabled and loaded
+		List<Parent> replica = ReadReplica.getParents(name, false);
+		if (replica != null) {
+			return replica;
+		}
+		
+		// A name the filter has never seen is not in the DB
+		if (NameFilter.isMissing(ParentEntity.TYPE, name)) {
+			return new ArrayList<Parent>();
+		}
+		
+		// Join any identical read already in flight rather than running the same query again
+		List<Parent> shared = READS.get(RequestCoalescer.key(ParentEntity.TYPE, name), new Callable<List<Parent>>() {
+			@Override
+			public List<Parent> call() {
+				return load(name);
+			}
+		});
+		
+		// The list may be shared with other callers, so hand out a copy
+		return new ArrayList<Parent>(shared);
+	}
+	
+	/**
+	 * Get a list of parents matching the name, each with the number of minions and a link to them instead of
+	 * the minion names
+	 * @param name to match, null for all parents
+	 * @param linkBase base URI of the service, which the links to the minions are built on
+	 * @return list of parent elements
+	 */
+	public List<Parent> getSummaries(final String name, final String linkBase) {
+		List<Parent> replica = ReadReplica.getParents(name, true);
+		if (replica != null) {
+			for (Parent parent: replica) {
+				parent.setMinionsLink(minionsLink(linkBase, parent.getName()));
+			}
+			return replica;
+		}
+		
+		if (NameFilter.isMissing(ParentEntity.TYPE, name)) {
+			return new ArrayList<Parent>();
+		}
+		
+		List<Parent> shared = READS.get(RequestCoalescer.key(ParentEntity.TYPE, name, "summary", linkBase), new Callable<List<Parent>>() {
+			@Override
+			public List<Parent> call() {
+				if (name != null) {
+					return loadSummaries(ShardRouter.shardFor(name), name, linkBase);
+				}
+				
+				return ShardRouter.gather(ShardRouter.scatter(new ShardRouter.ShardTask<List<Parent>>() {
+					@Override
+					public List<Parent> run(int shard) {
+						return loadSummaries(shard, name, linkBase);
+					}
+				}));
+			}
+		});
+		
+		// The list may be shared with other callers, so hand out a copy
+		return new ArrayList<Parent>(shared);
+	}
+	
+	/**
+	 * Get the parents with any of a list of names: a single query on each shard holding any of them for each
+	 * multiGet/namesPerQuery names, rather than one for each name
+	 * @param names to match, without duplicates
+	 * @param summary true for the number of minions and a link to them instead of the minion names
+	 * @param linkBase base URI of the service, which the links to the minions are built on
+	 * @return the parents in the order of the names, with the names that were not found
+	 */
+	public Batch<Parent> get(List<String> names, final boolean summary, final String linkBase) {
+		Map<String, Parent> byName = new HashMap<String, Parent>();
+		
+		// Served from memory if the read replica is enabled and loaded
+		if (!fromReplica(names, summary, linkBase, byName)) {
+			// Each parent is on the shard its name maps to, so each shard is only asked for its own names
+			final List<List<String>> namesByShard = new ArrayList<List<String>>();
+			for (int shard = 0; shard < ShardRouter.count(); shard++) {
+				namesByShard.add(new ArrayList<String>());
+			}
+			for (String name: names) {
+				// Names the filter has never seen are left out, and reported missing
+				if (!NameFilter.isMissing(ParentEntity.TYPE, name)) {
+					namesByShard.get(ShardRouter.shardFor(name)).add(name);
+				}
+			}
+			
+			List<List<Parent>> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<List<Parent>>() {
+				@Override
+				public List<Parent> run(int shard) {
+					List<String> shardNames = namesByShard.get(shard);
+					return shardNames.isEmpty() ? Collections.<Parent>emptyList() : load(shard, shardNames, summary, linkBase);
+				}
+			});
+			
+			for (List<Parent> parents: perShard) {
+				for (Parent parent: parents) {
+					byName.put(parent.getName(), parent);
+				}
+			}
+		}
+		
+		Batch<Parent> batch = new Batch<Parent>();
+		for (String name: names) {
+			batch.add(name, byName.get(name));
+		}
+		
+		return batch;
+	}
+	
+	/**
+	 * Look up parents in the read replica
+	 * @param names to match
+	 * @param summary true for summaries
+	 * @param linkBase base URI of the service
+	 * @param byName to add the parents found to
+	 * @return true if the replica answered for every name, false if the DB has to be read instead
+	 */
+	private static boolean fromReplica(List<String> names, boolean summary, String linkBase, Map<String, Parent> byName) {
+		for (String name: names) {
+			List<Parent> replica = ReadReplica.getParents(name, summary);
+			if (replica == null) {
+				byName.clear();
+				return false;
+			}
+			if (!replica.isEmpty()) {
+				Parent parent = replica.get(0);
+				if (summary) {
+					parent.setMinionsLink(minionsLink(linkBase, name));
+				}
+				byName.put(name, parent);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Count the parents, without loading them
+	 * @return the number of parents
+	 */
+	public long count() {
+		return ReadDBUtility.countAll(ParentEntity.TYPE);
+	}
+	
+	/**
+	 * Correct the maintained minion counts of the parents on every shard
+	 * @return the number of parents whose count was corrected
+	 */
+	public int repairMinionCounts() {
+		List<Integer> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<Integer>() {
+			@Override
+			public Integer run(int shard) {
+				return new DBUtility<ParentEntity>(shard).repairMinionCounts();
+			}
+		});
+		
+		int repaired = 0;
+		for (Integer count: perShard) {
+			repaired += count;
+		}
+		
+		return repaired;
+	}
+	
+	/**
+	 * Count the parents and minions, and the minions of each parent, without loading any entities:
+	 * a single grouped query on each shard
+	 * @return the counts
+	 */
+	public ParentStats getStats() {
+		List<List<Object[]>> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<List<Object[]>>() {
+			@Override
+			public List<Object[]> run(int shard) {
+				ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(shard);
+				
+				try {
+					return reader.getParentStats();
+				}
+				finally {
+					reader.close();
+				}
+			}
+		});
+		
+		// Each shard's rows are in name order, but the shards need merging
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (List<Object[]> shardRows: perShard) {
+			rows.addAll(shardRows);
+		}
+		if (perShard.size() > 1) {
+			Collections.sort(rows, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] row1, Object[] row2) {
+					return ((String) row1[0]).compareTo((String) row2[0]);
+				}
+			});
+		}
+		
+		ParentStats stats = new ParentStats();
+		long minions = 0;
+		long maxMinions = 0;
+		
+		for (Object[] row: rows) {
+			long count = ((Number) row[1]).longValue();
+			
+			stats.getMinionCounts().put((String) row[0], count);
+			minions += count;
+			maxMinions = Math.max(maxMinions, count);
+		}
+		
+		stats.setParents(rows.size());
+		stats.setMinions(minions);
+		stats.setMaxMinions(maxMinions);
+		
+		return stats;
+	}
+	
+	/**
+	 * Get a page of the minions of a parent, in name order
+	 * @param name of the parent
+	 * @param after only return minions with names after this one, null for the first page
+	 * @param limit the most minions to return
+	 * @param summary true to include the minion descriptions, false for names only
+	 * @return the page: the after field is set if there are more minions
+	 * @throws ServiceException.NotFound if there is no parent with this name
+	 */
+	public MinionPage getMinionPage(String name, String after, int limit, boolean summary) throws ServiceException.NotFound {
+		if (NameFilter.isMissing(ParentEntity.TYPE, name)) {
+			throw new ServiceException.NotFound("No parent found with name " + name);
+		}
+		
+		MinionPage page = new MinionPage();
+		page.setParentName(name);
+		
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(ShardRouter.shardFor(name));
+		
+		try {
+			Integer parentId = reader.getParentId(name);
+			
+			if (parentId == null) {
+				throw new ServiceException.NotFound("No parent found with name " + name);
+			}
+			
+			// Ask for one extra row, to find out whether there is another page
+			List<Object[]> rows = reader.getMinionPage(parentId, after, limit + 1);
+			boolean more = rows.size() > limit;
+			
+			List<Minion> minions = summary ? new ArrayList<Minion>() : null;
+			
+			for (Object[] row: rows.subList(0, Math.min(limit, rows.size()))) {
+				page.getNames().add((String) row[0]);
+				
+				if (summary) {
+					Minion minion = new Minion();
+					minion.setName((String) row[0]);
+					minion.setDescription((String) row[1]);
+					minion.setParentName(name);
+					minions.add(minion);
+				}
+			}
+			
+			page.setMinions(minions);
+			if (more) {
+				page.setAfter(page.getNames().get(page.getNames().size() - 1));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		
+		return page;
+	}
+	
+	/**
+	 * Read the parents matching the name from one shard, with minion counts
+	 * @param shard index of the shard
+	 * @param name to match, null for all parents
+	 * @param linkBase base URI of the service
+	 * @return list of parent elements
+	 */
+	private List<Parent> loadSummaries(int shard, String name, String linkBase) {
+		List<Parent> elements = new ArrayList<Parent>();
+		
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(shard);
+		
+		try {
+			List<ParentEntity> entities = reader.getEntitiesByName(ParentEntity.TYPE, name);
+			
+			// The counts are maintained on the parents, so there is nothing else to read
+			for (ParentEntity pEntity: entities) {
+				elements.add(builder.createSummaryFromEntity(pEntity, pEntity.getMinionCount(), minionsLink(linkBase, pEntity.getName())));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		
+		return elements;
+	}
+	
+	/**
+	 * Build the link to the minions of a parent
+	 * @param linkBase base URI of the service, ending in /
+	 * @param name of the parent
+	 * @return the link
+	 */
+	private static String minionsLink(String linkBase, String name) {
+		try {
+			// URLEncoder is for forms, so put back the spaces it turns into '+'
+			return linkBase + "Parent/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20") + "/minions";
+		}
+		catch (UnsupportedEncodingException uee) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(uee);
+		}
+	}
+	
+	/**
+	 * Read the parents matching the name from the DB
+	 * @param name to match, null for all parents
+	 * @return list of parent elements
+	 */
+	private List<Parent> load(final String name) {
+		// A named parent is on a known shard: otherwise read every shard
+		if (name != null) {
+			return load(ShardRouter.shardFor(name), name);
+		}
+		
+		List<List<Parent>> perShard = ShardRouter.scatter(new ShardRouter.ShardTask<List<Parent>>() {
+			@Override
+			public List<Parent> run(int shard) {
+				return load(shard, name);
+			}
+		});
+		
+		return ShardRouter.gather(perShard);
+	}
+	
+	/**
+	 * Read the parents matching the name from one shard
+	 * @param shard index of the shard
+	 * @param name to match, null for all parents
+	 * @return list of parent elements
+	 */
+	private List<Parent> load(int shard, String name) {
 
 		// List of parent elements to return
 		List<Parent> elements = new ArrayList<Parent>();
 		
-		// Get the DB entities matching the name
-		List<ParentEntity> entities = dbUtil.getEntitiesByName(ParentEntity.TYPE, name);
+		// Reads don't need a transaction, so use the read-only persistence path
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(shard);
 		
-		// Convert each entity to an element
-		for(DBEntity entity: entities) {
-			ParentEntity pEntity = (ParentEntity) entity;
-			Parent parent = builder.createElementFromEntity(pEntity);
+		try {
+			// Get the DB entities matching the name
+			List<ParentEntity> entities = reader.getEntitiesByName(ParentEntity.TYPE, name);
 			
-			// Add the element to the list for return
-			elements.add(parent);
+			// Convert each entity to an element: the minions are read lazily, so this must happen before close
+			for(DBEntity entity: entities) {
+				ParentEntity pEntity = (ParentEntity) entity;
+				Parent parent = builder.createElementFromEntity(pEntity);
+				
+				// Add the element to the list for return
+				elements.add(parent);
+			}
+		}
+		finally {
+			reader.close();
 		}
 		
 		return elements;
 	}
 		
+	/**
+	 * Read the parents with any of a list of names from one shard
+	 * @param shard index of the shard
+	 * @param names to match
+	 * @param summary true for summaries
+	 * @param linkBase base URI of the service
+	 * @return list of parent elements, in no particular order
+	 */
+	private List<Parent> load(int shard, List<String> names, boolean summary, String linkBase) {
+		List<Parent> elements = new ArrayList<Parent>();
+		
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(shard);
+		
+		try {
+			for (ParentEntity pEntity: reader.getEntitiesByNames(ParentEntity.TYPE, names)) {
+				if (summary) {
+					elements.add(builder.createSummaryFromEntity(pEntity, pEntity.getMinionCount(), minionsLink(linkBase, pEntity.getName())));
+				}
+				else {
+					// The minions are read lazily, so this must happen before close
+					elements.add(builder.createElementFromEntity(pEntity));
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		
+		return elements;
+	}
+	
 	/**
 	 * Delete a parent
-	 * @param name of parent to delete
+	 * @param name of parent to delete, with all its minions
+	 * @throws ServiceException.NotFound if a name is given and there is no parent with that name
 	 */
-	public void delete(String name) {
+	public void delete(String name) throws ServiceException.NotFound {
+		
+		// Null name deletes all the parents, on every shard
+		if (name == null) {
+			for (int shard = 0; shard < ShardRouter.count(); shard++) {
+				dbUtil(shard).remove(ParentEntity.TYPE, name);
+			}
+			return;
+		}
 
-		dbUtil.remove(ParentEntity.TYPE, name);
+		// Delete the minions and then the parent with a statement each, rather than loading and cascading
+		dbUtil(ShardRouter.shardFor(name)).removeParent(name);
+	}
+	
+	/**
+	 * Move all the minions of one parent to another, without loading them
+	 * @param name of the parent which currently has the minions
+	 * @param toName name of the parent to move them to
+	 * @return the number of minions moved
+	 * @throws ServiceException.NotFound if either parent is not in the DB
+	 * @throws ServiceException.BadRequest if the new parent is missing or is on a different shard
+	 */
+	public int moveMinions(String name, String toName) throws ServiceException {
+		if (toName == null) {
+			throw TO_NAME_MISSING;
+		}
+		
+		int shard = ShardRouter.shardFor(name);
+		
+		// A single UPDATE can't move rows between databases
+		if (ShardRouter.shardFor(toName) != shard) {
+			throw new ServiceException.BadRequest("Parents " + name + " and " + toName + " are on different shards: move the minions individually");
+		}
+		
+		return dbUtil(shard).moveMinions(name, toName);
+	}
+	
+	/**
+	 * Delete all the minions of a parent, without loading them, leaving the parent in place
+	 * @param name of the parent
+	 * @return the number of minions deleted
+	 * @throws ServiceException.NotFound if the parent is not in the DB
+	 */
+	public int deleteMinions(String name) throws ServiceException.NotFound {
+		return dbUtil(ShardRouter.shardFor(name)).removeMinions(name);
 	}
 	
 	/**
@@ -79,12 +521,32 @@ public class ParentServiceHelper {
 	 * @param name of the existing entity
 	 * @param newParent new contents to update
 	 * @return the updated element
-	 * @throws NotFoundException if a Parent with the name is not found
+	 * @throws ServiceException.NotFound if a Parent with the name is not found
 	 *  
 	 */
-	public Parent update (String name, Parent newParent) throws IllegalArgumentException, NotFoundException {
-		// Update the contents
-		ParentEntity pEntity = dbUtil.updateParent(name, newParent);
+	public Parent update (final String name, final Parent newParent) throws ServiceException {
+		ParentEntity pEntity;
+		
+		int shard = ShardRouter.shardFor(name);
+		int targetShard = newParent.getName() == null ? shard : ShardRouter.shardFor(newParent.getName());
+		
+		// Update the contents, sharing a transaction with other concurrent writes if group commit is enabled
+		GroupCommitter committer = GroupCommitter.getInstance(shard);
+		if (targetShard != shard) {
+			// The new name belongs on another shard, so the parent and its minions have to move there
+			pEntity = dbUtil(shard).moveParent(dbUtil(targetShard), name, newParent);
+		}
+		else if (committer.isEnabled()) {
+			pEntity = committer.submit(new GroupCommitter.Write<ParentEntity>() {
+				@Override
+				protected ParentEntity apply(DBUtility<DBEntity> db) {
+					return db.applyParentUpdate(name, newParent);
+				}
+			});
+		}
+		else {
+			pEntity = dbUtil(shard).updateParent(name, newParent);
+		}
 		
 		// Convert the returned Entity to an element
 		Parent parent = builder.createElementFromEntity(pEntity);
@@ -96,22 +558,35 @@ public class ParentServiceHelper {
 	 * Write the contents of a parent to the DB
 	 * @param parent the new user-populated parent element
 	 * @return the parent contents that were written
-	 * @throws IllegalArgumentException if a parent with this name is already in the DB, or if a mandatory parameter is missing (name)
+	 * @throws ServiceException.Conflict if a parent with this name is already in the DB
+	 * @throws ServiceException.BadRequest if a mandatory parameter is missing (name)
 	 */
-	public Parent persist(Parent parent) throws IllegalArgumentException {
+	public Parent persist(Parent parent) throws ServiceException {
+		
+		// Parents are placed by name, so a duplicate could only be on the same shard
+		DBUtility<ParentEntity> shardUtil = dbUtil(ShardRouter.shardFor(parent.getName()));
 		
-		// Check the DB in case there is already a parent with this name
-		List<ParentEntity> existingEntities = dbUtil.getEntitiesByName(ParentEntity.TYPE, parent.getName());
-		if (existingEntities.size() > 0) {
-			throw new IllegalArgumentException("Parent with name " + parent.getName() + " already exists");
+		// Check the DB in case there is already a parent with this name, unless the filter has never seen it
+		if (!NameFilter.isMissing(ParentEntity.TYPE, parent.getName())
+				&& shardUtil.getEntitiesByName(ParentEntity.TYPE, parent.getName()).size() > 0) {
+			throw new ServiceException.Conflict("Parent with name " + parent.getName() + " already exists");
 		}
 		
 		// Convert the incoming parent to an entity object
 		ParentEntity pe = builder.createEntityFromElement(parent);
 		
 		// Persist the entity
-		dbUtil.persistObject(pe);
+		shardUtil.persistObject(pe);
 		
 		return parent;
 	}
+	
+	/**
+	 * Get the DBUtility for a shard
+	 * @param shard index of the shard
+	 * @return the utility
+	 */
+	private DBUtility<ParentEntity> dbUtil(int shard) {
+		return shard == 0 ? dbUtil : new DBUtility<ParentEntity>(shard);
+	}
 }
@@ -0,0 +1,398 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.queries.ScrollableCursor;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+
+/**
+ * Read-only access to the database, for the GET endpoints.
+ * Uses an application-managed entity manager on the non-JTA datasource (jdbc/DBConnectionNonXA), so reads
+ * are never enlisted in a transaction and don't pay for XA or the transaction manager. All writes stay on
+ * the JTA persistence context in DBUtility.
+ * The entity manager stays open until close() so that lazy relationships can be read while building
+ * elements: always call close() in a finally block
+ */
+public class ReadDBUtility<E extends DBEntity> {
+
+	/**
+	 * JNDI name of the read-only persistence unit: must match the persistence-unit-ref-name in web.xml
+	 * (with java:comp/env prefix added for Liberty)
+	 */
+	public static final String JNDI_NAME = "java:comp/env/TestServiceReadPU";
+
+	// EclipseLink query hint: return objects without registering them for change tracking
+	private static final String READ_ONLY_HINT = "eclipselink.read-only";
+	// EclipseLink query hint: false to read the lazy basic fields (minion contents) with the rest of the entity
+	private static final String FETCH_GROUP_DEFAULT_HINT = "eclipselink.fetch-group.default";
+
+	// EclipseLink query hint: return a cursor over the results, read from the database as they are used
+	private static final String SCROLLABLE_CURSOR_HINT = "eclipselink.cursor.scrollable";
+	// EclipseLink query hint: rows fetched from the database at a time
+	private static final String FETCH_SIZE_HINT = "eclipselink.jdbc.fetch-size";
+
+	// All the parents, in id order
+	private static final String PARENT_SCROLL_QUERY = "SELECT p FROM Parent p ORDER BY p.id";
+	// All the minions in parent id order, as columns: entities would each read their lazy contents with another query
+	private static final String MINION_SCROLL_QUERY =
+			"SELECT m.parent.id, m.name, m.description, m.contents, m.contentsHash FROM Minion m ORDER BY m.parent.id, m.name";
+	// First page of the minions of a parent
+	private static final String MINION_PAGE_QUERY =
+			"SELECT m.name, m.description FROM Minion m WHERE m.parent.id = :parentId ORDER BY m.name";
+	// Later pages of the minions of a parent: keyset paging, so no rows are skipped over
+	private static final String MINION_PAGE_AFTER_QUERY =
+			"SELECT m.name, m.description FROM Minion m WHERE m.parent.id = :parentId AND m.name > :after ORDER BY m.name";
+	// All the minions of a parent, as columns
+	private static final String MINION_ROWS_QUERY =
+			"SELECT m.name, m.description, m.contents, m.contentsHash FROM Minion m WHERE m.parent.id = :parentId";
+	// Number of minions of every parent by name, including parents with none: the counts are maintained, so no join is needed
+	private static final String PARENT_STATS_QUERY =
+			"SELECT p.name, COALESCE(p.minionCount, 0) FROM Parent p ORDER BY p.name";
+	// Number of entities of a type: the entity name is appended
+	private static final String COUNT_QUERY = "SELECT COUNT(e) FROM ";
+	// Names of all the entities of a type: the entity name is appended
+	private static final String ALL_NAMES_QUERY = "SELECT e.name FROM ";
+
+	// Most names in the IN list of a single query: longer lists are read in chunks
+	private static final int NAMES_PER_QUERY = Math.max(1, Settings.getInt("multiGet/namesPerQuery", 100));
+
+	// Factories for the read-only persistence unit of each shard: container-managed, so they are shared and never closed here
+	private static final AtomicReferenceArray<EntityManagerFactory> FACTORIES = new AtomicReferenceArray<EntityManagerFactory>(ShardRouter.count());
+	// Set for shards where the lookup failed, so that we don't retry (and log) it on every read
+	private static final AtomicIntegerArray UNAVAILABLE = new AtomicIntegerArray(ShardRouter.count());
+
+	// Shard this utility reads from
+	private final int shard;
+
+	// Application-managed entity manager, opened on first use
+	private EntityManager em;
+	// JTA utility, only used if the read-only persistence unit can't be found
+	private DBUtility<E> fallback;
+
+	/**
+	 * Default constructor, for the first (or only) shard
+	 */
+	public ReadDBUtility() {
+		this(0);
+	}
+
+	/**
+	 * Constructor for a specific shard, see ShardRouter
+	 * @param shard index of the shard: shard 0 uses JNDI_NAME, and shard n uses JNDI_NAME followed by n
+	 */
+	public ReadDBUtility(int shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Get a List of DB entity objects matching sub-class and name, without a transaction
+	 * The entities are read in full, including lazy fields such as the minion contents, because the GET
+	 * endpoints return them: otherwise each one would be read with a query of its own
+	 * @param type the name of a sub-class of DBEntity
+	 * @param name to match, can be null for all entries of the sub-class type
+	 * @return a List of read-only DBEntity objects matching the query, which must not be modified
+	 */
+	public List<E> getEntitiesByName(String type, String name) {
+		Query query = DBUtility.createNameQuery(getEntityManager(), type, name);
+		query.setHint(READ_ONLY_HINT, "true");
+		query.setHint(FETCH_GROUP_DEFAULT_HINT, "false");
+
+		List<E> results = DBUtility.getEntitiesFromQuery(query);
+
+		return results;
+	}
+
+	/**
+	 * Get a List of DB entity objects of a sub-class with any of a list of names, without a transaction
+	 * Each chunk of multiGet/namesPerQuery names is read with one query, in full like getEntitiesByName()
+	 * @param type the name of a sub-class of DBEntity
+	 * @param names to match
+	 * @return a List of read-only DBEntity objects, in no particular order, which must not be modified
+	 */
+	public List<E> getEntitiesByNames(String type, List<String> names) {
+		List<E> results = new ArrayList<E>();
+
+		for (int start = 0; start < names.size(); start += NAMES_PER_QUERY) {
+			List<String> chunk = names.subList(start, Math.min(names.size(), start + NAMES_PER_QUERY));
+
+			Query query = DBUtility.createNamesQuery(getEntityManager(), type, chunk);
+			query.setHint(READ_ONLY_HINT, "true");
+			query.setHint(FETCH_GROUP_DEFAULT_HINT, "false");
+
+			List<E> chunkResults = DBUtility.getEntitiesFromQuery(query);
+			results.addAll(chunkResults);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Get the id of a parent, without loading the parent
+	 * @param name of the parent
+	 * @return the id, or null if there is no parent with this name
+	 */
+	public Integer getParentId(String name) {
+		Query query = getEntityManager().createQuery(DBUtility.PARENT_ID_QUERY);
+		query.setParameter("name", name);
+		query.setMaxResults(1);
+
+		List<?> ids = query.getResultList();
+
+		return ids.isEmpty() ? null : (Integer) ids.get(0);
+	}
+
+	/**
+	 * Get a page of the minions of a parent, in name order. Uses the (parentId, name) index, so the cost
+	 * depends on the page size and not on the number of minions the parent has
+	 * @param parentId id of the parent, see getParentId()
+	 * @param after only return minions with names after this one, null to start at the beginning
+	 * @param limit the most minions to return
+	 * @return rows of minion name and description
+	 */
+	public List<Object[]> getMinionPage(Integer parentId, String after, int limit) {
+		Query query = getEntityManager().createQuery(after == null ? MINION_PAGE_QUERY : MINION_PAGE_AFTER_QUERY);
+		query.setParameter("parentId", parentId);
+		if (after != null) {
+			query.setParameter("after", after);
+		}
+		query.setMaxResults(limit);
+
+		// Each row is a name and description, as selected
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = (List<Object[]>) query.getResultList();
+
+		return rows;
+	}
+
+	/**
+	 * Get all the minions of a parent, including their contents, without loading them as entities
+	 * @param parentId id of the parent, see getParentId()
+	 * @return rows of minion name, description and contents: shared contents are already resolved
+	 */
+	public List<Object[]> getMinionRows(Integer parentId) {
+		Query query = getEntityManager().createQuery(MINION_ROWS_QUERY);
+		query.setParameter("parentId", parentId);
+
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Object row: query.getResultList()) {
+			Object[] columns = (Object[]) row;
+			rows.add(new Object[] {columns[0], columns[1], getContents(columns[2], columns[3])});
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Get the contents of a minion read through this utility, wherever they are stored
+	 * @param minion the minion entity
+	 * @return the contents
+	 */
+	public ArrayList<String> getContents(MinionEntity minion) {
+		return ContentDedup.resolve(getEntityManager(), minion.getContentsHash(), minion.getContents());
+	}
+
+	/**
+	 * Get the contents of a minion from the columns selected by a query
+	 * @param contents the contents column
+	 * @param contentsHash the contentsHash column
+	 * @return the contents
+	 */
+	public ArrayList<String> getContents(Object contents, Object contentsHash) {
+		// The contents column holds the list as written by MinionEntity
+		@SuppressWarnings("unchecked")
+		ArrayList<String> inline = (ArrayList<String>) contents;
+
+		return ContentDedup.resolve(getEntityManager(), (String) contentsHash, inline);
+	}
+
+	/**
+	 * Count the entities of a sub-class, without loading them
+	 * @param type the name of a sub-class of DBEntity
+	 * @return the number of entities
+	 */
+	public long count(String type) {
+		Query query = getEntityManager().createQuery(COUNT_QUERY + type + " e");
+
+		return ((Number) query.getSingleResult()).longValue();
+	}
+
+	/**
+	 * Count the entities of a sub-class on every shard, with a single query on each
+	 * @param type the name of a sub-class of DBEntity
+	 * @return the total number of entities
+	 */
+	public static long countAll(final String type) {
+		List<Long> counts = ShardRouter.scatter(new ShardRouter.ShardTask<Long>() {
+			@Override
+			public Long run(int shard) {
+				ReadDBUtility<DBEntity> reader = new ReadDBUtility<DBEntity>(shard);
+
+				try {
+					return reader.count(type);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		});
+
+		long total = 0;
+		for (Long count: counts) {
+			total += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Count the minions of every parent, in a single query, without loading them
+	 * @return rows of parent name and number of minions, in name order, including parents with no minions
+	 */
+	public List<Object[]> getParentStats() {
+		Query query = getEntityManager().createQuery(PARENT_STATS_QUERY);
+
+		// Each row is a name and a count, as selected
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = (List<Object[]>) query.getResultList();
+
+		return rows;
+	}
+
+	/**
+	 * Open a cursor over all the parents, in id order. The parents stay in the persistence context as they are
+	 * read, so call clear() every so often when reading a lot of them
+	 * @param fetchSize rows to fetch from the database at a time
+	 * @return the cursor of ParentEntity objects, which must be closed
+	 */
+	public ScrollableCursor scrollParents(int fetchSize) {
+		Query query = getEntityManager().createQuery(PARENT_SCROLL_QUERY);
+		query.setHint(READ_ONLY_HINT, "true");
+
+		return scroll(query, fetchSize);
+	}
+
+	/**
+	 * Open a cursor over all the minions, in the order of their parents' ids and then by name
+	 * @param fetchSize rows to fetch from the database at a time
+	 * @return the cursor of rows of parent id, name, description, contents and contents hash, which must be closed:
+	 * use getContents() for the contents
+	 */
+	public ScrollableCursor scrollMinions(int fetchSize) {
+		return scroll(getEntityManager().createQuery(MINION_SCROLL_QUERY), fetchSize);
+	}
+
+	/**
+	 * Open a cursor over the names of all the entities of a sub-class, without reading the entities
+	 * @param type the name of a sub-class of DBEntity
+	 * @param fetchSize rows to fetch from the database at a time
+	 * @return the cursor of names, which must be closed
+	 */
+	public ScrollableCursor scrollNames(String type, int fetchSize) {
+		return scroll(getEntityManager().createQuery(ALL_NAMES_QUERY + type + " e"), fetchSize);
+	}
+
+	/**
+	 * Drop the entities read so far from the persistence context, so that they can be garbage collected
+	 */
+	public void clear() {
+		getEntityManager().clear();
+	}
+
+	/**
+	 * Run a query as a server-side cursor
+	 * @param query the query
+	 * @param fetchSize rows to fetch from the database at a time
+	 * @return the cursor
+	 */
+	private static ScrollableCursor scroll(Query query, int fetchSize) {
+		query.setHint(SCROLLABLE_CURSOR_HINT, "true");
+		query.setHint(FETCH_SIZE_HINT, String.valueOf(fetchSize));
+
+		return (ScrollableCursor) query.getSingleResult();
+	}
+
+	/**
+	 * Close the entity manager: entities read through this utility are detached afterwards
+	 */
+	public void close() {
+		if (em != null) {
+			em.close();
+			em = null;
+		}
+	}
+
+	/**
+	 * Get the entity manager, opening it if needed
+	 * @return the entity manager: if the read-only persistence unit is not available, the JTA one
+	 */
+	private EntityManager getEntityManager() {
+		if (em == null) {
+			EntityManagerFactory factory = getFactory(shard);
+
+			if (factory != null) {
+				em = factory.createEntityManager();
+				// Nothing is written through this entity manager, so never flush before a query
+				em.setFlushMode(FlushModeType.COMMIT);
+			}
+			else {
+				// Read-only unit not configured: read through the JTA persistence context instead
+				if (fallback == null) {
+					fallback = new DBUtility<E>(shard);
+				}
+				return fallback.getEntityManager();
+			}
+		}
+
+		return em;
+	}
+
+	/**
+	 * Look up the read-only persistence unit of a shard, once
+	 * @param shard index of the shard
+	 * @return the factory, or null if the lookup failed
+	 */
+	private static EntityManagerFactory getFactory(int shard) {
+		EntityManagerFactory factory = FACTORIES.get(shard);
+
+		if (factory == null && UNAVAILABLE.get(shard) == 0) {
+			try {
+				factory = (EntityManagerFactory) new InitialContext().lookup(shard == 0 ? JNDI_NAME : JNDI_NAME + shard);
+				FACTORIES.set(shard, factory);
+			}
+			catch (NamingException ne) {
+				UNAVAILABLE.set(shard, 1);
+				System.out.println("WARNING read-only persistence unit not available, reading through JTA: " + ne.getMessage());
+			}
+		}
+
+		return factory;
+	}
+}
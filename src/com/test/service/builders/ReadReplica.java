@@ -0,0 +1,1138 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.eclipse.persistence.queries.ScrollableCursor;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Minion;
+import com.test.service.model.Parent;
+
+/**
+ * In-memory copy of all the parents and minions, which the GETs of all parents and minions (or one by name) are
+ * served from instead of the DB.
+ * The copy is kept compact rather than as entities or elements: names and descriptions are stored once each in
+ * NameDictionary and referred to by int id, the minions of each parent are an int array of minion ids, and the
+ * contents are packed UTF-8 in ContentStore, optionally off the heap. Elements are only built when they are read.
+ * Everything is loaded by a background thread when the application starts, and kept current by DBUtility, which
+ * passes on the names of the parents and minions each transaction changed once it has committed: the background
+ * thread reads those back from the DB and updates the copy. So the copy lags the DB by a few milliseconds, and a
+ * read straight after a write may not see it. A change to more than maxChanges names reloads everything.
+ * check() compares the copy with the DB.
+ * Off by default: enable with the readReplica/enabled setting
+ */
+public final class ReadReplica {
+
+	/**
+	 * The names changed by a transaction, collected by DBUtility and published when it commits.
+	 * Also used for the changes waiting for the background thread.
+	 * Names are recorded if the replica is enabled, or DBUtility is keeping write generations by name
+	 */
+	static final class Changes {
+		private Set<String> parents;
+		private Set<String> minions;
+		private boolean everything;
+		// Parents which minions joined or left, only for the write generations: the replica finds the parents of
+		// the minions it reads back. Set allMinionParents when they aren't known
+		private Set<String> minionParents;
+		private boolean allMinionParents;
+		// Anything recorded at all: kept even when the replica is disabled, for DBUtility.getWriteGeneration()
+		private boolean changed;
+
+		/**
+		 * Record a change to a parent, including any change to which minions it has
+		 * @param name of the parent
+		 */
+		void parent(String name) {
+			changed = true;
+			if (recordsNames() && name != null && !everything) {
+				if (parents == null) {
+					parents = new HashSet<String>();
+				}
+				parents.add(name);
+				checkSize();
+			}
+		}
+
+		/**
+		 * Record a change to a minion, including a move to another parent
+		 * @param name of the minion
+		 */
+		void minion(String name) {
+			changed = true;
+			if (recordsNames() && name != null && !everything) {
+				if (minions == null) {
+					minions = new HashSet<String>();
+				}
+				minions.add(name);
+				checkSize();
+			}
+		}
+
+		/**
+		 * Record that minions joined or left a parent, as well as the changes to the minions themselves
+		 * @param name of the parent, or null if it isn't known
+		 */
+		void minionsOf(String name) {
+			changed = true;
+			if (DBUtility.isTrackingNames() && !everything && !allMinionParents) {
+				if (name == null || (minionParents != null && minionParents.size() >= MAX_CHANGES)) {
+					allMinionParents = true;
+					minionParents = null;
+					return;
+				}
+				if (minionParents == null) {
+					minionParents = new HashSet<String>();
+				}
+				minionParents.add(name);
+			}
+		}
+
+		/**
+		 * Record the creation or deletion of an entity
+		 * @param entity a parent or minion
+		 */
+		void entity(DBEntity entity) {
+			if (entity instanceof ParentEntity) {
+				parent(entity.getName());
+			}
+			else if (entity instanceof MinionEntity) {
+				minion(entity.getName());
+				// Not looked up, as the parent may only be a reference
+				minionsOf(null);
+			}
+		}
+
+		/**
+		 * Record a change which can't be described by names, so everything has to be reloaded
+		 */
+		void everything() {
+			changed = true;
+			if (recordsNames()) {
+				everything = true;
+				parents = null;
+				minions = null;
+				minionParents = null;
+			}
+		}
+
+		/**
+		 * Move on the write generations of the names recorded (see DBUtility.getWriteGeneration(String, String)).
+		 * A parent's minions are read with its name, so a change to any parent moves on every minion
+		 */
+		void advanceGenerations() {
+			if (everything) {
+				DBUtility.advanceAllGenerations(ParentEntity.TYPE);
+				DBUtility.advanceAllGenerations(MinionEntity.TYPE);
+				return;
+			}
+			if (parents != null) {
+				for (String name: parents) {
+					DBUtility.advanceGeneration(ParentEntity.TYPE, name);
+				}
+				DBUtility.advanceAllGenerations(MinionEntity.TYPE);
+			}
+			if (minions != null) {
+				for (String name: minions) {
+					DBUtility.advanceGeneration(MinionEntity.TYPE, name);
+				}
+			}
+			if (allMinionParents) {
+				DBUtility.advanceAllGenerations(ParentEntity.TYPE);
+			}
+			else if (minionParents != null) {
+				for (String name: minionParents) {
+					DBUtility.advanceGeneration(ParentEntity.TYPE, name);
+				}
+			}
+		}
+
+		/**
+		 * Pass the changes to the background thread, once the transaction has committed
+		 */
+		void publish() {
+			if (ENABLED && (everything || parents != null || minions != null)) {
+				synchronized (PENDING) {
+					PENDING.add(this);
+				}
+
+				Thread thread = refresher;
+				if (thread != null) {
+					LockSupport.unpark(thread);
+				}
+			}
+			clear();
+		}
+
+		/**
+		 * Check whether anything has been recorded since the last publish() or clear()
+		 * @return true if the transaction changed parents or minions
+		 */
+		boolean hasChanges() {
+			return changed;
+		}
+
+		/**
+		 * Forget the changes, when the transaction rolls back
+		 */
+		void clear() {
+			parents = null;
+			minions = null;
+			everything = false;
+			minionParents = null;
+			allMinionParents = false;
+			changed = false;
+		}
+
+		private void add(Changes other) {
+			if (other.everything) {
+				everything();
+				return;
+			}
+			if (other.parents != null) {
+				for (String name: other.parents) {
+					parent(name);
+				}
+			}
+			if (other.minions != null) {
+				for (String name: other.minions) {
+					minion(name);
+				}
+			}
+			if (other.allMinionParents) {
+				minionsOf(null);
+			}
+			else if (other.minionParents != null) {
+				for (String name: other.minionParents) {
+					minionsOf(name);
+				}
+			}
+		}
+
+		private int size() {
+			return (parents == null ? 0 : parents.size()) + (minions == null ? 0 : minions.size());
+		}
+
+		private static boolean recordsNames() {
+			return ENABLED || DBUtility.isTrackingNames();
+		}
+
+		private void checkSize() {
+			if (size() > MAX_CHANGES) {
+				everything();
+			}
+		}
+	}
+
+	/**
+	 * The copy itself: parents and minions are identified by the ids of their names in the dictionaries, and
+	 * every array is indexed by those ids. Reads share the lock, and the background thread takes it exclusively
+	 * to change the copy, only once it has read what it needs from the DB
+	 */
+	private static final class Store {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		private final NameDictionary parentNames = new NameDictionary();
+		private final NameDictionary minionNames = new NameDictionary();
+		private final NameDictionary descriptions = new NameDictionary();
+		private final ContentStore contents;
+
+		// By parent id: description id (-1 for none), time of the last minion change (0 for none),
+		// the minion ids and how many of them there are (-1 if the parent is not in the DB)
+		private int[] parentDescription = new int[0];
+		private long[] parentChanged = new long[0];
+		private int[][] parentMinions = new int[0][];
+		private int[] parentMinionCount = new int[0];
+
+		// By minion id: description id, parent id (-1 if the minion is not in the DB), and index in the parent's minions
+		private int[] minionDescription = new int[0];
+		private int[] minionParent = new int[0];
+		private int[] minionSlot = new int[0];
+
+		private int parents;
+		private int minions;
+
+		Store(boolean offHeap) {
+			contents = new ContentStore(offHeap);
+		}
+
+		/**
+		 * Add or change a parent, leaving its minions as they are
+		 * @return the parent id
+		 */
+		int putParent(String name, String description, Date changed) {
+			lock.writeLock().lock();
+			try {
+				int id = parentNames.intern(name);
+				ensureParents(id);
+
+				if (parentMinionCount[id] < 0) {
+					parentMinionCount[id] = 0;
+					parents++;
+				}
+				parentDescription[id] = description == null ? -1 : descriptions.intern(description);
+				parentChanged[id] = changed == null ? 0 : changed.getTime();
+
+				return id;
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Replace a parent and all its minions: minions which the parent no longer has are removed
+		 * @param rows of minion name, description and contents
+		 */
+		void replaceParent(String name, String description, Date changed, List<Object[]> rows) {
+			lock.writeLock().lock();
+			try {
+				int id = putParent(name, description, changed);
+				Set<Integer> current = new HashSet<Integer>();
+
+				for (Object[] row: rows) {
+					current.add(putMinion((String) row[0], (String) row[1], id, contentsOf(row[2])));
+				}
+
+				for (int slot = parentMinionCount[id] - 1; slot >= 0; slot--) {
+					int minion = parentMinions[id][slot];
+					if (!current.contains(minion)) {
+						removeMinion(minion);
+					}
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Remove a parent and its minions
+		 */
+		void removeParent(String name) {
+			lock.writeLock().lock();
+			try {
+				int id = parentNames.find(name);
+
+				if (id < 0 || parentMinionCount[id] < 0) {
+					return;
+				}
+
+				for (int slot = parentMinionCount[id] - 1; slot >= 0; slot--) {
+					removeMinion(parentMinions[id][slot]);
+				}
+				parentMinionCount[id] = -1;
+				parentMinions[id] = null;
+				parents--;
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Add or change a minion, moving it to the parent if it was under another one
+		 * @param parent id of the parent, which must be in the copy
+		 * @return the minion id
+		 */
+		int putMinion(String name, String description, int parent, List<String> minionContents) {
+			lock.writeLock().lock();
+			try {
+				int id = minionNames.intern(name);
+				ensureMinions(id);
+
+				if (minionParent[id] < 0) {
+					minions++;
+					link(id, parent);
+				}
+				else if (minionParent[id] != parent) {
+					unlink(id);
+					link(id, parent);
+				}
+				minionDescription[id] = description == null ? -1 : descriptions.intern(description);
+				contents.put(id, minionContents);
+
+				return id;
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Remove a minion by name
+		 */
+		void removeMinion(String name) {
+			lock.writeLock().lock();
+			try {
+				int id = minionNames.find(name);
+
+				if (id >= 0 && minionParent[id] >= 0) {
+					removeMinion(id);
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Find a parent
+		 * @return the parent id, or -1 if it is not in the copy
+		 */
+		int findParent(String name) {
+			lock.readLock().lock();
+			try {
+				int id = parentNames.find(name);
+				return id >= 0 && parentMinionCount[id] >= 0 ? id : -1;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Find a minion
+		 * @return the minion id, or -1 if it is not in the copy
+		 */
+		int findMinion(String name) {
+			lock.readLock().lock();
+			try {
+				int id = minionNames.find(name);
+				return id >= 0 && minionParent[id] >= 0 ? id : -1;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Get the parents matching a name, like ParentBuilder would build them
+		 * @param name to match, null for all parents
+		 * @param summary true for the number of minions instead of their names
+		 */
+		List<Parent> getParents(String name, boolean summary) {
+			List<Parent> elements = new ArrayList<Parent>();
+
+			lock.readLock().lock();
+			try {
+				if (name != null) {
+					int id = parentNames.find(name);
+					if (id >= 0 && parentMinionCount[id] >= 0) {
+						elements.add(parent(id, summary));
+					}
+				}
+				else {
+					for (int id = 0; id < parentNames.size(); id++) {
+						if (parentMinionCount[id] >= 0) {
+							elements.add(parent(id, summary));
+						}
+					}
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+
+			return elements;
+		}
+
+		/**
+		 * Get the minions matching a name, like MinionBuilder would build them
+		 * @param name to match, null for all minions
+		 */
+		List<Minion> getMinions(String name) {
+			List<Minion> elements = new ArrayList<Minion>();
+
+			lock.readLock().lock();
+			try {
+				if (name != null) {
+					int id = minionNames.find(name);
+					if (id >= 0 && minionParent[id] >= 0) {
+						elements.add(minion(id));
+					}
+				}
+				else {
+					for (int id = 0; id < minionNames.size(); id++) {
+						if (minionParent[id] >= 0) {
+							elements.add(minion(id));
+						}
+					}
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+
+			return elements;
+		}
+
+		/**
+		 * List the parents or minions in the copy which are not in a set
+		 * @param seen ids of those found in the DB
+		 * @param samples to add the names of the first few to
+		 * @return how many there are
+		 */
+		int countUnseen(boolean ofParents, BitSet seen, List<String> samples) {
+			int unseen = 0;
+
+			lock.readLock().lock();
+			try {
+				NameDictionary names = ofParents ? parentNames : minionNames;
+
+				for (int id = 0; id < names.size(); id++) {
+					boolean present = ofParents ? parentMinionCount[id] >= 0 : minionParent[id] >= 0;
+
+					if (present && !seen.get(id)) {
+						unseen++;
+						sample(samples, (ofParents ? "Parent " : "Minion ") + names.get(id) + ": not in the DB");
+					}
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+
+			return unseen;
+		}
+
+		private Parent parent(int id, boolean summary) {
+			Parent parent = new Parent();
+			parent.setName(parentNames.get(id));
+			parent.setDescription(parentDescription[id] < 0 ? null : descriptions.get(parentDescription[id]));
+
+			if (summary) {
+				parent.setMinionNames(null);
+				parent.setMinionCount((long) parentMinionCount[id]);
+				parent.setLastMinionChange(parentChanged[id] == 0 ? null : new Date(parentChanged[id]));
+			}
+			else if (parentMinionCount[id] > 0) {
+				Set<String> names = new HashSet<String>();
+				for (int slot = 0; slot < parentMinionCount[id]; slot++) {
+					names.add(minionNames.get(parentMinions[id][slot]));
+				}
+				parent.setMinionNames(names);
+			}
+
+			return parent;
+		}
+
+		private Minion minion(int id) {
+			Minion minion = new Minion();
+			minion.setName(minionNames.get(id));
+			minion.setDescription(minionDescription[id] < 0 ? null : descriptions.get(minionDescription[id]));
+			minion.setContents(contents.get(id));
+			minion.setParentName(parentNames.get(minionParent[id]));
+
+			return minion;
+		}
+
+		private void removeMinion(int id) {
+			unlink(id);
+			contents.remove(id);
+			minions--;
+		}
+
+		private void link(int minion, int parent) {
+			int count = parentMinionCount[parent];
+
+			if (parentMinions[parent] == null) {
+				parentMinions[parent] = new int[4];
+			}
+			else if (count == parentMinions[parent].length) {
+				parentMinions[parent] = Arrays.copyOf(parentMinions[parent], count * 2);
+			}
+
+			parentMinions[parent][count] = minion;
+			parentMinionCount[parent] = count + 1;
+			minionSlot[minion] = count;
+			minionParent[minion] = parent;
+		}
+
+		private void unlink(int minion) {
+			int parent = minionParent[minion];
+			int slot = minionSlot[minion];
+			int last = --parentMinionCount[parent];
+
+			// Fill the gap with the last minion of the parent
+			int moved = parentMinions[parent][last];
+			parentMinions[parent][slot] = moved;
+			minionSlot[moved] = slot;
+			minionParent[minion] = -1;
+		}
+
+		private void ensureParents(int id) {
+			if (id >= parentMinionCount.length) {
+				int oldLength = parentMinionCount.length;
+				int length = Math.max(oldLength * 2, Math.max(id + 1, 1024));
+
+				parentDescription = Arrays.copyOf(parentDescription, length);
+				parentChanged = Arrays.copyOf(parentChanged, length);
+				parentMinions = Arrays.copyOf(parentMinions, length);
+				parentMinionCount = Arrays.copyOf(parentMinionCount, length);
+				Arrays.fill(parentMinionCount, oldLength, length, -1);
+			}
+		}
+
+		private void ensureMinions(int id) {
+			if (id >= minionParent.length) {
+				int oldLength = minionParent.length;
+				int length = Math.max(oldLength * 2, Math.max(id + 1, 1024));
+
+				minionDescription = Arrays.copyOf(minionDescription, length);
+				minionParent = Arrays.copyOf(minionParent, length);
+				minionSlot = Arrays.copyOf(minionSlot, length);
+				Arrays.fill(minionParent, oldLength, length, -1);
+			}
+		}
+
+		private void report(Map<String, Object> values) {
+			lock.readLock().lock();
+			try {
+				values.put("parents", parents);
+				values.put("minions", minions);
+				values.put("dictionaryBytes", parentNames.getBytes() + minionNames.getBytes() + descriptions.getBytes());
+				values.put("indexBytes", 16L * parentMinionCount.length + 12L * minionParent.length + 4L * minions);
+				values.put("contentBytes", contents.getBytes());
+				values.put("contentGarbageBytes", contents.getGarbage());
+				values.put("offHeap", contents.isOffHeap());
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	// JNDI name of the container's default managed thread factory, whose threads have the java:comp context
+	private static final String THREAD_FACTORY_JNDI_NAME = "java:comp/DefaultManagedThreadFactory";
+	// Most mismatches named in the result of check()
+	private static final int MAX_SAMPLES = 20;
+
+	private static final boolean ENABLED = Settings.getBoolean("readReplica/enabled", false);
+	// Keep the minion contents in direct buffers, outside the Java heap
+	private static final boolean OFF_HEAP = Settings.getBoolean("readReplica/offHeap", false);
+	// Names changed by a single transaction, or waiting to be read back, beyond which everything is reloaded
+	private static final int MAX_CHANGES = Math.max(1, Settings.getInt("readReplica/maxChanges", 10000));
+	// Rows fetched from the DB at a time when loading everything
+	private static final int FETCH_SIZE = Math.max(1, Settings.getInt("readReplica/fetchSize", 500));
+	// How long the background thread waits for changes, and after the DB has failed
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("readReplica/idleMillis", 50));
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("readReplica/retryMillis", 1000));
+
+	// Changes published and not yet applied
+	private static final Changes PENDING = new Changes();
+
+	private static final AtomicLong LOADS = new AtomicLong();
+	private static final AtomicLong LAST_LOAD_MILLIS = new AtomicLong();
+	private static final AtomicLong REFRESHED = new AtomicLong();
+	private static final AtomicLong FAILURES = new AtomicLong();
+
+	private static final MinionBuilder MINION_BUILDER = new MinionBuilder();
+
+	// The copy: null until it has been loaded
+	private static volatile Store store;
+	private static volatile Thread refresher;
+	private static volatile boolean stopping;
+
+	static {
+		Metrics.register("readReplica", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				Store current = store;
+
+				values.put("enabled", ENABLED);
+				values.put("ready", isReady());
+				values.put("loads", LOADS.get());
+				values.put("lastLoadMillis", LAST_LOAD_MILLIS.get());
+				values.put("refreshed", REFRESHED.get());
+				values.put("failures", FAILURES.get());
+				values.put("pendingChanges", getPendingChanges());
+				if (current != null) {
+					current.report(values);
+				}
+			}
+		});
+	}
+
+	private ReadReplica() {
+	}
+
+	/**
+	 * Start the background thread, which loads everything and then applies the changes DBUtility publishes
+	 */
+	public static synchronized void start() {
+		if (!ENABLED || refresher != null) {
+			return;
+		}
+
+		ThreadFactory threads;
+		try {
+			threads = (ThreadFactory) new InitialContext().lookup(THREAD_FACTORY_JNDI_NAME);
+		}
+		catch (NamingException ne) {
+			System.out.println("ERROR no managed thread factory, the read replica is disabled: " + ne.getMessage());
+			return;
+		}
+
+		stopping = false;
+		refresher = threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		});
+		refresher.setName("ReadReplica refresher");
+		refresher.start();
+	}
+
+	/**
+	 * Stop the background thread and drop the copy: reads go back to the DB
+	 */
+	public static synchronized void stop() {
+		Thread thread = refresher;
+
+		if (thread == null) {
+			return;
+		}
+
+		stopping = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		refresher = null;
+		store = null;
+	}
+
+	/**
+	 * Check whether reads can be served from the copy
+	 * @return true if the replica is enabled, running and loaded
+	 */
+	public static boolean isReady() {
+		return store != null && refresher != null && !stopping;
+	}
+
+	/**
+	 * Get the parents matching a name from the copy
+	 * @param name to match, null for all parents
+	 * @param summary true for the number of minions and time of the last change instead of the minion names
+	 * @return list of parent elements, or null if the replica is not ready and the DB has to be read instead
+	 */
+	public static List<Parent> getParents(String name, boolean summary) {
+		Store current = store;
+
+		return current == null || !isReady() ? null : current.getParents(name, summary);
+	}
+
+	/**
+	 * Get the minions matching a name from the copy
+	 * @param name to match, null for all minions
+	 * @return list of minion elements, or null if the replica is not ready and the DB has to be read instead
+	 */
+	public static List<Minion> getMinions(String name) {
+		Store current = store;
+
+		return current == null || !isReady() ? null : current.getMinions(name);
+	}
+
+	/**
+	 * Compare the copy with the DB, reading every parent and minion. Changes made while the check is running
+	 * may show up as mismatches, so repeat it to confirm any it finds
+	 * @return the numbers of parents and minions in each, the numbers missing from the copy, only in the copy
+	 * and different, and the first few mismatches by name
+	 * @throws IllegalStateException if the replica is not ready
+	 */
+	public static Map<String, Object> check() throws IllegalStateException {
+		Store current = store;
+
+		if (current == null || !isReady()) {
+			throw new IllegalStateException("The read replica is not " + (ENABLED ? "loaded" : "enabled"));
+		}
+
+		List<String> samples = new ArrayList<String>();
+		BitSet seenParents = new BitSet();
+		BitSet seenMinions = new BitSet();
+		// Number of parents and minions in the DB, missing from the copy, and different in the copy
+		long[] counts = new long[4];
+
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			checkShard(current, shard, seenParents, seenMinions, counts, samples);
+		}
+
+		int extra = current.countUnseen(true, seenParents, samples) + current.countUnseen(false, seenMinions, samples);
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("parents", counts[0]);
+		report.put("minions", counts[1]);
+		report.put("missing", counts[2]);
+		report.put("extra", extra);
+		report.put("different", counts[3]);
+		report.put("consistent", counts[2] == 0 && extra == 0 && counts[3] == 0);
+		report.put("pendingChanges", getPendingChanges());
+		report.put("mismatches", samples);
+
+		return report;
+	}
+
+	/**
+	 * Compare the copy with one shard
+	 */
+	private static void checkShard(Store current, int shard, BitSet seenParents, BitSet seenMinions, long[] counts, List<String> samples) {
+		ReadDBUtility<DBEntity> reader = new ReadDBUtility<DBEntity>(shard);
+		// Names of the parents on this shard by DB id, to check the parents of the minions
+		Map<Integer, String> parentNames = new HashMap<Integer, String>();
+
+		try {
+			ScrollableCursor parents = reader.scrollParents(FETCH_SIZE);
+			try {
+				while (parents.hasNext()) {
+					ParentEntity pEntity = (ParentEntity) parents.next();
+					String name = pEntity.getName();
+
+					counts[0]++;
+					parentNames.put(pEntity.getId(), name);
+
+					int id = current.findParent(name);
+					if (id < 0) {
+						counts[2]++;
+						sample(samples, "Parent " + name + ": not in the copy");
+						continue;
+					}
+					seenParents.set(id);
+
+					List<Parent> copies = current.getParents(name, true);
+					Parent copy = copies.isEmpty() ? null : copies.get(0);
+					if (copy == null || !equal(copy.getDescription(), pEntity.getDescription())
+							|| copy.getMinionCount().longValue() != pEntity.getMinionCount()) {
+						counts[3]++;
+						sample(samples, "Parent " + name + ": description or number of minions differs");
+					}
+
+					if (counts[0] % FETCH_SIZE == 0) {
+						reader.clear();
+					}
+				}
+			}
+			finally {
+				parents.close();
+			}
+			reader.clear();
+
+			ScrollableCursor minions = reader.scrollMinions(FETCH_SIZE);
+			try {
+				while (minions.hasNext()) {
+					Object[] row = (Object[]) minions.next();
+					String name = (String) row[1];
+
+					counts[1]++;
+
+					int id = current.findMinion(name);
+					if (id < 0) {
+						counts[2]++;
+						sample(samples, "Minion " + name + ": not in the copy");
+						continue;
+					}
+					seenMinions.set(id);
+
+					List<Minion> copies = current.getMinions(name);
+					Minion copy = copies.isEmpty() ? null : copies.get(0);
+					if (copy == null || !equal(copy.getDescription(), row[2]) || !equal(copy.getParentName(), parentNames.get(row[0]))
+							|| !equal(copy.getContents(), emptyToNull(reader.getContents(row[3], row[4])))) {
+						counts[3]++;
+						sample(samples, "Minion " + name + ": description, parent or contents differ");
+					}
+				}
+			}
+			finally {
+				minions.close();
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Load everything, apply changes as they are published, and reload everything when asked to
+	 */
+	private static void refresh() {
+		while (!stopping) {
+			Changes work = null;
+
+			try {
+				if (store == null) {
+					store = load();
+					continue;
+				}
+
+				work = takePending();
+
+				if (work == null) {
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+				else {
+					if (work.everything) {
+						store = load();
+					}
+					else {
+						apply(store, work);
+					}
+					// Responses cached between the commit and now may have been read from the copy before the change
+					DBUtility.replicaUpdated(work);
+				}
+			}
+			catch (RuntimeException re) {
+				FAILURES.incrementAndGet();
+				System.out.println("ERROR read replica refresh failed, will retry: " + re.getMessage());
+
+				// Put the changes back, so that none are lost
+				if (work != null) {
+					synchronized (PENDING) {
+						PENDING.add(work);
+					}
+				}
+				LockSupport.parkNanos(RETRY_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Read everything from every shard into a new copy
+	 * @return the copy
+	 */
+	private static Store load() {
+		long start = System.currentTimeMillis();
+		Store loaded = new Store(OFF_HEAP);
+
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			loadShard(loaded, shard);
+		}
+
+		LOADS.incrementAndGet();
+		LAST_LOAD_MILLIS.set(System.currentTimeMillis() - start);
+		System.out.println("Read replica loaded in " + LAST_LOAD_MILLIS.get() + "ms");
+
+		return loaded;
+	}
+
+	/**
+	 * Read all the parents and then all the minions of a shard into the copy, through cursors
+	 */
+	private static void loadShard(Store loaded, int shard) {
+		ReadDBUtility<DBEntity> reader = new ReadDBUtility<DBEntity>(shard);
+		// Ids in the copy by DB id, for the parents on this shard
+		Map<Integer, Integer> parentIds = new HashMap<Integer, Integer>();
+
+		try {
+			ScrollableCursor parents = reader.scrollParents(FETCH_SIZE);
+			try {
+				while (parents.hasNext()) {
+					ParentEntity pEntity = (ParentEntity) parents.next();
+
+					parentIds.put(pEntity.getId(), loaded.putParent(pEntity.getName(), pEntity.getDescription(), pEntity.getLastMinionChange()));
+
+					if (parentIds.size() % FETCH_SIZE == 0) {
+						reader.clear();
+					}
+				}
+			}
+			finally {
+				parents.close();
+			}
+			reader.clear();
+
+			ScrollableCursor minions = reader.scrollMinions(FETCH_SIZE);
+			try {
+				while (minions.hasNext()) {
+					Object[] row = (Object[]) minions.next();
+					Integer parent = parentIds.get(row[0]);
+
+					if (parent != null) {
+						loaded.putMinion((String) row[1], (String) row[2], parent, reader.getContents(row[3], row[4]));
+					}
+				}
+			}
+			finally {
+				minions.close();
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read back the parents and minions which have changed, and update the copy: parents first, so that
+	 * new minions find their parents
+	 */
+	private static void apply(Store current, Changes work) {
+		if (work.parents != null) {
+			for (String name: work.parents) {
+				refreshParent(current, name);
+			}
+		}
+
+		if (work.minions != null) {
+			for (String name: work.minions) {
+				refreshMinion(current, name);
+			}
+		}
+
+		REFRESHED.addAndGet(work.size());
+	}
+
+	/**
+	 * Read back a parent and all its minions
+	 */
+	private static void refreshParent(Store current, String name) {
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(ShardRouter.shardFor(name));
+
+		try {
+			List<ParentEntity> found = reader.getEntitiesByName(ParentEntity.TYPE, name);
+
+			if (found.isEmpty()) {
+				current.removeParent(name);
+				return;
+			}
+
+			ParentEntity pEntity = found.get(0);
+			current.replaceParent(pEntity.getName(), pEntity.getDescription(), pEntity.getLastMinionChange(), reader.getMinionRows(pEntity.getId()));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read back a minion: the name doesn't tell us the shard, so look on all of them
+	 */
+	private static void refreshMinion(Store current, final String name) {
+		List<Minion> found = ShardRouter.gather(ShardRouter.scatter(new ShardRouter.ShardTask<List<Minion>>() {
+			@Override
+			public List<Minion> run(int shard) {
+				List<Minion> elements = new ArrayList<Minion>();
+				ReadDBUtility<MinionEntity> reader = new ReadDBUtility<MinionEntity>(shard);
+
+				try {
+					for (MinionEntity mEntity: reader.getEntitiesByName(MinionEntity.TYPE, name)) {
+						Minion minion = MINION_BUILDER.createElementFromEntity(mEntity);
+						minion.setContents(reader.getContents(mEntity));
+						elements.add(minion);
+					}
+				}
+				finally {
+					reader.close();
+				}
+
+				return elements;
+			}
+		}));
+
+		if (found.isEmpty()) {
+			current.removeMinion(name);
+			return;
+		}
+
+		Minion minion = found.get(0);
+		int parent = current.findParent(minion.getParentName());
+
+		// A parent the copy hasn't caught up with yet: reading it brings this minion with it
+		if (parent < 0) {
+			refreshParent(current, minion.getParentName());
+			return;
+		}
+
+		current.putMinion(minion.getName(), minion.getDescription(), parent, minion.getContents());
+	}
+
+	/**
+	 * Take all the published changes
+	 * @return the changes, or null if there are none
+	 */
+	private static Changes takePending() {
+		synchronized (PENDING) {
+			if (!PENDING.everything && PENDING.size() == 0) {
+				return null;
+			}
+
+			Changes work = new Changes();
+			work.add(PENDING);
+			PENDING.clear();
+
+			return work;
+		}
+	}
+
+	private static int getPendingChanges() {
+		synchronized (PENDING) {
+			return PENDING.everything ? -1 : PENDING.size();
+		}
+	}
+
+	/**
+	 * Get the contents from a row selected by JPQL
+	 */
+	private static List<String> contentsOf(Object column) {
+		// The contents are a serialized ArrayList<String>
+		@SuppressWarnings("unchecked")
+		List<String> contents = (List<String>) column;
+
+		return contents;
+	}
+
+	private static List<String> emptyToNull(List<String> contents) {
+		return contents == null || contents.isEmpty() ? null : contents;
+	}
+
+	private static boolean equal(Object one, Object other) {
+		if (one instanceof List && ((List<?>) one).isEmpty()) {
+			one = null;
+		}
+		return one == null ? other == null : one.equals(other);
+	}
+
+	private static void sample(List<String> samples, String mismatch) {
+		if (samples.size() < MAX_SAMPLES) {
+			samples.add(mismatch);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * Single-flight coalescing of identical concurrent reads.
+ * The first caller for a key runs the load on its own thread, and any caller arriving with the same key
+ * while that load is still in flight waits for it and shares the result instead of running its own query.
+ * Nothing is cached: once the load completes the key is forgotten, so the next caller starts a fresh load.
+ * The bookkeeping is a ConcurrentHashMap of in-flight tasks, so no locks are held by the coalescer itself
+ * @param <V> type of the shared result, which callers must treat as read-only
+ */
+public class RequestCoalescer<V> {
+
+	// Separator used when building keys: cannot appear in a type name
+	private static final String KEY_SEPARATOR = "|";
+
+	// Loads currently in flight, keyed by type, name and query parameters
+	private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+	// Number of calls to get()
+	private final AtomicLong requests = new AtomicLong();
+	// Number of loads actually run
+	private final AtomicLong loads = new AtomicLong();
+	// Number of calls that shared another caller's load
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param metricsPrefix name under which the coalescing metrics are published
+	 */
+	public RequestCoalescer(String metricsPrefix) {
+		Metrics.register(metricsPrefix, new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("requests", requests.get());
+				values.put("loads", loads.get());
+				values.put("coalesced", coalesced.get());
+				values.put("inFlight", inFlight.size());
+			}
+		});
+	}
+
+	/**
+	 * Build a coalescing key
+	 * @param type the entity type being read
+	 * @param name the name being read, null for all entities of the type
+	 * @param params any further query parameters which change the result
+	 * @return the key
+	 */
+	public static String key(String type, String name, Object... params) {
+		StringBuilder key = new StringBuilder(type);
+
+		// Null name means "all", which must not clash with an entity called "null"
+		key.append(KEY_SEPARATOR).append(name == null ? "*" : "=" + name);
+
+		for (Object param: params) {
+			key.append(KEY_SEPARATOR).append(param);
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Get the result for a key, either by joining a load already in flight or by running the loader
+	 * @param key identifies the read, see key()
+	 * @param loader runs the read, only called if no identical read is in flight
+	 * @return the (possibly shared) result
+	 * @throws RuntimeException thrown by the loader, re-thrown unchanged to every caller sharing the load
+	 */
+	public V get(String key, Callable<V> loader) {
+		requests.incrementAndGet();
+
+		FutureTask<V> task = inFlight.get(key);
+
+		if (task == null) {
+			FutureTask<V> newTask = new FutureTask<V>(loader);
+			task = inFlight.putIfAbsent(key, newTask);
+
+			// We won the race, so run the load on this thread and forget the key as soon as it completes
+			if (task == null) {
+				task = newTask;
+				loads.incrementAndGet();
+
+				try {
+					newTask.run();
+				}
+				finally {
+					inFlight.remove(key, newTask);
+				}
+			}
+			else {
+				coalesced.incrementAndGet();
+			}
+		}
+		else {
+			coalesced.incrementAndGet();
+		}
+
+		return getResult(task);
+	}
+
+	/**
+	 * Wait for a load and unwrap any failure, so callers see the same exceptions as an uncoalesced read
+	 * @param task the load
+	 * @return the result of the load
+	 */
+	private V getResult(FutureTask<V> task) {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while waiting for a shared read", ie);
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new PersistenceException(cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * A request the service can't carry out because of what was asked for, rather than a fault in the service:
+ * a name that doesn't exist, a name that is already taken, a bad parameter, or earlier writes still being applied.
+ * These are part of normal traffic, so they don't capture a stack trace, and are turned into responses without
+ * being logged (see ServiceExceptionMapper). One whose message never changes can be created once and thrown
+ * any number of times
+ */
+public abstract class ServiceException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Response.Status status;
+
+	/**
+	 * Constructor
+	 * @param message for the client
+	 * @param status HTTP status of the response
+	 */
+	protected ServiceException(String message, Response.Status status) {
+		// No cause, no suppressed exceptions, and no stack trace: walking the stack is most of the cost of an exception
+		super(message, null, false, false);
+		this.status = status;
+	}
+
+	/**
+	 * Get the HTTP status for the response
+	 * @return the status
+	 */
+	public Response.Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * The parent or minion asked for doesn't exist: 404
+	 */
+	public static class NotFound extends ServiceException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor
+		 * @param message for the client
+		 */
+		public NotFound(String message) {
+			super(message, Response.Status.NOT_FOUND);
+		}
+	}
+
+	/**
+	 * The name of a new parent or minion is already taken: 409
+	 */
+	public static class Conflict extends ServiceException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor
+		 * @param message for the client
+		 */
+		public Conflict(String message) {
+			super(message, Response.Status.CONFLICT);
+		}
+	}
+
+	/**
+	 * A parameter or payload is missing or invalid: 400
+	 */
+	public static class BadRequest extends ServiceException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor
+		 * @param message for the client
+		 */
+		public BadRequest(String message) {
+			super(message, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * The request has to wait for earlier work which is taking too long, and can be tried again later: 503
+	 */
+	public static class Unavailable extends ServiceException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor
+		 * @param message for the client
+		 */
+		public Unavailable(String message) {
+			super(message, Response.Status.SERVICE_UNAVAILABLE);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+/**
+ * Tuning settings for the service. A setting is read from, in order:
+ * <ul>
+ * <li>a JVM system property with the prefix "com.test.service.", with any '/' replaced by '.'
+ *     (for example -Dcom.test.service.admission.maxConcurrent=50)</li>
+ * <li>an env-entry in web.xml, looked up under java:comp/env (for example admission/maxConcurrent)</li>
+ * <li>the default supplied by the caller</li>
+ * </ul>
+ * Values are resolved once and then cached, so settings are cheap to read on the request path
+ */
+public final class Settings {
+
+	// JNDI prefix of the web.xml env-entries
+	private static final String ENV_PREFIX = "java:comp/env/";
+	// Prefix of the system properties
+	private static final String PROPERTY_PREFIX = "com.test.service.";
+	// Marker cached for settings that are not configured, because ConcurrentHashMap does not allow null values
+	private static final String NOT_SET = new String("");
+
+	// Resolved values, keyed by setting name
+	private static final ConcurrentHashMap<String, String> VALUES = new ConcurrentHashMap<String, String>();
+
+	private Settings() {
+	}
+
+	/**
+	 * Get a string setting
+	 * @param name of the setting, as used in the env-entry-name
+	 * @param defaultValue returned if the setting is not configured
+	 * @return the configured value, or the default
+	 */
+	public static String getString(String name, String defaultValue) {
+		String value = VALUES.get(name);
+
+		if (value == null) {
+			value = resolve(name);
+		}
+
+		return value == NOT_SET ? defaultValue : value;
+	}
+
+	/**
+	 * Get an integer setting
+	 * @param name of the setting
+	 * @param defaultValue returned if the setting is not configured or is not a number
+	 * @return the configured value, or the default
+	 */
+	public static int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	/**
+	 * Get a long setting
+	 * @param name of the setting
+	 * @param defaultValue returned if the setting is not configured or is not a number
+	 * @return the configured value, or the default
+	 */
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException nfe) {
+			System.out.println("WARNING setting " + name + " is not a number: " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a boolean setting
+	 * @param name of the setting
+	 * @param defaultValue returned if the setting is not configured
+	 * @return the configured value, or the default
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Look a setting up from the system properties and JNDI
+	 * @param name of the setting
+	 * @return the value, or NOT_SET
+	 */
+	private static String resolve(String name) {
+		String value = System.getProperty(PROPERTY_PREFIX + name.replace('/', '.'));
+
+		if (value == null) {
+			try {
+				Object entry = new InitialContext().lookup(ENV_PREFIX + name);
+				value = entry == null ? NOT_SET : entry.toString();
+			}
+			catch (NameNotFoundException nnfe) {
+				value = NOT_SET;
+			}
+			catch (NamingException ne) {
+				// No java:comp context on this thread: use the default, but don't remember it
+				return NOT_SET;
+			}
+		}
+
+		VALUES.putIfAbsent(name, value);
+
+		return value;
+	}
+}
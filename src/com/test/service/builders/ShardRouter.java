@@ -0,0 +1,209 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PersistenceException;
+
+import com.test.service.model.Element;
+
+/**
+ * Hash partitioning of the data across several databases (shards).
+ * Each shard has its own persistence units and datasources (see persistence.xml and web.xml), and
+ * entities are placed by a hash of the parent name, so a parent and all its minions are always on the same shard.
+ * Reads which can't be routed to one shard (all parents, or minions by name) are scattered to every shard in
+ * parallel and the results gathered.
+ * The number of shards is set with the shards/count setting, and defaults to a single shard, which is
+ * the original single database
+ */
+public final class ShardRouter {
+
+	/**
+	 * A piece of work to run against a single shard
+	 * @param <T> type of the result
+	 */
+	public interface ShardTask<T> {
+		/**
+		 * Run the work
+		 * @param shard index of the shard
+		 * @return the result for this shard
+		 */
+		T run(int shard);
+	}
+
+	// JNDI name of the container's default managed executor, whose threads have the java:comp context
+	private static final String EXECUTOR_JNDI_NAME = "java:comp/DefaultManagedExecutorService";
+
+	// Number of shards: must not change once there is data, or entities will be looked for on the wrong shard
+	private static final int SHARDS = Math.max(1, Settings.getInt("shards/count", 1));
+
+	// The managed executor, looked up on first use
+	private static volatile ExecutorService executor;
+
+	// Orders elements by name, for merging the results from several shards
+	private static final Comparator<Element> BY_NAME = new Comparator<Element>() {
+		@Override
+		public int compare(Element e1, Element e2) {
+			String n1 = e1.getName();
+			String n2 = e2.getName();
+
+			if (n1 == null || n2 == null) {
+				return n1 == null ? (n2 == null ? 0 : -1) : 1;
+			}
+			return n1.compareTo(n2);
+		}
+	};
+
+	private ShardRouter() {
+	}
+
+	/**
+	 * Get the number of shards
+	 * @return the number of shards, at least 1
+	 */
+	public static int count() {
+		return SHARDS;
+	}
+
+	/**
+	 * Get the shard holding a parent and its minions
+	 * @param parentName name of the parent
+	 * @return index of the shard
+	 */
+	public static int shardFor(String parentName) {
+		if (SHARDS == 1 || parentName == null) {
+			return 0;
+		}
+
+		// String.hashCode() is fixed by the Java spec, so placement is the same on every server and restart
+		int hash = parentName.hashCode();
+		hash ^= (hash >>> 16);
+
+		return (hash & Integer.MAX_VALUE) % SHARDS;
+	}
+
+	/**
+	 * Run a task on every shard, in parallel if there is more than one
+	 * @param task the work to run
+	 * @return the result from each shard, in shard order
+	 */
+	public static <T> List<T> scatter(final ShardTask<T> task) {
+		List<T> results = new ArrayList<T>(SHARDS);
+
+		// Nothing to run in parallel, so don't pay for a thread hand-off
+		if (SHARDS == 1) {
+			results.add(task.run(0));
+			return results;
+		}
+
+		ExecutorService pool = getExecutor();
+		List<Future<T>> futures = new ArrayList<Future<T>>(SHARDS);
+
+		// Hand all but the first shard to the executor, and run the first on this thread meanwhile
+		for (int shard = 1; shard < SHARDS; shard++) {
+			final int target = shard;
+			Callable<T> call = new Callable<T>() {
+				@Override
+				public T call() {
+					return task.run(target);
+				}
+			};
+
+			futures.add(pool == null ? null : pool.submit(call));
+		}
+
+		results.add(task.run(0));
+
+		for (int shard = 1; shard < SHARDS; shard++) {
+			Future<T> future = futures.get(shard - 1);
+			results.add(future == null ? task.run(shard) : getResult(future));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Merge lists of elements read from each shard into a single list, ordered by name
+	 * @param perShard the lists from each shard
+	 * @return the merged list
+	 */
+	public static <E extends Element> List<E> gather(List<List<E>> perShard) {
+		List<E> merged = new ArrayList<E>();
+
+		for (List<E> elements: perShard) {
+			merged.addAll(elements);
+		}
+
+		// Sorted even from one shard, so that the order doesn't depend on the number of shards
+		Collections.sort(merged, BY_NAME);
+
+		return merged;
+	}
+
+	/**
+	 * Wait for the result from a shard, and unwrap any failure
+	 * @param future the work running on the shard
+	 * @return the result
+	 */
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while reading shards", ie);
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new PersistenceException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Look up the managed executor
+	 * @return the executor, or null if there isn't one, in which case the shards are read one after another
+	 */
+	private static ExecutorService getExecutor() {
+		ExecutorService found = executor;
+
+		if (found == null) {
+			try {
+				found = (ExecutorService) new InitialContext().lookup(EXECUTOR_JNDI_NAME);
+				executor = found;
+			}
+			catch (NamingException ne) {
+				System.out.println("WARNING no managed executor, shards will be read one at a time: " + ne.getMessage());
+			}
+		}
+
+		return found;
+	}
+}
@@ -0,0 +1,373 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.exceptions.ExceptionHandler;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/**
+ * Slow query log: times every query EclipseLink runs, and logs those that take longer than
+ * slowQueries/thresholdMillis, with their SQL, the types of their parameters (not the values, which may be
+ * private), the rows they returned or changed and the DBUtility or ReadDBUtility method they were run from.
+ * The most recent are kept for GET /Admin/slowQueries.
+ * With slowQueries/derbyPlans, Derby runtime statistics are switched on for every connection, and the plan
+ * of each slow query is logged with it. Derby only keeps the statistics of the last statement on each
+ * connection, so the plan is read before the connection is released. Collecting the statistics slows every
+ * query down, so only switch it on while looking for a problem.
+ * A query which fails never finishes, so SlowQueryLog is also registered as the exception handler, to stop timing it.
+ * Registered with both persistence units as a session event listener and exception handler, see persistence.xml
+ */
+public class SlowQueryLog extends SessionEventAdapter implements ExceptionHandler {
+
+	private static final String ENABLE_STATISTICS = "CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)";
+	private static final String ENABLE_TIMING = "CALL SYSCS_UTIL.SYSCS_SET_STATISTICS_TIMING(1)";
+	private static final String GET_STATISTICS = "VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()";
+
+	// Queries taking longer than this are logged: negative to log none
+	private static final long THRESHOLD_MILLIS = Settings.getLong("slowQueries/thresholdMillis", 200);
+	private static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(THRESHOLD_MILLIS);
+	// The most slow queries kept for the admin endpoint
+	private static final int KEEP = Math.max(1, Settings.getInt("slowQueries/keep", 100));
+	private static final boolean DERBY_PLANS = Settings.getBoolean("slowQueries/derbyPlans", false);
+
+	// Most recent slow queries, oldest overwritten first
+	private static final Map<?, ?>[] RECENT = new Map<?, ?>[KEEP];
+	private static int next;
+
+	private static final AtomicLong QUERIES = new AtomicLong();
+	private static final AtomicLong SLOW = new AtomicLong();
+	private static final AtomicLong MAX_NANOS = new AtomicLong();
+
+	// The queries running on each thread: queries can run inside other queries, for example to fetch relationships
+	private static final ThreadLocal<Timings> TIMINGS = new ThreadLocal<Timings>() {
+		@Override
+		protected Timings initialValue() {
+			return new Timings();
+		}
+	};
+
+	static {
+		Metrics.register("slowQueries", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("thresholdMillis", THRESHOLD_MILLIS);
+				values.put("derbyPlans", DERBY_PLANS);
+				values.put("queries", QUERIES.get());
+				values.put("slow", SLOW.get());
+				values.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(MAX_NANOS.get()));
+			}
+		});
+	}
+
+	/**
+	 * The queries running on a thread with their start times, and the plan read for the innermost one
+	 */
+	private static final class Timings {
+		DatabaseQuery[] queries = new DatabaseQuery[4];
+		long[] starts = new long[4];
+		int depth;
+		String plan;
+
+		/**
+		 * Stop timing a query, and any inside it which failed without being dropped
+		 * @param query the query
+		 * @return its start time, or -1 if it isn't being timed
+		 */
+		long finish(DatabaseQuery query) {
+			for (int i = depth - 1; i >= 0; i--) {
+				if (queries[i] == query) {
+					drop(depth - i);
+					return starts[i];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Stop timing the innermost queries
+		 * @param count the number of queries
+		 */
+		void drop(int count) {
+			while (count-- > 0 && depth > 0) {
+				queries[--depth] = null;
+			}
+			plan = null;
+		}
+	}
+
+	/**
+	 * Get the most recent slow queries
+	 * @return the queries, newest first, each with its time, duration, method, SQL, parameter types and rows
+	 */
+	public static List<Map<?, ?>> getRecent() {
+		List<Map<?, ?>> recent = new ArrayList<Map<?, ?>>(KEEP);
+
+		synchronized (RECENT) {
+			for (int i = 1; i <= KEEP; i++) {
+				Map<?, ?> query = RECENT[(next - i + KEEP) % KEEP];
+				if (query == null) {
+					break;
+				}
+				recent.add(query);
+			}
+		}
+
+		return recent;
+	}
+
+	/**
+	 * Start timing a query
+	 */
+	@Override
+	public void preExecuteQuery(SessionEvent event) {
+		Timings timings = TIMINGS.get();
+
+		if (timings.depth == timings.starts.length) {
+			timings.queries = Arrays.copyOf(timings.queries, timings.depth * 2);
+			timings.starts = Arrays.copyOf(timings.starts, timings.depth * 2);
+		}
+		timings.queries[timings.depth] = event.getQuery();
+		timings.starts[timings.depth++] = System.nanoTime();
+		timings.plan = null;
+	}
+
+	/**
+	 * Finish timing a query, and log it if it was slow
+	 */
+	@Override
+	public void postExecuteQuery(SessionEvent event) {
+		Timings timings = TIMINGS.get();
+		String plan = timings.plan;
+		long start = timings.finish(event.getQuery());
+
+		if (start < 0) {
+			return;
+		}
+
+		long nanos = System.nanoTime() - start;
+
+		QUERIES.incrementAndGet();
+		long max = MAX_NANOS.get();
+		while (nanos > max && !MAX_NANOS.compareAndSet(max, nanos)) {
+			max = MAX_NANOS.get();
+		}
+
+		if (THRESHOLD_MILLIS < 0 || nanos < THRESHOLD_NANOS || event.getQuery() == null) {
+			return;
+		}
+
+		if (plan == null && DERBY_PLANS && event.getSession() instanceof AbstractSession) {
+			// Still in a transaction, so the connection is still held
+			AbstractSession session = (AbstractSession) event.getSession();
+			if (session.isInTransaction()) {
+				plan = readPlan(session.getAccessor());
+			}
+		}
+
+		record(event.getQuery(), event.getResult(), nanos, plan);
+	}
+
+	/**
+	 * A query failed, so postExecuteQuery() won't be called for it: stop timing it, and pass the exception on.
+	 * Each query the failure passes through calls this in turn, innermost first
+	 * @param exception the failure
+	 * @return never returns normally
+	 */
+	@Override
+	public Object handleException(RuntimeException exception) {
+		TIMINGS.get().drop(1);
+		throw exception;
+	}
+
+	/**
+	 * Switch on Derby runtime statistics for a connection, if plans are wanted
+	 */
+	@Override
+	public void postAcquireConnection(SessionEvent event) {
+		if (!DERBY_PLANS || !(event.getResult() instanceof Accessor)) {
+			return;
+		}
+
+		Connection connection = ((Accessor) event.getResult()).getConnection();
+		if (connection == null) {
+			return;
+		}
+
+		Statement statement = null;
+		try {
+			statement = connection.createStatement();
+			statement.execute(ENABLE_STATISTICS);
+			statement.execute(ENABLE_TIMING);
+		}
+		catch (SQLException sqle) {
+			System.out.println("WARNING can't switch on Derby runtime statistics: " + sqle.getMessage());
+		}
+		finally {
+			close(statement);
+		}
+	}
+
+	/**
+	 * Read the plan of the running query before its connection goes back to the pool, if it has been slow so far
+	 */
+	@Override
+	public void preReleaseConnection(SessionEvent event) {
+		if (!DERBY_PLANS || THRESHOLD_MILLIS < 0 || !(event.getResult() instanceof Accessor)) {
+			return;
+		}
+
+		Timings timings = TIMINGS.get();
+		if (timings.depth > 0 && System.nanoTime() - timings.starts[timings.depth - 1] >= THRESHOLD_NANOS) {
+			timings.plan = readPlan((Accessor) event.getResult());
+		}
+	}
+
+	/**
+	 * Log a slow query and keep it for the admin endpoint
+	 * @param query the query
+	 * @param result its result: a list of rows, a row, or the number of rows changed
+	 * @param nanos how long it took
+	 * @param plan its Derby plan, or null
+	 */
+	private static void record(DatabaseQuery query, Object result, long nanos, String plan) {
+		SLOW.incrementAndGet();
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		String sql = query.getSQLString();
+		List<String> parameters = parameterTypes(query);
+		int rows = result == null ? 0 : result instanceof Collection ? ((Collection<?>) result).size() :
+				result instanceof Number ? ((Number) result).intValue() : 1;
+		String method = caller();
+
+		Map<String, Object> entry = new LinkedHashMap<String, Object>();
+		entry.put("time", new Date());
+		entry.put("millis", millis);
+		entry.put("method", method);
+		String name = query.getName();
+		entry.put("query", name == null || name.isEmpty() ? query.getClass().getSimpleName() : name);
+		entry.put("sql", sql);
+		entry.put("parameters", parameters);
+		entry.put("rows", rows);
+		if (plan != null) {
+			entry.put("plan", plan);
+		}
+
+		synchronized (RECENT) {
+			RECENT[next] = entry;
+			next = (next + 1) % KEEP;
+		}
+
+		System.out.println("WARNING slow query, " + millis + "ms in " + method + ": " + sql + " " + parameters + ", " + rows + " rows"
+				+ (plan == null ? "" : "\n" + plan));
+	}
+
+	/**
+	 * Describe the parameters of a query by their types
+	 * @param query the query
+	 * @return the type of each parameter, "null" for a null value
+	 */
+	private static List<String> parameterTypes(DatabaseQuery query) {
+		List<String> types = new ArrayList<String>();
+		Map<?, ?> row = query.getTranslationRow();
+
+		if (row != null) {
+			for (Object value: row.values()) {
+				types.add(value == null ? "null" : value.getClass().getSimpleName());
+			}
+		}
+
+		return types;
+	}
+
+	/**
+	 * Find the DB method a query was run from: the outermost DBUtility or ReadDBUtility method on the stack,
+	 * so that queries run by a commit are put down to the method that committed
+	 * @return class and method name, or "unknown"
+	 */
+	private static String caller() {
+		String caller = "unknown";
+		boolean found = false;
+
+		for (StackTraceElement frame: new Throwable().getStackTrace()) {
+			String className = frame.getClassName();
+			if (className.equals(DBUtility.class.getName()) || className.equals(ReadDBUtility.class.getName())) {
+				caller = className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+				found = true;
+			}
+			else if (found) {
+				break;
+			}
+		}
+
+		return caller;
+	}
+
+	/**
+	 * Read the Derby plan of the last statement run on a connection
+	 * @param accessor holding the connection
+	 * @return the plan, or null if there is none
+	 */
+	private static String readPlan(Accessor accessor) {
+		Connection connection = accessor == null ? null : accessor.getConnection();
+		if (connection == null) {
+			return null;
+		}
+
+		Statement statement = null;
+		try {
+			statement = connection.createStatement();
+			ResultSet results = statement.executeQuery(GET_STATISTICS);
+			return results.next() ? results.getString(1) : null;
+		}
+		catch (SQLException sqle) {
+			System.out.println("WARNING can't read Derby runtime statistics: " + sqle.getMessage());
+			return null;
+		}
+		finally {
+			close(statement);
+		}
+	}
+
+	private static void close(Statement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			}
+			catch (SQLException sqle) {
+				// Nothing more to do with it
+			}
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.persistence.PersistenceException;
+
+import org.eclipse.persistence.queries.ScrollableCursor;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Element;
+import com.test.service.model.Minion;
+import com.test.service.model.Parent;
+
+/**
+ * Implementation of the RESTful TransferService: export and import of the whole dataset as
+ * newline-delimited JSON, one parent or minion per line, each parent followed by its minions.
+ * Both directions use a fixed amount of memory however big the dataset is: export reads through
+ * server-side cursors, and import commits in chunks of a fixed size
+ */
+public class TransferServiceHelper {
+
+	/** Value of the "type" field of a parent line */
+	public static final String PARENT_TYPE = ParentEntity.TYPE;
+	/** Value of the "type" field of a minion line */
+	public static final String MINION_TYPE = MinionEntity.TYPE;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Rows read from the database at a time on export, and the number of parents between clearing the persistence context
+	private static final int FETCH_SIZE = Math.max(1, Settings.getInt("transfer/fetchSize", 500));
+	// Lines committed in each transaction on import
+	private static final int CHUNK_SIZE = Math.max(1, Settings.getInt("transfer/chunkSize", 500));
+
+	private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+	private static final JsonReaderFactory READERS = Json.createReaderFactory(null);
+
+	// Builders for converting between elements and DB entities
+	private ParentBuilder parentBuilder;
+	private MinionBuilder minionBuilder;
+
+	/** Default constructor */
+	public TransferServiceHelper() {
+		parentBuilder = new ParentBuilder();
+		minionBuilder = new MinionBuilder();
+	}
+
+	/**
+	 * Write every parent, each followed by its minions, one shard after another
+	 * @param out stream to write the lines to
+	 * @throws IOException if the stream can't be written
+	 */
+	public void export(OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			export(shard, writer);
+		}
+
+		writer.flush();
+	}
+
+	/**
+	 * Write the parents and minions of one shard. Parents and minions are read through two cursors, both in parent id
+	 * order, and merged as they are written, so only the current parent and minion are held in memory
+	 * @param shard index of the shard
+	 * @param writer to write the lines to
+	 * @throws IOException if the stream can't be written
+	 */
+	private void export(int shard, Writer writer) throws IOException {
+		ReadDBUtility<ParentEntity> reader = new ReadDBUtility<ParentEntity>(shard);
+		ScrollableCursor parents = null;
+		ScrollableCursor minions = null;
+		// Reused for every line
+		StringWriter line = new StringWriter();
+
+		try {
+			parents = reader.scrollParents(FETCH_SIZE);
+			minions = reader.scrollMinions(FETCH_SIZE);
+
+			Object[] minion = minions.hasNext() ? (Object[]) minions.next() : null;
+			int sinceClear = 0;
+
+			while (parents.hasNext()) {
+				ParentEntity parent = (ParentEntity) parents.next();
+				Integer parentId = parent.getId();
+
+				writeParent(line, parent);
+				writeLine(writer, line);
+
+				// Minions whose parent id is lower belong to a parent deleted since the parents cursor was opened
+				while (minion != null && (Integer) minion[0] <= parentId) {
+					if (parentId.equals(minion[0])) {
+						writeMinion(line, parent.getName(), minion, reader.getContents(minion[3], minion[4]));
+						writeLine(writer, line);
+					}
+					minion = minions.hasNext() ? (Object[]) minions.next() : null;
+				}
+
+				// Let the parents written so far be garbage collected
+				if (++sinceClear >= FETCH_SIZE) {
+					reader.clear();
+					sinceClear = 0;
+				}
+			}
+		}
+		finally {
+			if (minions != null) {
+				minions.close();
+			}
+			if (parents != null) {
+				parents.close();
+			}
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read parents and minions, and add them to the DB. A minion's parent must be earlier in the input, or
+	 * already in the DB, as it is with the output of export().
+	 * Names are not checked against the DB (that would cost a query per line), so import into an empty DB
+	 * @param in stream to read the lines from
+	 * @return the number of parents and minions imported
+	 * @throws ServiceException.BadRequest if a line isn't a valid parent or minion: the chunks before it have already been committed
+	 * @throws ServiceException.NotFound if a minion's parent can't be found
+	 * @throws IOException if the stream can't be read
+	 */
+	public Map<String, Object> importFrom(InputStream in) throws ServiceException, IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+		Chunk chunk = new Chunk();
+		long parents = 0;
+		long minions = 0;
+		long lineNumber = 0;
+		String text;
+
+		while ((text = reader.readLine()) != null) {
+			lineNumber++;
+
+			if (text.trim().isEmpty()) {
+				continue;
+			}
+
+			Element element = parse(text, lineNumber);
+			boolean isParent = element instanceof Parent;
+			String shardName = isParent ? element.getName() : ((Minion) element).getParentName();
+
+			// A transaction can only write to one database
+			int shard = ShardRouter.shardFor(shardName);
+			if (chunk.size() >= CHUNK_SIZE || (chunk.size() > 0 && shard != chunk.shard)) {
+				chunk.commit();
+			}
+
+			chunk.add(shard, element);
+
+			if (isParent) {
+				parents++;
+			}
+			else {
+				minions++;
+			}
+		}
+
+		chunk.commit();
+
+		Map<String, Object> counts = new LinkedHashMap<String, Object>();
+		counts.put("parents", parents);
+		counts.put("minions", minions);
+
+		return counts;
+	}
+
+	/**
+	 * Elements read on import and not yet committed, all for the same shard
+	 */
+	private class Chunk {
+		private final List<Element> elements = new ArrayList<Element>(CHUNK_SIZE);
+		private int shard;
+		// The last parent committed, so that its minions in the next chunk don't each have to look it up
+		private String lastParentName;
+		private Integer lastParentId;
+		private int lastParentShard;
+
+		int size() {
+			return elements.size();
+		}
+
+		void add(int shardIn, Element element) {
+			shard = shardIn;
+			elements.add(element);
+		}
+
+		/**
+		 * Add the elements to the DB under a single transaction, so the inserts can be batched
+		 */
+		void commit() {
+			if (elements.isEmpty()) {
+				return;
+			}
+
+			DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+			// Parents created in this chunk, which have no ids until the commit
+			Map<String, ParentEntity> created = new HashMap<String, ParentEntity>();
+			// Minions added to parents which already existed, by parent id
+			Map<Integer, Long> referenced = new HashMap<Integer, Long>();
+			ParentEntity last = null;
+
+			try {
+				db.beginTran();
+
+				for (Element element: elements) {
+					if (element instanceof Parent) {
+						last = parentBuilder.createEntityFromElement((Parent) element);
+						created.put(last.getName(), last);
+						db.applyCreate(last);
+					}
+					else {
+						MinionEntity minion = minionBuilder.createEntityFromElement((Minion) element);
+						ParentEntity parent = parentFor(db, created, ((Minion) element).getParentName());
+						minion.setParent(parent);
+						db.applyCreate(minion);
+						
+						// Count the minion: parents created in this chunk aren't inserted yet, so just set theirs
+						if (created.get(parent.getName()) == parent) {
+							parent.setMinionCount(parent.getMinionCount() + 1);
+							parent.setLastMinionChange(new Date());
+						}
+						else {
+							Long added = referenced.get(parent.getId());
+							referenced.put(parent.getId(), added == null ? 1 : added + 1);
+						}
+					}
+				}
+				
+				// One update for each existing parent, however many of its minions were in the chunk
+				for (Map.Entry<Integer, Long> parent: referenced.entrySet()) {
+					db.adjustMinionCount(parent.getKey(), parent.getValue());
+				}
+
+				db.commitTran();
+			}
+			catch (RuntimeException re) {
+				db.rollback();
+				throw re;
+			}
+			catch (Exception e) {
+				db.rollback();
+				throw new PersistenceException("Import failed: " + e.getMessage(), e);
+			}
+
+			if (last != null) {
+				lastParentName = last.getName();
+				lastParentId = last.getId();
+				lastParentShard = shard;
+			}
+			elements.clear();
+		}
+
+		/**
+		 * Find the parent of a minion being imported
+		 * @param db utility holding the transaction
+		 * @param created parents created in this chunk
+		 * @param name of the parent
+		 * @return the parent, or a reference to it
+		 */
+		private ParentEntity parentFor(DBUtility<DBEntity> db, Map<String, ParentEntity> created, String name) {
+			ParentEntity parent = created.get(name);
+
+			if (parent == null) {
+				if (name.equals(lastParentName) && shard == lastParentShard) {
+					parent = db.getEntityManager().getReference(ParentEntity.class, lastParentId);
+				}
+				else {
+					parent = db.getParentReference(name);
+				}
+			}
+
+			return parent;
+		}
+	}
+
+	/**
+	 * Parse a line of input
+	 * @param text the line
+	 * @param lineNumber for error messages
+	 * @return a Parent or Minion element
+	 * @throws ServiceException.BadRequest if the line is not a valid parent or minion
+	 */
+	private static Element parse(String text, long lineNumber) throws ServiceException {
+		JsonObject json;
+		JsonReader reader = READERS.createReader(new StringReader(text));
+
+		try {
+			json = reader.readObject();
+		}
+		catch (JsonException je) {
+			throw new ServiceException.BadRequest("Line " + lineNumber + " is not a JSON object: " + je.getMessage());
+		}
+		finally {
+			reader.close();
+		}
+
+		String type = json.getString("type", null);
+		String name = json.getString("name", null);
+
+		if (name == null) {
+			throw new ServiceException.BadRequest("Line " + lineNumber + " has no name");
+		}
+
+		Element element;
+
+		if (PARENT_TYPE.equals(type)) {
+			element = new Parent();
+		}
+		else if (MINION_TYPE.equals(type)) {
+			Minion minion = new Minion();
+			minion.setParentName(json.getString("parentName", null));
+
+			if (minion.getParentName() == null) {
+				throw new ServiceException.BadRequest("Line " + lineNumber + ": minion " + name + " has no parentName");
+			}
+
+			if (json.containsKey("contents") && !json.isNull("contents")) {
+				ArrayList<String> contents = new ArrayList<String>();
+				for (JsonValue content: json.getJsonArray("contents")) {
+					if (content.getValueType() == JsonValue.ValueType.NULL) {
+						contents.add(null);
+					}
+					else if (content.getValueType() == JsonValue.ValueType.STRING) {
+						contents.add(((JsonString) content).getString());
+					}
+					else {
+						throw new ServiceException.BadRequest("Line " + lineNumber + ": the contents of minion " + name + " must be strings");
+					}
+				}
+				minion.setContents(contents);
+			}
+
+			element = minion;
+		}
+		else {
+			throw new ServiceException.BadRequest("Line " + lineNumber + " has unknown type " + type);
+		}
+
+		element.setName(name);
+		element.setDescription(json.getString("description", null));
+
+		return element;
+	}
+
+	/**
+	 * Write a parent as JSON
+	 * @param line to write to
+	 * @param parent the parent
+	 */
+	private static void writeParent(StringWriter line, ParentEntity parent) {
+		JsonGenerator json = GENERATORS.createGenerator(line);
+
+		json.writeStartObject().write("type", PARENT_TYPE).write("name", parent.getName());
+		writeOptional(json, "description", parent.getDescription());
+		json.writeEnd().close();
+	}
+
+	/**
+	 * Write a minion as JSON
+	 * @param line to write to
+	 * @param parentName name of the minion's parent
+	 * @param row parent id, name and description of the minion, as read by ReadDBUtility.scrollMinions()
+	 * @param contents the contents of the minion
+	 */
+	private static void writeMinion(StringWriter line, String parentName, Object[] row, List<String> contents) {
+		JsonGenerator json = GENERATORS.createGenerator(line);
+
+		json.writeStartObject().write("type", MINION_TYPE).write("name", (String) row[1]);
+		writeOptional(json, "description", (String) row[2]);
+		json.write("parentName", parentName);
+
+		if (contents != null) {
+			json.writeStartArray("contents");
+			for (String content: contents) {
+				if (content == null) {
+					json.writeNull();
+				}
+				else {
+					json.write(content);
+				}
+			}
+			json.writeEnd();
+		}
+
+		json.writeEnd().close();
+	}
+
+	/**
+	 * Write a field, leaving it out if it has no value
+	 * @param json generator for the object being written
+	 * @param name of the field
+	 * @param value of the field, can be null
+	 */
+	private static void writeOptional(JsonGenerator json, String name, String value) {
+		if (value != null) {
+			json.write(name, value);
+		}
+	}
+
+	/**
+	 * Copy a line of JSON to the output, and empty it for the next line
+	 * @param writer the output
+	 * @param line the JSON
+	 * @throws IOException if the output can't be written
+	 */
+	private static void writeLine(Writer writer, StringWriter line) throws IOException {
+		StringBuffer buffer = line.getBuffer();
+
+		writer.append(buffer).append('\n');
+		buffer.setLength(0);
+	}
+}
@@ -0,0 +1,623 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.QueryTimeoutException;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.model.Minion;
+
+/**
+ * Write-behind for minion creates and updates: the write is appended to a journal on local disk and
+ * acknowledged straight away, and a background drainer applies the journal to the DB in batches.
+ * The journal survives a restart, and is replayed as soon as the application starts.
+ * Writes are applied in the order they were accepted. A write which the DB rejects (a duplicate name, a
+ * missing parent, or a constraint violation) is logged with its record and counted as failed, and the rest carry
+ * on; if the DB is unavailable, or the transaction lost a lock, the drainer backs off and tries the same writes
+ * again. Any other failure is tried writeBehind/maxAttempts times before the write is dropped, so that one bad
+ * record can't hold up the writes behind it for ever.
+ * Until a write has been applied, reads don't see it. Writes made directly (a delete, a create or update when
+ * the journal is full, a patch, or an append to the contents) call flush() first, so that they come after the
+ * writes accepted before them.
+ * Off by default: enable with the writeBehind/enabled setting
+ */
+public final class WriteBehind {
+
+	// Journal record fields
+	private static final String OPERATION = "op";
+	private static final String CREATE = "create";
+	private static final String UPDATE = "update";
+	private static final String TARGET = "target";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// JNDI name of the container's default managed thread factory, whose threads have the java:comp context
+	private static final String THREAD_FACTORY_JNDI_NAME = "java:comp/DefaultManagedThreadFactory";
+
+	private static final boolean ENABLED = Settings.getBoolean("writeBehind/enabled", false);
+	// Journal file: the default is in the server's working directory
+	private static final String JOURNAL_FILE = Settings.getString("writeBehind/journalFile", "minion-journal.dat");
+	private static final int JOURNAL_SIZE = Settings.getInt("writeBehind/journalSizeMB", 64) * 1024 * 1024;
+	// Flush each write to disk before acknowledging it: without this, a crash of the machine (but not the JVM) can lose writes
+	private static final boolean FORCE = Settings.getBoolean("writeBehind/forceEachWrite", true);
+	// The most writes applied in one transaction
+	private static final int MAX_BATCH = Math.max(1, Settings.getInt("writeBehind/maxBatch", 100));
+	// How long the drainer waits when there is nothing to do, or after the DB has failed
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("writeBehind/idleMillis", 50));
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("writeBehind/retryMillis", 1000));
+	// Tries of a write which failed for a reason that isn't known to be temporary, before it is dropped
+	private static final int MAX_ATTEMPTS = Math.max(1, Settings.getInt("writeBehind/maxAttempts", 60));
+	// How long a write made directly waits for the writes accepted before it to be applied
+	private static final long FLUSH_TIMEOUT_MILLIS = Settings.getLong("writeBehind/flushTimeoutMillis", 10000);
+
+	private static final AtomicLong APPENDED = new AtomicLong();
+	private static final AtomicLong APPLIED = new AtomicLong();
+	private static final AtomicLong FAILED = new AtomicLong();
+	private static final AtomicLong JOURNAL_FULL = new AtomicLong();
+	private static final AtomicLong FLUSH_TIMEOUTS = new AtomicLong();
+
+	private static final ServiceException FLUSH_TIMED_OUT = new ServiceException.Unavailable("Earlier writes to minions are still being applied, try again later");
+
+	private static volatile Journal journal;
+	private static volatile Thread drainer;
+	private static volatile boolean stopping;
+
+	// Failed tries of the first write not yet dealt with: only used by the drainer
+	private static int attempts;
+
+	static {
+		Metrics.register("writeBehind", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				Journal current = journal;
+
+				values.put("enabled", ENABLED);
+				values.put("running", isRunning());
+				values.put("appended", APPENDED.get());
+				values.put("applied", APPLIED.get());
+				values.put("failed", FAILED.get());
+				values.put("journalFull", JOURNAL_FULL.get());
+				values.put("flushTimeouts", FLUSH_TIMEOUTS.get());
+				values.put("lag.records", current == null ? 0 : current.getPendingRecords());
+				values.put("lag.bytes", current == null ? 0 : current.getPendingBytes());
+			}
+		});
+	}
+
+	private WriteBehind() {
+	}
+
+	/**
+	 * Open the journal and start the drainer. If write-behind is disabled but a journal was left by an
+	 * earlier run, it is still replayed, so that no accepted writes are lost
+	 */
+	public static synchronized void start() {
+		File file = new File(JOURNAL_FILE);
+
+		if (drainer != null || (!ENABLED && !file.exists())) {
+			return;
+		}
+
+		ThreadFactory threads;
+		try {
+			threads = (ThreadFactory) new InitialContext().lookup(THREAD_FACTORY_JNDI_NAME);
+		}
+		catch (NamingException ne) {
+			System.out.println("ERROR no managed thread factory, write-behind is disabled: " + ne.getMessage());
+			return;
+		}
+
+		try {
+			journal = new Journal(file.getAbsoluteFile(), JOURNAL_SIZE, FORCE);
+		}
+		catch (IOException ioe) {
+			System.out.println("ERROR can't open journal " + file.getAbsolutePath() + ", write-behind is disabled: " + ioe.getMessage());
+			return;
+		}
+
+		stopping = false;
+		drainer = threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+		drainer.setName("WriteBehind drainer");
+		drainer.start();
+	}
+
+	/**
+	 * Stop the drainer, which closes the journal as it exits: writes not yet applied stay in the journal for the
+	 * next start. If the drainer is still applying a batch after 10 seconds it is left to finish, and the journal
+	 * stays open until it does
+	 */
+	public static synchronized void stop() {
+		Thread thread = drainer;
+
+		if (thread == null) {
+			return;
+		}
+
+		stopping = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (thread.isAlive()) {
+			System.out.println("WARNING write-behind drainer still applying a batch, the journal will be closed when it finishes");
+		}
+	}
+
+	/**
+	 * Check whether writes can be accepted for write-behind
+	 * @return true if write-behind is enabled and the drainer is running
+	 */
+	public static boolean isRunning() {
+		return ENABLED && drainer != null && !stopping;
+	}
+
+	/**
+	 * Accept a new minion, to be created later
+	 * @param minion the minion, with at least name and parentName
+	 * @return false if the write was not accepted (write-behind is not running, or the journal is full), so it must be made directly
+	 */
+	public static boolean create(Minion minion) {
+		return append(CREATE, minion.getName(), minion);
+	}
+
+	/**
+	 * Accept an update to a minion, to be applied later
+	 * @param name of the minion to update
+	 * @param newMinion the new contents
+	 * @return false if the write was not accepted (write-behind is not running, or the journal is full), so it must be made directly
+	 */
+	public static boolean update(String name, Minion newMinion) {
+		return append(UPDATE, name, newMinion);
+	}
+
+	/**
+	 * Wait until every write accepted so far has been applied (or rejected), before making a write directly
+	 * @throws ServiceException.Unavailable if they haven't all been applied within writeBehind/flushTimeoutMillis
+	 */
+	public static void flush() throws ServiceException {
+		Journal current = journal;
+
+		if (current == null) {
+			return;
+		}
+
+		boolean flushed;
+		try {
+			flushed = current.awaitApplied(FLUSH_TIMEOUT_MILLIS);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			flushed = false;
+		}
+
+		if (!flushed) {
+			FLUSH_TIMEOUTS.incrementAndGet();
+			throw FLUSH_TIMED_OUT;
+		}
+	}
+
+	/**
+	 * Append a write to the journal
+	 * @param operation CREATE or UPDATE
+	 * @param name of the minion
+	 * @param minion contents of the minion
+	 * @return true if the write was accepted
+	 */
+	private static boolean append(String operation, String name, Minion minion) {
+		Journal current = journal;
+
+		if (!isRunning() || current == null) {
+			return false;
+		}
+
+		if (!current.append(encode(operation, name, minion))) {
+			JOURNAL_FULL.incrementAndGet();
+			return false;
+		}
+
+		APPENDED.incrementAndGet();
+		LockSupport.unpark(drainer);
+
+		return true;
+	}
+
+	/**
+	 * The drainer: apply the journal until stopped, then close it. Only the drainer closes the journal, so that it
+	 * is never closed under a batch
+	 */
+	private static void drain() {
+		Journal current = journal;
+
+		try {
+			while (!stopping) {
+				try {
+					drainBatch(current);
+				}
+				// Anything else would end the thread, and writes would be accepted that nothing applies
+				catch (Throwable t) {
+					System.out.println("ERROR write-behind drainer failed, will retry: " + t);
+					LockSupport.parkNanos(RETRY_NANOS);
+				}
+			}
+		}
+		finally {
+			current.close();
+			journal = null;
+			drainer = null;
+		}
+	}
+
+	/**
+	 * Apply the next batch of the journal, or wait if there is none
+	 * @param current the journal
+	 */
+	private static void drainBatch(Journal current) {
+		Journal.Batch batch = current.read(MAX_BATCH);
+
+		if (batch.records.isEmpty()) {
+			LockSupport.parkNanos(IDLE_NANOS);
+			return;
+		}
+
+		int applied = apply(batch.records);
+
+		if (applied > 0) {
+			current.advance(batch.ends.get(applied - 1), applied);
+		}
+
+		// The DB failed part way through: wait before trying the rest again
+		if (applied < batch.records.size()) {
+			LockSupport.parkNanos(RETRY_NANOS);
+		}
+	}
+
+	/**
+	 * Apply journal records in order, in as few transactions as possible: consecutive writes to the same shard
+	 * share a transaction
+	 * @param records the records
+	 * @return the number of records dealt with (applied, or rejected by the DB): fewer than all of them if the DB failed
+	 */
+	private static int apply(List<byte[]> records) {
+		int done = 0;
+
+		while (done < records.size()) {
+			int shard = shardOf(records.get(done));
+			int next = done + 1;
+
+			// Updates can't be routed without a query when there are several shards, so apply those on their own
+			if (shard >= 0) {
+				while (next < records.size() && shardOf(records.get(next)) == shard) {
+					next++;
+				}
+			}
+
+			List<byte[]> group = records.subList(done, next);
+
+			if (shard >= 0 && applyTogether(shard, group)) {
+				APPLIED.addAndGet(group.size());
+				attempts = 0;
+				done = next;
+				continue;
+			}
+
+			// The group failed, or can't be grouped: apply its writes one at a time to find out which failed
+			for (byte[] record: group) {
+				if (!applyAlone(record)) {
+					return done;
+				}
+				done++;
+			}
+		}
+
+		return done;
+	}
+
+	/**
+	 * Apply writes to a shard under one transaction
+	 * @param shard index of the shard
+	 * @param group the journal records
+	 * @return true if they were all applied, false if the transaction was rolled back
+	 */
+	private static boolean applyTogether(int shard, List<byte[]> group) {
+		List<JsonObject> writes = new ArrayList<JsonObject>();
+		for (byte[] record: group) {
+			writes.add(decode(record));
+		}
+
+		try {
+			applyInTran(shard, writes);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Apply writes to a shard under one transaction, which is rolled back if any of them fails
+	 * @param shard index of the shard
+	 * @param writes the decoded journal records
+	 * @throws Exception if a write or the transaction failed
+	 */
+	private static void applyInTran(int shard, List<JsonObject> writes) throws Exception {
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+
+		try {
+			db.beginTran();
+
+			for (JsonObject write: writes) {
+				applyInTran(db, write);
+			}
+
+			db.commitTran();
+		}
+		catch (Exception e) {
+			db.rollback();
+			throw e;
+		}
+	}
+
+	/**
+	 * Apply a single write in a transaction of its own, finding its shard first if need be. The DBUtility
+	 * transaction methods are used rather than the service helper, whose direct writes log some failures
+	 * rather than throwing them
+	 * @param record the journal record
+	 * @return true if the write was applied or rejected, false if it failed and should be tried again
+	 */
+	private static boolean applyAlone(byte[] record) {
+		JsonObject write = decode(record);
+		String name = write.getString(TARGET);
+
+		try {
+			Minion minion = toMinion(write);
+			boolean create = CREATE.equals(write.getString(OPERATION));
+			int shard = create ? ShardRouter.shardFor(minion.getParentName()) : new MinionServiceHelper().locate(name);
+
+			if (shard < 0) {
+				throw new ServiceException.NotFound("No minion found with name " + name);
+			}
+
+			// A new parent on another shard means the minion has to move with it
+			int targetShard = create || minion.getParentName() == null ? shard : ShardRouter.shardFor(minion.getParentName());
+
+			if (targetShard == shard) {
+				applyInTran(shard, Collections.singletonList(write));
+			}
+			else {
+				new DBUtility<DBEntity>(shard).moveMinion(new DBUtility<DBEntity>(targetShard), name, minion, false);
+			}
+
+			APPLIED.incrementAndGet();
+			attempts = 0;
+			return true;
+		}
+		// Retrying won't help either of these, so drop the write
+		catch (ServiceException se) {
+			rejected(write, se);
+			return true;
+		}
+		catch (IllegalArgumentException iae) {
+			rejected(write, iae);
+			return true;
+		}
+		catch (Exception e) {
+			if (!isTemporary(e) && ++attempts >= MAX_ATTEMPTS) {
+				rejected(write, e);
+				return true;
+			}
+
+			System.out.println("WARNING write-behind " + write.getString(OPERATION) + " of minion " + name + " failed, will retry: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether a failure is worth trying again: the DB was unavailable, or the transaction lost a lock or
+	 * timed out. A constraint violation, or any other error from the DB, will happen again
+	 * @param e the failure
+	 * @return true if the failure is temporary, false if it is permanent or not known
+	 */
+	private static boolean isTemporary(Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+			if (cause instanceof LockTimeoutException || cause instanceof PessimisticLockException
+					|| cause instanceof QueryTimeoutException
+					|| cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+				return true;
+			}
+
+			if (cause instanceof SQLException) {
+				String state = ((SQLException) cause).getSQLState();
+
+				// Class 08 is a connection failure, class 40 a transaction rolled back by the DB (deadlock, lock timeout)
+				if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Drop a write which the DB rejected, or which kept failing: the record is logged so that it can be made again
+	 * @param write the decoded journal record
+	 * @param e the reason
+	 */
+	private static void rejected(JsonObject write, Exception e) {
+		FAILED.incrementAndGet();
+		attempts = 0;
+		System.out.println("ERROR write-behind " + write.getString(OPERATION) + " of minion " + write.getString(TARGET) + " rejected: " + e.getMessage());
+		System.out.println("ERROR write-behind dropped record: " + write);
+	}
+
+	/**
+	 * Apply a write inside a transaction
+	 * @param db utility holding the transaction
+	 * @param write the decoded journal record
+	 */
+	private static void applyInTran(DBUtility<DBEntity> db, JsonObject write) {
+		String name = write.getString(TARGET);
+		Minion minion = toMinion(write);
+
+		if (CREATE.equals(write.getString(OPERATION))) {
+			if (!db.getEntitiesByName(MinionEntity.TYPE, name).isEmpty()) {
+				throw new ServiceException.Conflict("Minion with name " + name + " already exists");
+			}
+			db.applyMinionCreate(new MinionBuilder().createEntityFromElement(minion), minion.getParentName());
+		}
+		else {
+			db.applyMinionUpdate(name, minion, false);
+		}
+	}
+
+	/**
+	 * Find the shard a journal record applies to, without a query
+	 * @param record the journal record
+	 * @return index of the shard, or -1 if it can't be known without looking in every shard
+	 */
+	private static int shardOf(byte[] record) {
+		JsonObject write = decode(record);
+
+		if (CREATE.equals(write.getString(OPERATION))) {
+			return ShardRouter.shardFor(write.getString("parentName", null));
+		}
+
+		// Moving a minion to a parent on another shard also needs the helper
+		return ShardRouter.count() == 1 ? 0 : -1;
+	}
+
+	/**
+	 * Encode a write as a journal record
+	 * @param operation CREATE or UPDATE
+	 * @param name of the minion
+	 * @param minion contents of the minion
+	 * @return the record
+	 */
+	private static byte[] encode(String operation, String name, Minion minion) {
+		StringWriter text = new StringWriter();
+		JsonGenerator json = Json.createGenerator(text);
+
+		json.writeStartObject().write(OPERATION, operation).write(TARGET, name);
+		writeOptional(json, "name", minion.getName());
+		writeOptional(json, "description", minion.getDescription());
+		writeOptional(json, "parentName", minion.getParentName());
+
+		if (minion.getContents() != null) {
+			json.writeStartArray("contents");
+			for (String content: minion.getContents()) {
+				if (content == null) {
+					json.writeNull();
+				}
+				else {
+					json.write(content);
+				}
+			}
+			json.writeEnd();
+		}
+
+		json.writeEnd().close();
+
+		return text.toString().getBytes(UTF_8);
+	}
+
+	/**
+	 * Decode a journal record
+	 * @param record the record
+	 * @return the write
+	 */
+	private static JsonObject decode(byte[] record) {
+		JsonReader reader = Json.createReader(new StringReader(new String(record, UTF_8)));
+
+		try {
+			return reader.readObject();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Build the minion element from a decoded write
+	 * @param write the decoded journal record
+	 * @return the minion
+	 */
+	private static Minion toMinion(JsonObject write) {
+		Minion minion = new Minion();
+		minion.setName(write.getString("name", null));
+		minion.setDescription(write.getString("description", null));
+		minion.setParentName(write.getString("parentName", null));
+
+		if (write.containsKey("contents")) {
+			ArrayList<String> contents = new ArrayList<String>();
+			for (JsonValue content: write.getJsonArray("contents")) {
+				contents.add(content.getValueType() == JsonValue.ValueType.NULL ? null : ((JsonString) content).getString());
+			}
+			minion.setContents(contents);
+		}
+
+		return minion;
+	}
+
+	/**
+	 * Write a field, leaving it out if it has no value
+	 * @param json generator for the object being written
+	 * @param name of the field
+	 * @param value of the field, can be null
+	 */
+	private static void writeOptional(JsonGenerator json, String name, String value) {
+		if (value != null) {
+			json.write(name, value);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.jpa;
+
+import java.util.ArrayList;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * JPA class for minion contents shared between minions: each distinct contents list is stored once, under the
+ * SHA-256 of its entries, and minions hold the hash instead (see MinionEntity.getContentsHash()).
+ * The reference count is the number of minions holding the hash: it is only ever changed with bulk updates
+ * (see DBUtility), and the row is deleted when it reaches zero. The contents of a hash never change
+ */
+@Entity(name ="Content")
+@Table(name="CONTENT")
+public class ContentEntity {
+
+	// Used for DB lookups, so needs to match the entity name
+	public final static String TYPE = "Content";
+
+	// Hex SHA-256 of the contents
+	@Id
+	@Column(length=64, nullable=false)
+	private String hash;
+
+	// The contents, serialized like MinionEntity's
+	@Column
+	private ArrayList<String> data;
+
+	// Number of minions referring to the contents
+	@Column(nullable=false)
+	private long refCount;
+
+	/**
+	 * Default constructor
+	 */
+	public ContentEntity() {
+	}
+
+	/**
+	 * Constructor for new contents, with a single reference
+	 * @param hashIn hash of the contents
+	 * @param dataIn the contents
+	 */
+	public ContentEntity(String hashIn, ArrayList<String> dataIn) {
+		this(hashIn, dataIn, 1);
+	}
+
+	/**
+	 * Constructor for new contents
+	 * @param hashIn hash of the contents
+	 * @param dataIn the contents
+	 * @param refCountIn number of minions referring to them
+	 */
+	public ContentEntity(String hashIn, ArrayList<String> dataIn, long refCountIn) {
+		hash = hashIn;
+		data = dataIn;
+		refCount = refCountIn;
+	}
+
+	/**
+	 * Get the hash
+	 * @return hex SHA-256 of the contents
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Get the contents
+	 * @return the contents, which must not be modified
+	 */
+	public ArrayList<String> getData() {
+		return data;
+	}
+
+	/**
+	 * Get the number of minions referring to the contents
+	 * @return the reference count
+	 */
+	public long getRefCount() {
+		return refCount;
+	}
+}
@@ -21,8 +21,17 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
 
 @Entity
+// All the sub-classes share this table, so the indexes cover them all: lookups by name, and the minions of a parent in name order
+@Table(indexes={@Index(name="DBENTITY_NAME", columnList="name"), @Index(name="DBENTITY_PARENT_NAME", columnList="parentId, name")})
+// Woven setters report each change as it is made, so a commit doesn't compare every field against a snapshot
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
 /**
  * DBEntity JPA class, holds fields in the DB that are common to all the DB sub-classes
  *
@@ -43,6 +52,14 @@ public class DBEntity {
 	@Column
 	private String name;
 	
+	/**
+	 * Get the id, generated by the database
+	 * @return the id, or null if the entity has not been persisted
+	 */
+	public Integer getId() {
+		return id;
+	}
+	
 	/** 
 	 * Get the object description
 	 * @return The description string
@@ -20,13 +20,23 @@ import java.util.ArrayList;
 
 import javax.persistence.*;
 
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
+import org.eclipse.persistence.annotations.Mutable;
+
 /**
  * JPA class for MinionEntity objects. JPA will automatically create these objects in the database.
  * We haven't specified an inheritance style, the default behaviour is for a single table in Derby
  * with a "dtype" column which records the type of subclass. For more information see:
  * http://docs.oracle.com/javaee/6/tutorial/doc/bnbqn.html
+ * The class is statically woven at build time (see pom.xml), which is what makes the lazy fields and
+ * attribute change tracking work: changes are only seen through the woven setters, so never modify the
+ * contents list in place
  */
 @Entity(name ="Minion")
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
 public class MinionEntity extends DBEntity{
  
 	// Used for DB lookups, so needs to match the entity name
@@ -39,15 +49,28 @@ public class MinionEntity extends DBEntity{
 	 * 
 	 * Cascade type is ALL: changes to entities in this relationship will be updated in referencing objects
 	 * For more details, see https://docs.oracle.com/javaee/7/api/javax/persistence/CascadeType.html
+	 * 
+	 * Lazy, so reading a minion doesn't read its parent too. When the parents of a list of minions are
+	 * needed, they are read together with a single IN query rather than one query per minion
 	 */
-	@ManyToOne(cascade={CascadeType.REFRESH, CascadeType.MERGE})
+	@ManyToOne(cascade={CascadeType.REFRESH, CascadeType.MERGE}, fetch=FetchType.LAZY)
 	@JoinColumn(name="parentId")
+	@BatchFetch(BatchFetchType.IN)
 	private ParentEntity parent;
 
 	// Add your data here
+	// Lazy, so lookups by name and parent listings don't read the contents. Never modified in place (see addContent),
+	// which lets EclipseLink skip cloning and comparing the list on commit
 	@Column
+	@Basic(fetch=FetchType.LAZY)
+	@Mutable(false)
 	private ArrayList<String> contents;
 	
+	// Hash of the contents in the shared content table (see ContentEntity), when they are stored there instead:
+	// the contents field is null then
+	@Column(length=64)
+	private String contentsHash;
+	
 	/**
 	 * Default constructor
 	 */
@@ -76,7 +99,7 @@ public class MinionEntity extends DBEntity{
 	
 	/**
 	 * Get the contents
-	 * @return array of contents
+	 * @return array of contents, which must not be modified: use addContent() or setContents()
 	 */
 	public ArrayList<String> getContents() {
 		return contents;
@@ -84,10 +107,13 @@ public class MinionEntity extends DBEntity{
 	
 	/**
 	 * Add content to the contents
+	 * The list is copied rather than changed in place, so that the change goes through the woven setter
 	 * @param content
 	 */
 	public void addContent(String content) {
-		contents.add(content);
+		ArrayList<String> newContents = contents == null ? new ArrayList<String>() : new ArrayList<String>(contents);
+		newContents.add(content);
+		contents = newContents;
 	}
 	
 	/**
@@ -97,4 +123,20 @@ public class MinionEntity extends DBEntity{
 	public void setContents(ArrayList<String> contentsIn) {
 		contents = contentsIn;
 	}
+	
+	/**
+	 * Get the hash of the shared contents
+	 * @return the hash of a ContentEntity, or null if the contents are held by this minion
+	 */
+	public String getContentsHash() {
+		return contentsHash;
+	}
+	
+	/**
+	 * Set the hash of the shared contents: the contents field should be set to null at the same time
+	 * @param hash of a ContentEntity, or null if the contents are held by this minion
+	 */
+	public void setContentsHash(String hash) {
+		contentsHash = hash;
+	}
 }
\ No newline at end of file
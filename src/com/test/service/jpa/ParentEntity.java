@@ -17,13 +17,21 @@
 package com.test.service.jpa;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.OneToMany;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
 
 @Entity(name ="Parent")
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
 public class ParentEntity extends DBEntity {
 
 	/** Used for DB lookups, so needs to match the entity name */
@@ -37,8 +45,23 @@ public class ParentEntity extends DBEntity {
 	@OneToMany(targetEntity=MinionEntity.class, mappedBy="parent", cascade=CascadeType.ALL)
 	private List<MinionEntity> minions;
 	
+	/**
+	 * Number of minions, kept up to date by DBUtility in the same transaction as every change to the minions,
+	 * so that listings with counts don't need to join and group the minions. See DBUtility.repairMinionCounts()
+	 */
+	@Column
+	private Long minionCount;
+	
+	/**
+	 * When a minion of this parent was last added, moved or deleted: null if never
+	 */
+	@Column
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date lastMinionChange;
+	
 	public ParentEntity() {
 		super();
+		minionCount = 0L;
 	}
 	
 	/**
@@ -51,4 +74,36 @@ public class ParentEntity extends DBEntity {
 		}
 		return minions;
 	}
+	
+	/**
+	 * Get the number of minions, as maintained in the DB
+	 * @return the number of minions
+	 */
+	public long getMinionCount() {
+		return minionCount == null ? 0 : minionCount;
+	}
+	
+	/**
+	 * Set the number of minions: only for new parents, existing ones are maintained by DBUtility with bulk updates
+	 * @param count the number of minions
+	 */
+	public void setMinionCount(long count) {
+		minionCount = count;
+	}
+	
+	/**
+	 * Get when a minion of this parent was last added, moved or deleted
+	 * @return the time, or null if never
+	 */
+	public Date getLastMinionChange() {
+		return lastMinionChange;
+	}
+	
+	/**
+	 * Set when a minion of this parent was last added, moved or deleted
+	 * @param changed the time
+	 */
+	public void setLastMinionChange(Date changed) {
+		lastMinionChange = changed;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The parents or minions asked for by a list of names, in the order of the names
+ * @param <E> Parent or Minion
+ */
+@XmlRootElement
+public class Batch<E extends Element> {
+
+	// One entry for each name asked for, in the same order: null where there is no parent or minion with the name
+	private List<E> results;
+	// Names asked for with no parent or minion, in the same order
+	private List<String> missing;
+
+	/**
+	 * Default constructor
+	 */
+	public Batch() {
+		results = new ArrayList<E>();
+		missing = new ArrayList<String>();
+	}
+
+	/**
+	 * Add the result for the next name
+	 * @param name the name asked for
+	 * @param element the parent or minion with the name, or null if there is none
+	 */
+	public void add(String name, E element) {
+		results.add(element);
+		if (element == null) {
+			missing.add(name);
+		}
+	}
+
+	/**
+	 * Get the results
+	 * @return one entry for each name asked for, null where the name was not found
+	 */
+	public List<E> getResults() {
+		return results;
+	}
+
+	/**
+	 * Set the results
+	 * @param resultsIn one entry for each name asked for
+	 */
+	public void setResults(List<E> resultsIn) {
+		results = resultsIn;
+	}
+
+	/**
+	 * Get the names that were not found
+	 * @return the names, in the order they were asked for
+	 */
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	/**
+	 * Set the names that were not found
+	 * @param missingIn the names
+	 */
+	public void setMissing(List<String> missingIn) {
+		missing = missingIn;
+	}
+}
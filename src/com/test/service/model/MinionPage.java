@@ -0,0 +1,127 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A page of the minions of a parent, in name order
+ */
+@XmlRootElement
+public class MinionPage {
+
+	// Name of the parent
+	private String parentName;
+	// Names of the minions on this page
+	private List<String> names;
+	// Summaries (name and description) of the minions on this page, only set if requested
+	private List<Minion> minions;
+	// Cursor for the next page: pass as the "after" parameter, null on the last page
+	private String after;
+	// Link to the next page, null on the last page
+	private String next;
+
+	/**
+	 * Default constructor
+	 */
+	public MinionPage() {
+		names = new ArrayList<String>();
+	}
+
+	/**
+	 * Get the parent name
+	 * @return name of the parent
+	 */
+	public String getParentName() {
+		return parentName;
+	}
+
+	/**
+	 * Set the parent name
+	 * @param pName name of the parent
+	 */
+	public void setParentName(String pName) {
+		parentName = pName;
+	}
+
+	/**
+	 * Get the minion names
+	 * @return names of the minions on this page
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * Set the minion names
+	 * @param namesIn names of the minions on this page
+	 */
+	public void setNames(List<String> namesIn) {
+		names = namesIn;
+	}
+
+	/**
+	 * Get the minion summaries
+	 * @return minions with name, description and parent name only, or null if summaries were not requested
+	 */
+	public List<Minion> getMinions() {
+		return minions;
+	}
+
+	/**
+	 * Set the minion summaries
+	 * @param minionsIn minions with name, description and parent name only
+	 */
+	public void setMinions(List<Minion> minionsIn) {
+		minions = minionsIn;
+	}
+
+	/**
+	 * Get the cursor for the next page
+	 * @return the name of the last minion on this page, or null if this is the last page
+	 */
+	public String getAfter() {
+		return after;
+	}
+
+	/**
+	 * Set the cursor for the next page
+	 * @param afterIn the name of the last minion on this page
+	 */
+	public void setAfter(String afterIn) {
+		after = afterIn;
+	}
+
+	/**
+	 * Get the link to the next page
+	 * @return the link, or null if this is the last page
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	/**
+	 * Set the link to the next page
+	 * @param nextIn the link
+	 */
+	public void setNext(String nextIn) {
+		next = nextIn;
+	}
+}
@@ -16,6 +16,7 @@
 
 package com.test.service.model;
 
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -32,6 +33,21 @@ public class Parent extends Element {
 	 */
 	private Set<String> minionNames;
 	
+	/**
+	 * Number of minions, only set when the minion names are left out
+	 */
+	private Long minionCount;
+	
+	/**
+	 * Link to the pages of minions, only set when the minion names are left out
+	 */
+	private String minionsLink;
+	
+	/**
+	 * When a minion was last added, moved or removed, only set when the minion names are left out
+	 */
+	private Date lastMinionChange;
+	
 	/**
 	 * Default constructor
 	 */
@@ -57,4 +73,51 @@ public class Parent extends Element {
 		minionNames = minions;
 	}
 	
+	/**
+	 * Get the number of minions
+	 * @return the number of minions, null if the minion names are included instead
+	 */
+	public Long getMinionCount() {
+		return minionCount;
+	}
+	
+	/**
+	 * Set the number of minions: should never be populated by a user
+	 * @param count number of minions
+	 */
+	public void setMinionCount(Long count) {
+		minionCount = count;
+	}
+	
+	/**
+	 * Get the link to the pages of minions
+	 * @return the link, null if the minion names are included instead
+	 */
+	public String getMinionsLink() {
+		return minionsLink;
+	}
+	
+	/**
+	 * Set the link to the pages of minions: should never be populated by a user
+	 * @param link to GET /Parent/{name}/minions
+	 */
+	public void setMinionsLink(String link) {
+		minionsLink = link;
+	}
+	
+	/**
+	 * Get when the minions last changed
+	 * @return the time, null if the minions have not changed or the minion names are included instead
+	 */
+	public Date getLastMinionChange() {
+		return lastMinionChange;
+	}
+	
+	/**
+	 * Set when the minions last changed: should never be populated by a user
+	 * @param changed time of the last change
+	 */
+	public void setLastMinionChange(Date changed) {
+		lastMinionChange = changed;
+	}
 }
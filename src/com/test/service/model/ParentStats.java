@@ -0,0 +1,109 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Counts of the parents and their minions, worked out by the database
+ */
+@XmlRootElement
+public class ParentStats {
+
+	// Number of parents
+	private long parents;
+	// Number of minions, across all the parents
+	private long minions;
+	// Most minions of any one parent
+	private long maxMinions;
+	// Number of minions of each parent, by parent name in name order
+	private Map<String, Long> minionCounts;
+
+	/**
+	 * Default constructor
+	 */
+	public ParentStats() {
+		minionCounts = new LinkedHashMap<String, Long>();
+	}
+
+	/**
+	 * Get the number of parents
+	 * @return number of parents
+	 */
+	public long getParents() {
+		return parents;
+	}
+
+	/**
+	 * Set the number of parents
+	 * @param parentsIn number of parents
+	 */
+	public void setParents(long parentsIn) {
+		parents = parentsIn;
+	}
+
+	/**
+	 * Get the number of minions
+	 * @return number of minions across all the parents
+	 */
+	public long getMinions() {
+		return minions;
+	}
+
+	/**
+	 * Set the number of minions
+	 * @param minionsIn number of minions across all the parents
+	 */
+	public void setMinions(long minionsIn) {
+		minions = minionsIn;
+	}
+
+	/**
+	 * Get the most minions of any one parent
+	 * @return the largest minion count
+	 */
+	public long getMaxMinions() {
+		return maxMinions;
+	}
+
+	/**
+	 * Set the most minions of any one parent
+	 * @param maxMinionsIn the largest minion count
+	 */
+	public void setMaxMinions(long maxMinionsIn) {
+		maxMinions = maxMinionsIn;
+	}
+
+	/**
+	 * Get the number of minions of each parent
+	 * @return map of parent name to number of minions, in name order
+	 */
+	public Map<String, Long> getMinionCounts() {
+		return minionCounts;
+	}
+
+	/**
+	 * Set the number of minions of each parent
+	 * @param minionCountsIn map of parent name to number of minions
+	 */
+	public void setMinionCounts(Map<String, Long> minionCountsIn) {
+		minionCounts = minionCountsIn;
+	}
+}
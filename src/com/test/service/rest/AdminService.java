@@ -0,0 +1,140 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.test.service.builders.ContentCleanup;
+import com.test.service.builders.Metrics;
+import com.test.service.builders.ParentServiceHelper;
+import com.test.service.builders.ReadReplica;
+import com.test.service.builders.SlowQueryLog;
+
+/**
+ * Restful administration service, for operational information about the running service
+ */
+@Path("/Admin")
+public class AdminService extends Application {
+
+	/**
+	 * Constructor
+	 */
+	public AdminService() {
+		super();
+	}
+
+	@Produces(MediaType.APPLICATION_JSON)
+	@GET
+	@Path("/metrics")
+	/**
+	 * Get the current values of all the registered metrics
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Admin/metrics
+	 * @return the HTTP response, with a map of metric names to values
+	 */
+	public Response getMetrics() {
+		Map<String, Object> metrics = Metrics.snapshot();
+
+		return Response.ok(metrics).build();
+	}
+
+	@Produces(MediaType.APPLICATION_JSON)
+	@GET
+	@Path("/slowQueries")
+	/**
+	 * Get the most recent queries which took longer than the slowQueries/thresholdMillis setting
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Admin/slowQueries
+	 * @return the HTTP response, with the queries newest first
+	 */
+	public Response getSlowQueries() {
+		List<Map<?, ?>> queries = SlowQueryLog.getRecent();
+
+		return Response.ok(queries).build();
+	}
+
+	@Produces(MediaType.APPLICATION_JSON)
+	@POST
+	@Path("/repair/minionCounts")
+	/**
+	 * Correct any parent minion counts which don't match the minions, for example after a bulk load
+	 * outside the service. Safe to run while the service is in use
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Admin/repair/minionCounts
+	 * @return the HTTP response, with the number of parents corrected
+	 */
+	public Response repairMinionCounts() {
+		int repaired = new ParentServiceHelper().repairMinionCounts();
+		
+		return Response.ok(Collections.singletonMap("repaired", repaired)).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)
+	@POST
+	@Path("/repair/unusedContents")
+	/**
+	 * Delete the shared minion contents which no minion refers to, left by writes which rolled back. This also
+	 * runs every contents/cleanupIntervalMinutes. Safe to run while the service is in use
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Admin/repair/unusedContents
+	 * @return the HTTP response, with the number of contents deleted
+	 */
+	public Response removeUnusedContents() {
+		int removed = ContentCleanup.run();
+		
+		return Response.ok(Collections.singletonMap("removed", removed)).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)
+	@GET
+	@Path("/replica/check")
+	/**
+	 * Compare the in-memory read replica with the DB, reading every parent and minion
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Admin/replica/check
+	 * @return the HTTP response, with the numbers of parents and minions and of any mismatches, or 503 if the
+	 * replica is not enabled or not yet loaded
+	 */
+	public Response checkReplica() {
+		Response res;
+		
+		try {
+			if (!ReadReplica.isReady()) {
+				res = Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).entity("The read replica is not running").build();
+			}
+			else {
+				res = Response.ok(ReadReplica.check()).build();
+			}
+		}
+		catch (IllegalStateException ise) {
+			res = Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).entity(ise.getMessage()).build();
+		}
+		
+		return res;
+	}
+}
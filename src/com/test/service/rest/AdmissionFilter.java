@@ -0,0 +1,331 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.test.service.builders.Metrics;
+import com.test.service.builders.Settings;
+
+/**
+ * Admission control in front of the Parent and Minion resources, and export and import, so that a single client can't saturate
+ * the connection pool behind jdbc/DBConnection:
+ * <ul>
+ * <li>each client has a token bucket: deletes cost more tokens than reads and writes</li>
+ * <li>each class of endpoint (reads, writes, deletes) has a limit on concurrent requests</li>
+ * <li>all the classes share an overall limit, but writes and deletes can't use the last few permits,
+ *     which are kept for reads so that reads are never starved by writes</li>
+ * </ul>
+ * Requests that are not admitted are rejected straight away with 429 and a Retry-After header, rather than queued.
+ * A streamed response (the export) keeps its permits until it has been written, as that is when the DB is read.
+ * The limits are read from Settings, see web.xml
+ */
+@Provider
+@PreMatching
+public class AdmissionFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+	/** HTTP status for rejected requests: not defined in Response.Status for JAX-RS 2.0 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	// Last segment of the paths that take a list of names to read in the body of a POST
+	private static final String MULTI_GET_PATH = "/_get";
+
+	// Request property holding the class of an admitted request, so the response filter can release its permits
+	private static final String ADMITTED_PROPERTY = AdmissionFilter.class.getName() + ".admitted";
+
+	/**
+	 * The classes of endpoint, each with its own concurrency limit
+	 */
+	public enum EndpointClass {
+		READ, WRITE, DELETE
+	}
+
+	// Per-client rate limits
+	private static final TokenBuckets BUCKETS = new TokenBuckets(
+			Settings.getInt("admission/clientStripes", 4096),
+			Settings.getLong("admission/clientRate", 100),
+			Settings.getLong("admission/clientBurst", 200));
+	// Tokens taken by a delete: deletes cascade, so they cost the DB far more than a read
+	private static final int DELETE_COST = Settings.getInt("admission/deleteCost", 20);
+
+	// Overall concurrency limit: should be no more than the size of the connection pool
+	private static final int MAX_CONCURRENT = Settings.getInt("admission/maxConcurrent", 40);
+	// Permits of the overall limit that only reads can use
+	private static final int READ_RESERVE = Settings.getInt("admission/readReserve", 10);
+	private static final int MAX_CONCURRENT_WRITES = Settings.getInt("admission/maxConcurrentWrites", 20);
+	private static final int MAX_CONCURRENT_DELETES = Settings.getInt("admission/maxConcurrentDeletes", 2);
+	private static final Semaphore ALL = new Semaphore(MAX_CONCURRENT);
+	private static final Semaphore WRITES = new Semaphore(MAX_CONCURRENT_WRITES);
+	private static final Semaphore DELETES = new Semaphore(MAX_CONCURRENT_DELETES);
+
+	// Honour X-Forwarded-For: only safe behind a proxy which sets it
+	private static final boolean TRUST_FORWARDED_FOR = Settings.getBoolean("admission/trustForwardedFor", false);
+
+	private static final AtomicLong ADMITTED = new AtomicLong();
+	private static final AtomicLong RATE_LIMITED = new AtomicLong();
+	private static final AtomicLong OVERLOADED = new AtomicLong();
+
+	static {
+		Metrics.register("admission", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("admitted", ADMITTED.get());
+				values.put("rejected.rateLimited", RATE_LIMITED.get());
+				values.put("rejected.overloaded", OVERLOADED.get());
+				values.put("inFlight", inFlight());
+				values.put("inFlight.writes", inFlight(EndpointClass.WRITE));
+				values.put("inFlight.deletes", inFlight(EndpointClass.DELETE));
+			}
+		});
+	}
+
+	@Context
+	HttpServletRequest servletRequest;
+
+	/**
+	 * Get the number of requests currently admitted
+	 * @return the number of requests holding a permit
+	 */
+	public static int inFlight() {
+		return MAX_CONCURRENT - ALL.availablePermits();
+	}
+
+	/**
+	 * Get the overall concurrency limit
+	 * @return the most requests admitted at once
+	 */
+	public static int maxInFlight() {
+		return MAX_CONCURRENT;
+	}
+
+	/**
+	 * Get the number of requests of a class currently admitted
+	 * @param endpointClass WRITE or DELETE: reads have no separate limit, so READ gives all requests
+	 * @return the number of requests of the class holding a permit
+	 */
+	public static int inFlight(EndpointClass endpointClass) {
+		switch (endpointClass) {
+			case WRITE:
+				return MAX_CONCURRENT_WRITES - WRITES.availablePermits();
+			case DELETE:
+				return MAX_CONCURRENT_DELETES - DELETES.availablePermits();
+			default:
+				return inFlight();
+		}
+	}
+
+	/**
+	 * Decide whether to admit the request
+	 */
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		String path = request.getUriInfo().getPath();
+
+		// Only the data resources are limited: admin and health requests must still work under overload
+		if (!isLimited(path)) {
+			return;
+		}
+
+		EndpointClass endpointClass = classify(request.getMethod(), path);
+
+		// Rate limit the client first, because it's cheap and doesn't hold any permits
+		long waitNanos = BUCKETS.tryAcquire(clientOf(request), endpointClass == EndpointClass.DELETE ? DELETE_COST : 1);
+
+		if (waitNanos > 0) {
+			RATE_LIMITED.incrementAndGet();
+			request.abortWith(tooManyRequests("Rate limit exceeded", waitNanos));
+			return;
+		}
+
+		if (!tryAdmit(endpointClass)) {
+			OVERLOADED.incrementAndGet();
+			request.abortWith(tooManyRequests("Too many concurrent " + endpointClass.name().toLowerCase() + " requests",
+					TimeUnit.SECONDS.toNanos(1)));
+			return;
+		}
+
+		ADMITTED.incrementAndGet();
+		request.setProperty(ADMITTED_PROPERTY, endpointClass);
+	}
+
+	/**
+	 * Release the permits held by an admitted request, unless its response is streamed
+	 */
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		EndpointClass endpointClass = (EndpointClass) request.getProperty(ADMITTED_PROPERTY);
+
+		if (endpointClass != null && !("GET".equals(request.getMethod()) && response.getEntity() instanceof StreamingOutput)) {
+			request.removeProperty(ADMITTED_PROPERTY);
+			release(endpointClass);
+		}
+	}
+
+	/**
+	 * Release the permits held by a streamed response once it has been written, or has failed
+	 */
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		try {
+			context.proceed();
+		}
+		finally {
+			EndpointClass endpointClass = (EndpointClass) context.getProperty(ADMITTED_PROPERTY);
+
+			if (endpointClass != null) {
+				context.removeProperty(ADMITTED_PROPERTY);
+				release(endpointClass);
+			}
+		}
+	}
+
+	/**
+	 * Take the permits for a request, without waiting
+	 * @param endpointClass class of the request
+	 * @return true if the request was admitted
+	 */
+	private static boolean tryAdmit(EndpointClass endpointClass) {
+		Semaphore limit = limitFor(endpointClass);
+
+		if (limit != null && !limit.tryAcquire()) {
+			return false;
+		}
+
+		if (ALL.tryAcquire()) {
+			// Reads can take any permit, other classes must leave the read reserve alone
+			if (limit == null || ALL.availablePermits() >= READ_RESERVE) {
+				return true;
+			}
+			ALL.release();
+		}
+
+		if (limit != null) {
+			limit.release();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Give back the permits taken by tryAdmit()
+	 * @param endpointClass class of the request
+	 */
+	private static void release(EndpointClass endpointClass) {
+		ALL.release();
+
+		Semaphore limit = limitFor(endpointClass);
+		if (limit != null) {
+			limit.release();
+		}
+	}
+
+	/**
+	 * Get the per-class concurrency limit
+	 * @param endpointClass class of the request
+	 * @return the limit, null for reads which are only bound by the overall limit
+	 */
+	private static Semaphore limitFor(EndpointClass endpointClass) {
+		switch (endpointClass) {
+			case WRITE:
+				return WRITES;
+			case DELETE:
+				return DELETES;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Classify a request by its HTTP method: a POST to a _get endpoint only reads, with a list of names too long for a URL
+	 * @param method the HTTP method
+	 * @param path the request path
+	 * @return the class of endpoint
+	 */
+	static EndpointClass classify(String method, String path) {
+		if ("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)
+				|| ("POST".equals(method) && path.endsWith(MULTI_GET_PATH))) {
+			return EndpointClass.READ;
+		}
+		if ("DELETE".equals(method)) {
+			return EndpointClass.DELETE;
+		}
+		return EndpointClass.WRITE;
+	}
+
+	/**
+	 * Check whether a request path is subject to admission control
+	 * @param path relative to the application, for example "Parent/p1"
+	 * @return true for the Parent and Minion resources, and for export (a read) and import (a write)
+	 */
+	private static boolean isLimited(String path) {
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+
+		return path.startsWith("Parent") || path.startsWith("Minion") || path.startsWith("export") || path.startsWith("import");
+	}
+
+	/**
+	 * Identify the client making a request
+	 * @param request the request
+	 * @return the client address
+	 */
+	private String clientOf(ContainerRequestContext request) {
+		if (TRUST_FORWARDED_FOR) {
+			String forwardedFor = request.getHeaderString("X-Forwarded-For");
+
+			if (forwardedFor != null && forwardedFor.length() > 0) {
+				int comma = forwardedFor.indexOf(',');
+				return (comma < 0 ? forwardedFor : forwardedFor.substring(0, comma)).trim();
+			}
+		}
+
+		return servletRequest.getRemoteAddr();
+	}
+
+	/**
+	 * Build a 429 response
+	 * @param message reason for the rejection
+	 * @param waitNanos how long the client should wait before retrying
+	 * @return the HTTP response
+	 */
+	private static Response tooManyRequests(String message, long waitNanos) {
+		// Retry-After is in whole seconds, so round up
+		long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+
+		return Response.status(SC_TOO_MANY_REQUESTS).header("Retry-After", retryAfter)
+				.type(MediaType.TEXT_PLAIN).entity(message).build();
+	}
+}
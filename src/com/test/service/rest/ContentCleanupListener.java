@@ -0,0 +1,46 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import com.test.service.builders.ContentCleanup;
+
+/**
+ * Starts the periodic removal of unused shared contents with the application, and stops it with the application
+ */
+@WebListener
+public class ContentCleanupListener implements ServletContextListener {
+
+	/**
+	 * Start the cleanup
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ContentCleanup.start();
+	}
+
+	/**
+	 * Stop the cleanup
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ContentCleanup.stop();
+	}
+}
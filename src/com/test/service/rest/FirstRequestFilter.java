@@ -0,0 +1,115 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+
+import com.test.service.builders.Metrics;
+
+/**
+ * Measures cold start: how long the application took to deploy and warm up (see WarmUpListener),
+ * how long until the first request arrived, and how long the first request took.
+ * Only the first request is timed, so the cost to every other request is a single volatile read
+ */
+@Provider
+@PreMatching
+public class FirstRequestFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	// Request property holding the start time of the first request
+	private static final String STARTED_PROPERTY = FirstRequestFilter.class.getName() + ".started";
+
+	// All times are in milliseconds, -1 until measured
+	private static volatile long deployStartedNanos;
+	private static volatile long jvmStartToDeployMillis = -1;
+	private static volatile long warmUpMillis = -1;
+	private static volatile boolean warmUpSucceeded;
+	private static volatile long deployToFirstRequestMillis = -1;
+	private static volatile long jvmStartToFirstRequestMillis = -1;
+	private static volatile long firstRequestLatencyMillis = -1;
+
+	private static final AtomicBoolean FIRST_REQUEST = new AtomicBoolean(true);
+
+	static {
+		Metrics.register("startup", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("jvmStartToDeployMillis", jvmStartToDeployMillis);
+				values.put("warmUpMillis", warmUpMillis);
+				values.put("warmUpSucceeded", warmUpSucceeded);
+				values.put("deployToFirstRequestMillis", deployToFirstRequestMillis);
+				values.put("jvmStartToFirstRequestMillis", jvmStartToFirstRequestMillis);
+				values.put("firstRequestLatencyMillis", firstRequestLatencyMillis);
+			}
+		});
+	}
+
+	/**
+	 * Record that the application has started deploying: called before the warm-up
+	 */
+	static void deploymentStarted() {
+		deployStartedNanos = System.nanoTime();
+		jvmStartToDeployMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+	}
+
+	/**
+	 * Record that the warm-up has finished
+	 * @param succeeded false if any of the warm-up failed
+	 */
+	static void warmUpFinished(boolean succeeded) {
+		warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deployStartedNanos);
+		warmUpSucceeded = succeeded;
+	}
+
+	/**
+	 * Time the first request to arrive
+	 */
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (FIRST_REQUEST.get() && FIRST_REQUEST.compareAndSet(true, false)) {
+			long now = System.nanoTime();
+
+			if (deployStartedNanos != 0) {
+				deployToFirstRequestMillis = TimeUnit.NANOSECONDS.toMillis(now - deployStartedNanos);
+			}
+			jvmStartToFirstRequestMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+			request.setProperty(STARTED_PROPERTY, now);
+		}
+	}
+
+	/**
+	 * Record the latency of the first request
+	 */
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		Object started = request.getProperty(STARTED_PROPERTY);
+
+		if (started != null) {
+			firstRequestLatencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (Long) started);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.test.service.builders.HealthCheck;
+import com.test.service.builders.Settings;
+
+/**
+ * Restful health service, for the load balancer: readiness (whether to send this server requests) and
+ * liveness (whether the server is running at all). Neither is subject to admission control.
+ * A server is not ready if the DB probe fails, if connections are slow to come from the pool, or if it is
+ * close to its concurrency limits, so that it is taken out of rotation before requests start timing out
+ */
+@Path("/health")
+public class HealthService extends Application {
+
+	private static final String UP = "UP";
+	private static final String DOWN = "DOWN";
+
+	// Not ready when taking a connection (or a probe still waiting for one) takes longer than this
+	private static final long MAX_ACQUIRE_MILLIS = Settings.getLong("health/maxAcquireMillis", 1000);
+	// Not ready when this percentage of admission/maxConcurrent is in use
+	private static final int MAX_IN_FLIGHT_PERCENT = Settings.getInt("health/maxInFlightPercent", 90);
+	// Not ready when more requests than this are waiting for a virtual thread permit
+	private static final int MAX_QUEUED = Settings.getInt("health/maxQueued", 1000);
+
+	/**
+	 * Constructor
+	 */
+	public HealthService() {
+		super();
+	}
+
+	@Produces(MediaType.APPLICATION_JSON)
+	@GET
+	@Path("/ready")
+	/**
+	 * Check whether the server should be sent requests: probes the DB, at most once per health/probeIntervalMillis
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/health/ready
+	 * @return the HTTP response, 200 if ready or 503 if not, with the reasons, the probe and the request counts
+	 */
+	public Response ready() {
+		HealthCheck.Result probe = HealthCheck.probe();
+		long runningMillis = HealthCheck.getRunningMillis();
+		List<String> reasons = new ArrayList<String>();
+
+		if (probe == null) {
+			reasons.add("The first DB probe has not finished");
+		}
+		else if (!probe.isOk()) {
+			reasons.add(probe.getError());
+		}
+		else if (probe.getAcquireMillis() > MAX_ACQUIRE_MILLIS) {
+			reasons.add("Connections took " + probe.getAcquireMillis() + "ms to acquire");
+		}
+		if (runningMillis > MAX_ACQUIRE_MILLIS) {
+			reasons.add("The DB probe has been running for " + runningMillis + "ms");
+		}
+		if (AdmissionFilter.inFlight() * 100 >= AdmissionFilter.maxInFlight() * MAX_IN_FLIGHT_PERCENT) {
+			reasons.add(AdmissionFilter.inFlight() + " of " + AdmissionFilter.maxInFlight() + " requests in flight");
+		}
+		if (RequestExecutor.queued() > MAX_QUEUED) {
+			reasons.add(RequestExecutor.queued() + " requests waiting for the DB");
+		}
+
+		Map<String, Object> health = report(reasons.isEmpty() ? UP : DOWN, probe, runningMillis);
+		health.put("reasons", reasons);
+
+		return Response.status(reasons.isEmpty() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+				.entity(health).build();
+	}
+
+	@Produces(MediaType.APPLICATION_JSON)
+	@GET
+	@Path("/live")
+	/**
+	 * Check whether the server is running: never touches the DB, so a DB outage doesn't get the server restarted,
+	 * but reports the latest probe and the request counts
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/health/live
+	 * @return the HTTP response, always 200 if the server can answer
+	 */
+	public Response live() {
+		return Response.ok(report(UP, HealthCheck.getLast(), HealthCheck.getRunningMillis())).build();
+	}
+
+	/**
+	 * Build the body of a health response
+	 * @param status UP or DOWN
+	 * @param probe the DB probe, or null if there hasn't been one
+	 * @param runningMillis how long a probe has been running, 0 if none is
+	 * @return the status, the DB probe and the request counts
+	 */
+	private static Map<String, Object> report(String status, HealthCheck.Result probe, long runningMillis) {
+		Map<String, Object> health = new LinkedHashMap<String, Object>();
+		health.put("status", status);
+
+		Map<String, Object> db = new LinkedHashMap<String, Object>();
+		if (probe != null) {
+			db.put("ok", probe.isOk());
+			db.put("acquireMillis", probe.getAcquireMillis());
+			db.put("queryMillis", probe.getQueryMillis());
+			db.put("probedAt", probe.getTime());
+			if (probe.getError() != null) {
+				db.put("error", probe.getError());
+			}
+		}
+		db.put("probeRunningMillis", runningMillis);
+		health.put("db", db);
+
+		Map<String, Object> requests = new LinkedHashMap<String, Object>();
+		requests.put("inFlight", AdmissionFilter.inFlight());
+		requests.put("maxInFlight", AdmissionFilter.maxInFlight());
+		requests.put("virtualThreads.active", RequestExecutor.active());
+		requests.put("virtualThreads.queued", RequestExecutor.queued());
+		health.put("requests", requests);
+
+		return health;
+	}
+}
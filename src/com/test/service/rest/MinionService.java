@@ -17,18 +17,24 @@
 package com.test.service.rest;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
-import javax.persistence.PersistenceException;
-import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
-import javax.ws.rs.NotFoundException;
+import javax.ws.rs.HEAD;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Application;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
@@ -36,13 +42,18 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import com.test.service.builders.MinionServiceHelper;
+import com.test.service.builders.ServiceException;
 import com.test.service.model.Minion;
 
 /**
  * Restful MinionService
+ * Each method is run by RequestExecutor: on a virtual thread if they are enabled, otherwise on the request thread
  */
 @Path("/Minion")
 public class MinionService extends Application {
+	/** Media type of a JSON merge patch */
+	public static final String MERGE_PATCH_JSON = "application/merge-patch+json";
+	
 	private MinionServiceHelper serviceHelper;
 	
     @Context
@@ -67,37 +78,121 @@ public class MinionService extends Application {
 	 *   Minion is configured in this class (see class name)
 	 *   
 	 * http://localhost:9080/J2EEService/1.0/Minion/{name}
+	 * http://localhost:9080/J2EEService/1.0/Minion?names=minion1,minion2
+	 * @param names comma-separated names, to get only those minions, in that order, with the names not found
+	 * @return the HTTP response, including the minion contents
+	 */
+	public void get(@QueryParam("names") final String names, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return names == null ? get() : getNames(ParentService.splitNames(names));
+			}
+		});
+	}
+	
+	private Response get() {
+		List<Minion> minions = serviceHelper.get((String) null);
+		URI uri = uriInfo.getAbsolutePathBuilder().build();
+		return Response.ok(minions).header("Location", uri).build();
+	}
+	
+	@POST
+	@Path("/_get")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Get minions by name, for lists of names too long for a URL. Only reads, so admitted as a GET
+	 * Example URL to call:
+	 * POST to http://localhost:9080/J2EEService/1.0/Minion/_get
+	 * Attach a payload with the names, for example:
+	 * [ "minion1", "minion2" ]
+	 * @return the HTTP response, with the minions in the order of the names, and the names not found
+	 */
+	public void getNames(final List<String> names, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getNames(ParentService.checkNames(names));
+			}
+		});
+	}
+	
+	private Response getNames(List<String> names) {
+		return Response.ok(serviceHelper.get(names)).build();
+	}
+	
+	@HEAD
+	/** 
+	 * Count the minions, without returning them
+	 * Example URL to call:
+	 * HEAD http://localhost:9080/J2EEService/1.0/Minion
+	 * @return the HTTP response, with the number of minions in the X-Total-Count header
+	 */
+	public void head(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return head();
+			}
+		});
+	}
+	
+	private Response head() {
+		return Response.ok().header(ParentService.TOTAL_COUNT_HEADER, serviceHelper.count()).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)	
+	@GET
+	@Path("/_count")
+	/** 
+	 * Count the minions in the database
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Minion/_count
+	 * @return the HTTP response, with the count in the body and in the X-Total-Count header
+	 */
+	public void getCount(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getCount();
+			}
+		});
+	}
+	
+	private Response getCount() {
+		long count = serviceHelper.count();
+		return Response.ok(Collections.singletonMap("count", count)).header(ParentService.TOTAL_COUNT_HEADER, count).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)	
+	@GET
+	@Path("/{name}")
+	/** 
+	 * Retrieve a single minion from the database by name
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Minion/{name}
+	 * @param name the name of the minion
 	 * @return the HTTP response, including the minion contents
 	 */
-	public Response get(@PathParam("name") String name) {
-		Response res;
+	public void getByName(@PathParam("name") final String name, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getByName(name);
+			}
+		});
+	}
+	
+	private Response getByName(String name) {
+		List<Minion> minions = serviceHelper.get(name);
 		
-		try {
-			List<Minion> minions = serviceHelper.get(name);
-		    URI uri = uriInfo.getAbsolutePathBuilder().build();
-			res = Response.ok(minions).header("Location", uri).build();
-		}
-		catch (NotFoundException nfe) {
-			nfe.printStackTrace();
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (IllegalArgumentException iae) {
-			iae.printStackTrace();
-			res = Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(iae.getMessage()).build();
+		if (minions.isEmpty()) {
+			throw new ServiceException.NotFound("No minion found with name " + name);
 		}
-		catch (PersistenceException pe) {
-			pe.printStackTrace();
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
-		}
-		catch (Throwable t) {
-			t.printStackTrace();
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
-		}
-		
-		return res;
+		return Response.ok(minions.get(0)).build();
 	}
 	
-	
 	@POST
     @Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
@@ -110,31 +205,129 @@ public class MinionService extends Application {
    	 *	  "name" : "test minion",
    	 *	  "parentName": "test parent"
 	 * }
+	 * With write-behind enabled (see WriteBehind), the minion is accepted with 202 and written later
 	 * @return the HTTP response
 	 */
-	public Response create(Minion minion) {
-		Response res = null;
-		
-		try {
+	public void create(final Minion minion, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return create(minion);
+			}
+		});
+	}
+	
+	private Response create(Minion minion) {
+		if (serviceHelper.persistLater(minion)) {
+			URI uri = uriInfo.getAbsolutePathBuilder().path(minion.getName()).build();
+			return Response.accepted(minion).header("Location", uri).build();
+		}
+		else {
 			minion = serviceHelper.persist(minion);
 		
 			URI uri = uriInfo.getAbsolutePathBuilder().path(minion.getName()).build();
-		    res = Response.ok(minion).header("Location", uri).build();
+			return Response.ok(minion).header("Location", uri).build();
 		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (IllegalArgumentException iae) {
-			res = Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(iae.getMessage()).build();
-		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
+	}
+
+	@PUT
+	@Path("/{name}")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes(MediaType.APPLICATION_JSON)
+	/** Example URL to call:
+	 * PUT http://localhost:9080/J2EEService/1.0/Minion/{name}
+	 * 
+	 * @param name the name of the minion to update
+	 * 
+	 * Attach a payload with the contents to update
+	 * With write-behind enabled (see WriteBehind), the update is accepted with 202 and made later
+	 * 
+	 * @return Response The HTTP response
+	 */
+	public void update(@PathParam("name") final String name, final Minion minion, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return update(name, minion);
+			}
+		});
+	}
+	
+	private Response update(String name, Minion minion) {
+		if (serviceHelper.updateLater(name, minion)) {
+			return Response.accepted(minion).build();
 		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
+		else {
+			Minion fullMinion = serviceHelper.update(name, minion);
+			return Response.ok(fullMinion).build();
 		}
+	}
+
+	@PATCH
+	@Path("/{name}")
+	@Consumes({MERGE_PATCH_JSON, MediaType.APPLICATION_JSON})
+	/** Example URL to call:
+	 * PATCH http://localhost:9080/J2EEService/1.0/Minion/{name}
+	 * 
+	 * @param name the name of the minion to update
+	 * 
+	 * Attach a JSON merge patch (RFC 7386) with only the fields to change, for example:
+	 * {
+	 *   "parentName" : "other parent",
+	 *   "description" : null
+	 * }
+	 * moves the minion and removes its description, without reading or writing its contents.
+	 * Always made straight away, even with write-behind
+	 * 
+	 * @return Response The HTTP response, 204 once the patch is applied
+	 */
+	public void patch(@PathParam("name") final String name, final String patch, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return patch(name, patch);
+			}
+		});
+	}
+	
+	private Response patch(String name, String patch) {
+		serviceHelper.patch(name, patch);
+		return Response.noContent().build();
+	}
+	
+	@POST
+	@Path("/{name}/contents")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes(MediaType.APPLICATION_JSON)
+	/** Example URL to call:
+	 * POST to http://localhost:9080/J2EEService/1.0/Minion/{name}/contents
+	 * 
+	 * @param name the name of the minion
+	 * 
+	 * Attach a payload with the entries to add to the end of the contents, for example:
+	 * [ "entry1", "entry2" ]
+	 * The client doesn't need to read or send the existing contents. Always made straight away, even with write-behind
+	 * 
+	 * @return Response The HTTP response, with the number of entries added and the number in the contents now
+	 */
+	public void appendContents(@PathParam("name") final String name, final List<String> entries, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return appendContents(name, entries);
+			}
+		});
+	}
+	
+	private Response appendContents(String name, List<String> entries) {
+		int size = serviceHelper.appendContents(name, entries);
+		
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("name", name);
+		result.put("appended", entries.size());
+		result.put("size", size);
 		
-		return res;
+		return Response.ok(result).build();
 	}
 
 	@DELETE
@@ -142,24 +335,40 @@ public class MinionService extends Application {
 	 * DELETE to http://localhost:9080/J2EEService/1.0/Minion/
 	 * @return the HTTP response
 	 */
-	public Response delete() {
-		Response res;
-		
-		try {
-			serviceHelper.delete(null);
+	public void delete(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return delete();
+			}
+		});
+	}
+	
+	private Response delete() {
+		serviceHelper.delete(null);
 
-			res = Response.noContent().build();
-		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
-		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
-		}
-		
-		return res;
+		return Response.noContent().build();
+	}
+
+	@DELETE
+	@Path("/{name}")
+	/** Example URL to call:
+	 * DELETE to http://localhost:9080/J2EEService/1.0/Minion/{name}
+	 * No payload required
+	 * @param name the name of the minion to delete
+	 * @return Response The HTTP response
+	 */
+	public void deleteByName(@PathParam("name") final String name, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return deleteByName(name);
+			}
+		});
+	}
+	
+	private Response deleteByName(String name) {
+		serviceHelper.delete(name);
+		return Response.noContent().build();
 	}
 }
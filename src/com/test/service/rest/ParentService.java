@@ -16,20 +16,31 @@
 
 package com.test.service.rest;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
-import javax.persistence.PersistenceException;
-import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
-import javax.ws.rs.NotFoundException;
+import javax.ws.rs.HEAD;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Application;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
@@ -37,13 +48,26 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import com.test.service.builders.ParentServiceHelper;
+import com.test.service.builders.ServiceException;
+import com.test.service.model.MinionPage;
 import com.test.service.model.Parent;
+import com.test.service.model.ParentStats;
 
 /**
  * Restful JPA Service example
+ * Each method is run by RequestExecutor: on a virtual thread if they are enabled, otherwise on the request thread
  */
 @Path("/Parent")
 public class ParentService extends Application {
+	/** Value of the "minions" query parameter which replaces minion names with a count and a link */
+	public static final String MINIONS_COUNT = "count";
+	/** Header giving the number of entities, on the count and stats responses */
+	public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+	/** Largest page of minions that can be requested */
+	public static final int MAX_PAGE_SIZE = 1000;
+	/** Most names that can be requested at once */
+	public static final int MAX_NAMES = 1000;
+	
 	private ParentServiceHelper serviceHelper;
 	
     @Context
@@ -63,35 +87,221 @@ public class ParentService extends Application {
 	 *   1.0 is configured in web.xml
 	 *   Parent is configured in this class using the @Path parameter
 	 *   
-	 *   There are no other parameters, so this will get all objects of type Parent
+	 *   There is no name, so this will get all objects of type Parent
 	 *   
 	 * http://localhost:9080/J2EEService/1.0/Parent/
-	 * @return Response HTTP response with the contents of all the Parent objects
+	 * http://localhost:9080/J2EEService/1.0/Parent?minions=count
+	 * http://localhost:9080/J2EEService/1.0/Parent?names=parent1,parent2
+	 * @param minions "count" to give each parent a minionCount and minionsLink instead of all its minion names
+	 * @param names comma-separated names, to get only those parents, in that order, with the names not found
+	 * @return Response HTTP response with the contents of all the Parent objects, or of the parents named
 	 */
-	public Response get() {
-		Response res;
-		
-		try {
-			List<Parent> parents = serviceHelper.get(null);
-		    URI uri = uriInfo.getAbsolutePathBuilder().build();
-			res = Response.ok(parents).header("Location", uri).build();
+	public void get(@QueryParam("minions") final String minions, @QueryParam("names") final String names,
+			@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return names == null ? get(minions) : getNames(splitNames(names), minions);
+			}
+		});
+	}
+	
+	private Response get(String minions) {
+		List<Parent> parents = MINIONS_COUNT.equals(minions) ?
+				serviceHelper.getSummaries(null, uriInfo.getBaseUri().toString()) : serviceHelper.get(null);
+		URI uri = uriInfo.getAbsolutePathBuilder().build();
+		return Response.ok(parents).header("Location", uri).build();
+	}
+	
+	@POST
+	@Path("/_get")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Get parents by name, for lists of names too long for a URL. Only reads, so admitted as a GET
+	 * Example URL to call:
+	 * POST to http://localhost:9080/J2EEService/1.0/Parent/_get
+	 * Attach a payload with the names, for example:
+	 * [ "parent1", "parent2" ]
+	 * @param minions "count" to give each parent a minionCount and minionsLink instead of all its minion names
+	 * @return Response HTTP response with the parents in the order of the names, and the names not found
+	 */
+	public void getNames(final List<String> names, @QueryParam("minions") final String minions,
+			@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getNames(checkNames(names), minions);
+			}
+		});
+	}
+	
+	private Response getNames(List<String> names, String minions) {
+		return Response.ok(serviceHelper.get(names, MINIONS_COUNT.equals(minions), uriInfo.getBaseUri().toString())).build();
+	}
+	
+	/**
+	 * Split a names query parameter
+	 * @param names comma-separated names
+	 * @return the names, see checkNames()
+	 */
+	static List<String> splitNames(String names) {
+		return checkNames(Arrays.asList(names.split(",")));
+	}
+	
+	/**
+	 * Check a list of requested names
+	 * @param names the names
+	 * @return the names in the same order, without empty or repeated names
+	 * @throws ServiceException.BadRequest if there are no names, or more than MAX_NAMES
+	 */
+	static List<String> checkNames(List<String> names) throws ServiceException {
+		if (names == null) {
+			throw new ServiceException.BadRequest("Provide a list of names");
 		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
+		
+		Set<String> unique = new LinkedHashSet<String>();
+		for (String name: names) {
+			if (name != null && !name.isEmpty()) {
+				unique.add(name);
+			}
 		}
-		catch (IllegalArgumentException iae) {
-			res = Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(iae.getMessage()).build();
+		
+		if (unique.isEmpty() || unique.size() > MAX_NAMES) {
+			throw new ServiceException.BadRequest("Provide between 1 and " + MAX_NAMES + " names");
 		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
+		return new ArrayList<String>(unique);
+	}
+	
+	@HEAD
+	/** 
+	 * Count the parents, without returning them
+	 * Example URL to call:
+	 * HEAD http://localhost:9080/J2EEService/1.0/Parent
+	 * @return Response HTTP response with the number of parents in the X-Total-Count header
+	 */
+	public void head(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return head();
+			}
+		});
+	}
+	
+	private Response head() {
+		return Response.ok().header(TOTAL_COUNT_HEADER, serviceHelper.count()).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)	
+	@GET
+	@Path("/_stats")
+	/** 
+	 * Count the parents and minions, and the minions of each parent, in the database
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Parent/_stats
+	 * @return Response HTTP response with the counts, and the number of parents in the X-Total-Count header
+	 */
+	public void getStats(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getStats();
+			}
+		});
+	}
+	
+	private Response getStats() {
+		ParentStats stats = serviceHelper.getStats();
+		return Response.ok(stats).header(TOTAL_COUNT_HEADER, stats.getParents()).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)	
+	@GET
+	@Path("/{name}")
+	/** 
+	 * Retrieve a single parent from the database by name
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Parent/{name}
+	 * http://localhost:9080/J2EEService/1.0/Parent/{name}?minions=count
+	 * @param name the name of the parent
+	 * @param minions "count" to give the minionCount and minionsLink instead of all the minion names
+	 * @return Response HTTP response with the contents of the parent
+	 */
+	public void getByName(@PathParam("name") final String name, @QueryParam("minions") final String minions,
+			@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getByName(name, minions);
+			}
+		});
+	}
+	
+	private Response getByName(String name, String minions) {
+		List<Parent> parents = MINIONS_COUNT.equals(minions) ?
+				serviceHelper.getSummaries(name, uriInfo.getBaseUri().toString()) : serviceHelper.get(name);
+		
+		if (parents.isEmpty()) {
+			throw new ServiceException.NotFound("No parent found with name " + name);
 		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
+		return Response.ok(parents.get(0)).build();
+	}
+	
+	@Produces(MediaType.APPLICATION_JSON)	
+	@GET
+	@Path("/{name}/minions")
+	/** 
+	 * Retrieve a page of the minions of a parent, in name order
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/Parent/{name}/minions?limit=100&after={last name of previous page}
+	 * @param name the name of the parent
+	 * @param limit the most minions to return, up to MAX_PAGE_SIZE
+	 * @param after the "after" value from the previous page, leave out for the first page
+	 * @param summary true to include minion summaries (name and description) as well as the names
+	 * @return Response HTTP response with the page, including a "next" link if there are more minions
+	 */
+	public void getMinions(@PathParam("name") final String name, @QueryParam("limit") @DefaultValue("100") final int limit,
+			@QueryParam("after") final String after, @QueryParam("summary") @DefaultValue("false") final boolean summary,
+			@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return getMinions(name, limit, after, summary);
+			}
+		});
+	}
+	
+	private Response getMinions(String name, int limit, String after, boolean summary) {
+		if (limit < 1 || limit > MAX_PAGE_SIZE) {
+			throw new ServiceException.BadRequest("limit must be between 1 and " + MAX_PAGE_SIZE);
 		}
 		
-		return res;
-	}
+		MinionPage page = serviceHelper.getMinionPage(name, after, limit, summary);
 		
+		if (page.getAfter() != null) {
+			// The cursor is a minion name, so it is encoded here: UriBuilder would take braces for a template, and
+			// leave % and & as they are
+			URI next = uriInfo.getRequestUriBuilder().replaceQueryParam("after", encodeQueryParam(page.getAfter())).buildFromEncoded();
+			page.setNext(next.toString());
+		}
+		return Response.ok(page).build();
+	}
+	
+	/**
+	 * Percent-encode a query parameter value
+	 * @param value the value
+	 * @return the value encoded as UTF-8, with spaces as %20 rather than a form's +
+	 */
+	private static String encodeQueryParam(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+		}
+		catch (UnsupportedEncodingException uee) {
+			// Every JVM supports UTF-8
+			throw new IllegalStateException(uee);
+		}
+	}
 	
 	@POST
     @Consumes(MediaType.APPLICATION_JSON)
@@ -104,28 +314,74 @@ public class ParentService extends Application {
 	  * }
 	  * @return Response HTTP response
 	  */
-	public Response create(Parent parent) {
-		Response res = null;
-				
-		try {
-			serviceHelper.persist(parent);
-		    URI uri = uriInfo.getAbsolutePathBuilder().path(parent.getName()).build();
-		    res = Response.ok(parent).header("Location", uri).build();
-		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (IllegalArgumentException iae) {
-			res = Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(iae.getMessage()).build();
-		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
-		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
-		}
+	public void create(final Parent parent, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return create(parent);
+			}
+		});
+	}
+	
+	private Response create(Parent parent) {
+		serviceHelper.persist(parent);
+		URI uri = uriInfo.getAbsolutePathBuilder().path(parent.getName()).build();
+		return Response.ok(parent).header("Location", uri).build();
+	}
+	
+	@POST
+	@Path("/{name}/minions/_move")
+	@Produces(MediaType.APPLICATION_JSON)
+	/** Example URL to call:
+	 * POST to http://localhost:9080/J2EEService/1.0/Parent/{name}/minions/_move?to={other parent}
+	 * No payload required: all the minions of the parent are moved to the other parent with a single UPDATE
+	 * @param name the name of the parent which has the minions
+	 * @param to the name of the parent to move them to, which must already exist
+	 * @return Response HTTP response with the number of minions moved
+	 */
+	public void moveMinions(@PathParam("name") final String name, @QueryParam("to") final String to,
+			@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return moveMinions(name, to);
+			}
+		});
+	}
+	
+	private Response moveMinions(String name, String to) {
+		int moved = serviceHelper.moveMinions(name, to);
+		
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("from", name);
+		result.put("to", to);
+		result.put("moved", moved);
 		
-	    return res;
+		// The name as a template value, so that it is encoded
+		URI uri = uriInfo.getBaseUriBuilder().path(ParentService.class).path("{name}/minions").build(to);
+		return Response.ok(result).header("Location", uri).build();
+	}
+	
+	@DELETE
+	@Path("/{name}/minions")
+	/** Example URL to call:
+	 * DELETE to http://localhost:9080/J2EEService/1.0/Parent/{name}/minions
+	 * No payload required: all the minions of the parent are deleted with a single DELETE, and the parent is kept
+	 * @param name the name of the parent
+	 * @return Response The HTTP response
+	 */
+	public void deleteMinions(@PathParam("name") final String name, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return deleteMinions(name);
+			}
+		});
+	}
+	
+	private Response deleteMinions(String name) {
+		serviceHelper.deleteMinions(name);
+		return Response.noContent().build();
 	}
 	
 	@PUT
@@ -141,27 +397,18 @@ public class ParentService extends Application {
 	 * 
 	 * @return Response The HTTP response
 	 */
-	public Response update(@PathParam("name") String name, Parent parent)  {
-		Response res;
-		
-		try {
-			Parent fullParent = serviceHelper.update(name, parent);
-			res = Response.ok(fullParent).build();		
-		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (IllegalArgumentException iae) {
-			res = Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(iae.getMessage()).build();
-		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
-		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
-		}
-		
-		return res;
+	public void update(@PathParam("name") final String name, final Parent parent, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return update(name, parent);
+			}
+		});
+	}
+	
+	private Response update(String name, Parent parent) {
+		Parent fullParent = serviceHelper.update(name, parent);
+		return Response.ok(fullParent).build();
 	}
 
 	
@@ -171,24 +418,40 @@ public class ParentService extends Application {
 	 * No payload required
 	 * @return Response The HTTP response
 	 */
-	public Response delete() {
-		Response res;
-		
-		try {
-			serviceHelper.delete(null);
-			res = Response.noContent().build();		
-		}
-		catch (NotFoundException nfe) {
-			res = Response.status(HttpServletResponse.SC_NOT_FOUND).entity(nfe.getMessage()).build();  
-		}
-		catch (PersistenceException pe) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(pe.getMessage()).build();
-		}
-		catch (Throwable t) {
-			res = Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
-		}
-
-	    return res;
+	public void delete(@Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return delete();
+			}
+		});
+	}
+	
+	private Response delete() {
+		serviceHelper.delete(null);
+		return Response.noContent().build();
 	}
 
+	@DELETE
+	@Path("/{name}")
+	/** Example URL to call:
+	 * DELETE to http://localhost:9080/J2EEService/1.0/Parent/{name}
+	 * No payload required
+	 * The minions of the parent are deleted first, by parent rather than one at a time
+	 * @param name the name of the parent to delete
+	 * @return Response The HTTP response
+	 */
+	public void deleteByName(@PathParam("name") final String name, @Suspended final AsyncResponse async) {
+		RequestExecutor.run(async, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return deleteByName(name);
+			}
+		});
+	}
+	
+	private Response deleteByName(String name) {
+		serviceHelper.delete(name);
+		return Response.noContent().build();
+	}
 }
@@ -36,6 +36,14 @@ public class RESTJaxRsApplication extends Application
 		
 		classes.add(MinionService.class);
 		classes.add(ParentService.class);
+		classes.add(AdminService.class);
+		classes.add(TransferService.class);
+		classes.add(HealthService.class);
+		classes.add(AdmissionFilter.class);
+		classes.add(FirstRequestFilter.class);
+		classes.add(ResponseCache.class);
+		classes.add(ServiceExceptionMapper.class);
+		classes.add(UnexpectedExceptionMapper.class);
 
 		return classes;
 	}
@@ -0,0 +1,47 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import com.test.service.builders.ReadReplica;
+
+/**
+ * Starts loading the in-memory read replica with the application, and stops it with the application.
+ * Reads go to the DB until the load has finished
+ */
+@WebListener
+public class ReadReplicaListener implements ServletContextListener {
+
+	/**
+	 * Start the replica, if it is enabled
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ReadReplica.start();
+	}
+
+	/**
+	 * Stop the replica
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ReadReplica.stop();
+	}
+}
@@ -0,0 +1,231 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.concurrent.ContextService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import com.test.service.builders.Metrics;
+import com.test.service.builders.Settings;
+
+/**
+ * Runs the Parent and Minion resource methods on virtual threads (Java 21 and later): the request is suspended
+ * and the container thread goes straight back to the pool, so a client waiting on the DB costs a small virtual
+ * thread stack rather than a container thread.
+ * Virtual threads are cheap but connections are not, and the embedded Derby driver synchronizes inside its JDBC
+ * calls, which pins the carrier thread: so no more than virtualThreads/dbPermits methods run at once, and the rest
+ * wait for a permit (parked, which costs nothing) rather than being rejected.
+ * The resources are created for each request, so their @Context fields still refer to the request's own objects
+ * on the virtual thread. The java:comp context comes from the container's default context service.
+ * The executor is found by reflection, so the code still builds for Java 7: when the mode is off, or the JVM
+ * has no virtual threads, the methods run on the container thread as before.
+ * Off by default: enable with the virtualThreads/enabled setting
+ */
+final class RequestExecutor {
+
+	// JNDI name of the container's default context service, which gives other threads the java:comp context
+	private static final String CONTEXT_SERVICE_JNDI_NAME = "java:comp/DefaultContextService";
+
+	private static final boolean ENABLED = Settings.getBoolean("virtualThreads/enabled", false);
+	// Methods running at once on virtual threads: should be no more than the size of the connection pool
+	private static final int DB_PERMITS = Math.max(1, Settings.getInt("virtualThreads/dbPermits", 40));
+
+	// Runs the resource methods: virtual threads if they are enabled and available, otherwise the request thread
+	private static final RequestExecutor DEFAULT;
+
+	// Null to run each method on the request thread
+	private final ExecutorService executor;
+	private final ContextService contexts;
+	private final int dbPermits;
+	private final Semaphore permits;
+
+	private final AtomicLong virtual = new AtomicLong();
+	private final AtomicLong inline = new AtomicLong();
+
+	static {
+		ExecutorService executor = null;
+		ContextService contexts = null;
+
+		if (ENABLED) {
+			contexts = lookupContextService();
+			executor = contexts == null ? null : newVirtualThreadExecutor();
+		}
+
+		DEFAULT = new RequestExecutor(executor, contexts, DB_PERMITS);
+
+		Metrics.register("virtualThreads", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("enabled", ENABLED);
+				values.put("running", DEFAULT.executor != null);
+				values.put("virtual", DEFAULT.virtual.get());
+				values.put("inline", DEFAULT.inline.get());
+				values.put("db.permits", DEFAULT.dbPermits);
+				values.put("db.active", active());
+				values.put("db.waiting", queued());
+			}
+		});
+	}
+
+	/**
+	 * Create an executor. The resources all use the one set up from the settings, through the static methods:
+	 * others are only for comparing the modes (see RequestExecutorLoadTest)
+	 * @param executor runs each method on a thread of its own, or null to run them on the request thread
+	 * @param contexts gives the executor's threads the java:comp context
+	 * @param dbPermits the most methods running at once on the executor's threads
+	 */
+	RequestExecutor(ExecutorService executor, ContextService contexts, int dbPermits) {
+		this.executor = executor;
+		this.contexts = contexts;
+		this.dbPermits = dbPermits;
+		this.permits = new Semaphore(dbPermits, true);
+	}
+
+	/**
+	 * Get the number of methods running on virtual threads
+	 * @return the number holding a permit
+	 */
+	static int active() {
+		return DEFAULT.dbPermits - DEFAULT.permits.availablePermits();
+	}
+
+	/**
+	 * Get the number of methods waiting for a permit
+	 * @return an estimate of the queue length
+	 */
+	static int queued() {
+		return DEFAULT.permits.getQueueLength();
+	}
+
+	/**
+	 * Run a resource method and resume the request with its response, or with its exception, which goes to the
+	 * exception mappers as it would have if the method had run on the container thread
+	 * @param async the suspended request
+	 * @param method the method
+	 */
+	static void run(AsyncResponse async, Callable<Response> method) {
+		DEFAULT.submit(async, method);
+	}
+
+	/**
+	 * Run a method on the executor, or on this thread if there is no executor or it is rejected, and resume the
+	 * request with the outcome
+	 * @param async the suspended request
+	 * @param method the method
+	 */
+	void submit(final AsyncResponse async, final Callable<Response> method) {
+		if (executor != null) {
+			Runnable task = contexts.createContextualProxy(new Runnable() {
+				@Override
+				public void run() {
+					callWithPermit(async, method);
+				}
+			}, Runnable.class);
+
+			try {
+				executor.execute(task);
+				virtual.incrementAndGet();
+				return;
+			}
+			catch (RejectedExecutionException ree) {
+				System.out.println("WARNING virtual thread rejected, running on the request thread: " + ree.getMessage());
+			}
+		}
+
+		inline.incrementAndGet();
+		call(async, method);
+	}
+
+	/**
+	 * Run a method once a permit is free
+	 * @param async the suspended request
+	 * @param method the method
+	 */
+	private void callWithPermit(AsyncResponse async, Callable<Response> method) {
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			async.resume(Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build());
+			return;
+		}
+
+		try {
+			call(async, method);
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Run a method and resume the request with the outcome
+	 * @param async the suspended request
+	 * @param method the method
+	 */
+	private static void call(AsyncResponse async, Callable<Response> method) {
+		Response response;
+		try {
+			response = method.call();
+		}
+		catch (Throwable t) {
+			async.resume(t);
+			return;
+		}
+		async.resume(response);
+	}
+
+	private static ContextService lookupContextService() {
+		try {
+			return (ContextService) new InitialContext().lookup(CONTEXT_SERVICE_JNDI_NAME);
+		}
+		catch (NamingException ne) {
+			System.out.println("ERROR no context service, virtual threads are disabled: " + ne.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Create an executor which runs each task on a new virtual thread
+	 * @return the executor, or null if the JVM has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (NoSuchMethodException nsme) {
+			System.out.println("WARNING virtual threads need Java 21 or later, requests run on the request threads");
+		}
+		catch (Exception e) {
+			System.out.println("ERROR can't create virtual threads, requests run on the request threads: " + e.getMessage());
+		}
+		return null;
+	}
+}
@@ -0,0 +1,359 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Priority;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.test.service.builders.DBUtility;
+import com.test.service.builders.Metrics;
+import com.test.service.builders.Settings;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+
+/**
+ * Cache of serialized responses to GET /Parent and GET /Minion, all or one by name: the JSON bytes are kept,
+ * keyed by path, query and Accept header, so a hit skips the DB, the builders and serialization.
+ * Entries are dropped as soon as a write that changes them commits on this server, and again once the read replica
+ * has applied it: a parent or minion by name when a write changes that name (see DBUtility.getWriteGeneration(String,
+ * String), which also covers a parent's minions and a minion's parent), and the lists of all of them after every
+ * write (see DBUtility.getWriteGeneration()). Writes on other servers can't be seen, so entries are also only fresh for
+ * responseCache/maxAgeMillis. For a while after that (responseCache/staleMillis) the stale bytes are still served,
+ * except to the first request to find them stale: it goes through to the resource like a miss, so it rebuilds the
+ * entry as it is written.
+ * The cache holds at most responseCache/maxMB of responses: when it is full, entries already dropped by a write
+ * go first, then the least recently used.
+ * Off by default: enable with the responseCache/enabled setting
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.USER + 100)
+public class ResponseCache implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+	/** Response header saying whether the response came from the cache: HIT, STALE or MISS */
+	public static final String CACHE_HEADER = "X-Cache";
+
+	// Request properties: the cache key, type, name and write generation of a miss, the headers of its response,
+	// and the stale entry it is rebuilding, if any
+	private static final String KEY_PROPERTY = ResponseCache.class.getName() + ".key";
+	private static final String TYPE_PROPERTY = ResponseCache.class.getName() + ".type";
+	private static final String NAME_PROPERTY = ResponseCache.class.getName() + ".name";
+	private static final String GENERATION_PROPERTY = ResponseCache.class.getName() + ".generation";
+	private static final String HEADERS_PROPERTY = ResponseCache.class.getName() + ".headers";
+	private static final String REFRESHING_PROPERTY = ResponseCache.class.getName() + ".refreshing";
+
+	// Parent or Minion, optionally followed by a name: not the _stats and _count endpoints, nor pages of minions
+	private static final Pattern CACHEABLE = Pattern.compile("(Parent|Minion)(/[^/_][^/]*)?/?");
+
+	private static final boolean ENABLED = Settings.getBoolean("responseCache/enabled", false);
+	private static final long MAX_BYTES = Settings.getLong("responseCache/maxMB", 16) * 1024 * 1024;
+	private static final long MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("responseCache/maxAgeMillis", 1000));
+	private static final long STALE_NANOS = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("responseCache/staleMillis", 10000));
+
+	// Least recently used first, guarded by itself, as is bytes
+	private static final Map<String, Entry> CACHE = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static long bytes;
+
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong STALE_HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong STORED = new AtomicLong();
+	private static final AtomicLong EVICTED = new AtomicLong();
+	private static final AtomicLong REFRESHES = new AtomicLong();
+	private static final AtomicLong REFRESH_FAILURES = new AtomicLong();
+
+	static {
+		if (ENABLED) {
+			DBUtility.trackNames();
+		}
+
+		Metrics.register("responseCache", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("enabled", ENABLED);
+				values.put("hits", HITS.get());
+				values.put("staleHits", STALE_HITS.get());
+				values.put("misses", MISSES.get());
+				values.put("stored", STORED.get());
+				values.put("evicted", EVICTED.get());
+				values.put("refreshes", REFRESHES.get());
+				values.put("refreshFailures", REFRESH_FAILURES.get());
+				synchronized (CACHE) {
+					values.put("entries", CACHE.size());
+					values.put("bytes", bytes);
+				}
+			}
+		});
+	}
+
+	/**
+	 * A cached response
+	 */
+	private static final class Entry {
+		final byte[] body;
+		final String mediaType;
+		final Map<String, List<String>> headers;
+		// What the response was read from: the name is null for all the parents or minions
+		final String type;
+		final String name;
+		final long generation;
+		final long storedNanos = System.nanoTime();
+		// Roughly the memory held, for the size limit
+		final long size;
+		// Set while a request is rebuilding the entry, so that there is only one
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(String key, byte[] body, String mediaType, Map<String, List<String>> headers, String type, String name, long generation) {
+			this.body = body;
+			this.mediaType = mediaType;
+			this.headers = headers;
+			this.type = type;
+			this.name = name;
+			this.generation = generation;
+			this.size = body.length + 2L * key.length() + 256;
+		}
+
+		Response toResponse(String state) {
+			Response.ResponseBuilder builder = Response.ok(body, mediaType);
+
+			for (Map.Entry<String, List<String>> header: headers.entrySet()) {
+				for (String value: header.getValue()) {
+					builder.header(header.getKey(), value);
+				}
+			}
+
+			return builder.header(CACHE_HEADER, state).build();
+		}
+
+		boolean isCurrent() {
+			return generation == generation(type, name);
+		}
+	}
+
+	/**
+	 * Get the write generation a response depends on
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name of the parent or minion, or null for all of them
+	 * @return the generation
+	 */
+	private static long generation(String type, String name) {
+		return name == null ? DBUtility.getWriteGeneration() : DBUtility.getWriteGeneration(type, name);
+	}
+
+	/**
+	 * Answer the request from the cache if possible, otherwise mark it to be cached
+	 */
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (!ENABLED || !"GET".equals(request.getMethod())) {
+			return;
+		}
+
+		String path = request.getUriInfo().getPath();
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		Matcher cacheable = CACHEABLE.matcher(path);
+		if (!cacheable.matches()) {
+			return;
+		}
+
+		String type = "Parent".equals(cacheable.group(1)) ? ParentEntity.TYPE : MinionEntity.TYPE;
+		String name = cacheable.group(2) == null ? null : cacheable.group(2).substring(1);
+		String query = request.getUriInfo().getRequestUri().getRawQuery();
+		String accept = request.getHeaderString(HttpHeaders.ACCEPT);
+		String key = path + "?" + (query == null ? "" : query) + " " + (accept == null ? "" : accept);
+		long generation = generation(type, name);
+
+		Entry entry;
+		synchronized (CACHE) {
+			entry = CACHE.get(key);
+		}
+
+		Entry stale = null;
+		if (entry != null && entry.generation == generation) {
+			long age = System.nanoTime() - entry.storedNanos;
+
+			if (age <= MAX_AGE_NANOS) {
+				HITS.incrementAndGet();
+				request.abortWith(entry.toResponse("HIT"));
+				return;
+			}
+			if (age <= MAX_AGE_NANOS + STALE_NANOS) {
+				if (!entry.refreshing.compareAndSet(false, true)) {
+					STALE_HITS.incrementAndGet();
+					request.abortWith(entry.toResponse("STALE"));
+					return;
+				}
+				stale = entry;
+			}
+		}
+
+		if (stale != null) {
+			// This request rebuilds the entry, going through to the resource like a miss, while the others are
+			// still served the stale bytes
+			REFRESHES.incrementAndGet();
+			request.setProperty(REFRESHING_PROPERTY, stale);
+		}
+		else {
+			MISSES.incrementAndGet();
+		}
+
+		request.setProperty(KEY_PROPERTY, key);
+		request.setProperty(TYPE_PROPERTY, type);
+		request.setProperty(NAME_PROPERTY, name);
+		request.setProperty(GENERATION_PROPERTY, generation);
+	}
+
+	/**
+	 * Keep the headers of a successful response to be cached, for the writer to store with the body
+	 */
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		if (request.getProperty(KEY_PROPERTY) == null) {
+			return;
+		}
+
+		if (response.getStatus() != HttpServletResponse.SC_OK || response.getMediaType() == null) {
+			request.removeProperty(KEY_PROPERTY);
+
+			// Let the next request try to rebuild the stale entry
+			Entry stale = (Entry) request.getProperty(REFRESHING_PROPERTY);
+			if (stale != null) {
+				REFRESH_FAILURES.incrementAndGet();
+				stale.refreshing.set(false);
+			}
+			return;
+		}
+
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> header: response.getStringHeaders().entrySet()) {
+			String name = header.getKey();
+			if (!HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)) {
+				headers.put(name, new ArrayList<String>(header.getValue()));
+			}
+		}
+
+		request.setProperty(HEADERS_PROPERTY, headers);
+		response.getHeaders().putSingle(CACHE_HEADER, "MISS");
+	}
+
+	/**
+	 * Capture the bytes of a response to be cached, as they are written to the client
+	 */
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		String key = (String) context.getProperty(KEY_PROPERTY);
+		@SuppressWarnings("unchecked")
+		Map<String, List<String>> headers = (Map<String, List<String>>) context.getProperty(HEADERS_PROPERTY);
+
+		if (key == null || headers == null) {
+			context.proceed();
+			return;
+		}
+
+		OutputStream out = context.getOutputStream();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		context.setOutputStream(buffer);
+		try {
+			context.proceed();
+		}
+		finally {
+			context.setOutputStream(out);
+		}
+
+		byte[] body = buffer.toByteArray();
+		out.write(body);
+
+		String type = (String) context.getProperty(TYPE_PROPERTY);
+		String name = (String) context.getProperty(NAME_PROPERTY);
+		long generation = (Long) context.getProperty(GENERATION_PROPERTY);
+		store(key, new Entry(key, body, context.getMediaType().toString(), headers, type, name, generation));
+	}
+
+	/**
+	 * Add a response to the cache, evicting others until it fits
+	 * @param key of the response
+	 * @param entry the response
+	 */
+	private static void store(String key, Entry entry) {
+		// Too big to be worth it, or a write which changed it has committed since the response was read from the DB
+		if (entry.size > MAX_BYTES / 4 || !entry.isCurrent()) {
+			return;
+		}
+
+		synchronized (CACHE) {
+			Entry old = CACHE.put(key, entry);
+			bytes += entry.size - (old == null ? 0 : old.size);
+
+			if (bytes > MAX_BYTES) {
+				evict();
+			}
+		}
+
+		STORED.incrementAndGet();
+	}
+
+	/**
+	 * Make room: entries already out of date go first, then the least recently used. Must hold the CACHE lock
+	 */
+	private static void evict() {
+		Iterator<Entry> entries = CACHE.values().iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (!entry.isCurrent()) {
+				entries.remove();
+				bytes -= entry.size;
+				EVICTED.incrementAndGet();
+			}
+		}
+
+		entries = CACHE.values().iterator();
+		while (bytes > MAX_BYTES && entries.hasNext()) {
+			Entry entry = entries.next();
+			entries.remove();
+			bytes -= entry.size;
+			EVICTED.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import com.test.service.builders.Metrics;
+import com.test.service.builders.ServiceException;
+
+/**
+ * Turns the failures that are part of normal traffic (unknown names, names already taken, bad parameters, and
+ * writes turned away for now with 503 while queued writes catch up) into responses with the exception's status and
+ * message. Nothing is logged: a client asking for a minion that doesn't exist is not something an operator needs
+ * to read about, and the 503s are counted here and by WriteBehind
+ */
+@Provider
+public class ServiceExceptionMapper implements ExceptionMapper<ServiceException> {
+
+	private static final AtomicLong NOT_FOUND = new AtomicLong();
+	private static final AtomicLong CONFLICT = new AtomicLong();
+	private static final AtomicLong BAD_REQUEST = new AtomicLong();
+	private static final AtomicLong UNAVAILABLE = new AtomicLong();
+
+	static {
+		Metrics.register("errors.client", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("notFound", NOT_FOUND.get());
+				values.put("conflict", CONFLICT.get());
+				values.put("badRequest", BAD_REQUEST.get());
+				values.put("unavailable", UNAVAILABLE.get());
+			}
+		});
+	}
+
+	@Override
+	public Response toResponse(ServiceException se) {
+		if (se instanceof ServiceException.NotFound) {
+			NOT_FOUND.incrementAndGet();
+		}
+		else if (se instanceof ServiceException.Conflict) {
+			CONFLICT.incrementAndGet();
+		}
+		else if (se instanceof ServiceException.Unavailable) {
+			UNAVAILABLE.incrementAndGet();
+		}
+		else {
+			BAD_REQUEST.incrementAndGet();
+		}
+
+		return Response.status(se.getStatus()).entity(se.getMessage()).build();
+	}
+}
@@ -0,0 +1,98 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-client token buckets held in a fixed number of lock-free stripes.
+ * Each client is hashed to a stripe, and each stripe is a token bucket implemented as a generic
+ * cell rate algorithm: the only state is the "theoretical arrival time" of the next request, updated with a
+ * single compare-and-set. Memory is fixed no matter how many clients there are; clients that hash to the
+ * same stripe share a bucket, which errs on the side of limiting
+ */
+class TokenBuckets {
+
+	// Theoretical arrival time of each stripe, in System.nanoTime() units
+	private final AtomicLongArray arrivalTimes;
+	// Mask to map a hash onto a stripe: the number of stripes is a power of two
+	private final int stripeMask;
+	// Time to refill a single token
+	private final long tokenNanos;
+	// How far ahead of the refill rate a client is allowed to run, ie the bucket size
+	private final long burstNanos;
+
+	/**
+	 * Constructor
+	 * @param stripes number of stripes, rounded up to a power of two
+	 * @param tokensPerSecond sustained rate allowed for each client
+	 * @param burst number of tokens a client can use at once
+	 */
+	TokenBuckets(int stripes, long tokensPerSecond, long burst) {
+		int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+
+		arrivalTimes = new AtomicLongArray(size);
+		stripeMask = size - 1;
+		tokenNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, tokensPerSecond);
+		burstNanos = tokenNanos * Math.max(1, burst);
+
+		// Start every bucket full
+		long now = System.nanoTime();
+		for (int i = 0; i < size; i++) {
+			arrivalTimes.set(i, now - burstNanos);
+		}
+	}
+
+	/**
+	 * Try to take tokens from a client's bucket
+	 * @param client identifies the client, for example the remote address
+	 * @param tokens the number of tokens the request costs
+	 * @return 0 if the tokens were taken, otherwise the number of nanoseconds until they would be available
+	 */
+	long tryAcquire(String client, int tokens) {
+		int stripe = spread(client.hashCode()) & stripeMask;
+		long cost = tokenNanos * tokens;
+
+		while (true) {
+			long now = System.nanoTime();
+			long arrival = arrivalTimes.get(stripe);
+			long next = Math.max(arrival, now - burstNanos) + cost;
+
+			// Taking the tokens would push the client further ahead than the bucket allows
+			if (next - now > 0) {
+				return next - now;
+			}
+
+			if (arrivalTimes.compareAndSet(stripe, arrival, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Mix the bits of a hash code so that similar client addresses don't land on neighbouring stripes
+	 * @param hash the hash code
+	 * @return the mixed hash
+	 */
+	private static int spread(int hash) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return hash;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.test.service.builders.TransferServiceHelper;
+
+/**
+ * Restful service for backing up and copying the whole dataset, as newline-delimited JSON:
+ * one parent or minion per line, each parent followed by its minions
+ */
+@Path("/")
+public class TransferService extends Application {
+	/** Media type of newline-delimited JSON */
+	public static final String NDJSON = "application/x-ndjson";
+
+	private TransferServiceHelper serviceHelper;
+
+	public TransferService() {
+		super();
+		serviceHelper = new TransferServiceHelper();
+	}
+
+	@Produces(NDJSON)
+	@GET
+	@Path("/export")
+	/**
+	 * Export every parent and minion. The response is streamed as it is read from the DB, so it
+	 * can be as large as the dataset without using more memory
+	 * Example URL to call:
+	 * http://localhost:9080/J2EEService/1.0/export
+	 * @return Response HTTP response with the lines of JSON
+	 */
+	public Response export() {
+		StreamingOutput body = new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				serviceHelper.export(out);
+			}
+		};
+
+		return Response.ok(body).build();
+	}
+
+	@POST
+	@Path("/import")
+	@Consumes(NDJSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	/** Example URL to call:
+	 * POST to http://localhost:9080/J2EEService/1.0/import
+	 * Attach the output of export as the payload, with Content-Type application/x-ndjson
+	 * The lines are committed in chunks as they are read: if the import fails, the chunks before the failure remain
+	 * @param body the lines of JSON
+	 * @return Response HTTP response with the number of parents and minions imported
+	 * @throws IOException if the request body can't be read
+	 */
+	public Response importAll(InputStream body) throws IOException {
+		Map<String, Object> counts = serviceHelper.importFrom(body);
+		return Response.ok(counts).build();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PersistenceException;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import com.test.service.builders.Metrics;
+import com.test.service.builders.Settings;
+
+/**
+ * Turns every other exception from a resource method into a response, in place of the try/catch ladder each
+ * method used to have:
+ * <ul>
+ * <li>the container's own exceptions (no such resource, method not allowed) keep their responses</li>
+ * <li>IllegalArgumentException, from the JDK or a library, is 400</li>
+ * <li>PersistenceException is 500 with its message</li>
+ * <li>anything else is 500 with its message, and is logged with its stack trace</li>
+ * </ul>
+ * When the DB fails every request fails the same way, so logging is limited to errors/logPerMinute messages
+ * a minute; the number left out is logged with the next message
+ */
+@Provider
+public class UnexpectedExceptionMapper implements ExceptionMapper<Throwable> {
+
+	private static final long LOG_PER_MINUTE = Settings.getLong("errors/logPerMinute", 10);
+	private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private static final AtomicLong BAD_REQUEST = new AtomicLong();
+	private static final AtomicLong PERSISTENCE = new AtomicLong();
+	private static final AtomicLong UNEXPECTED = new AtomicLong();
+	private static final AtomicLong NOT_LOGGED = new AtomicLong();
+
+	// Logging window: when it started, the messages logged in it, and those left out since the last message
+	private static final AtomicLong WINDOW_START = new AtomicLong(System.nanoTime());
+	private static final AtomicLong LOGGED = new AtomicLong();
+	private static final AtomicLong SUPPRESSED = new AtomicLong();
+
+	static {
+		Metrics.register("errors.server", new Metrics.Source() {
+			@Override
+			public void report(Map<String, Object> values) {
+				values.put("badRequest", BAD_REQUEST.get());
+				values.put("persistence", PERSISTENCE.get());
+				values.put("unexpected", UNEXPECTED.get());
+				values.put("notLogged", NOT_LOGGED.get());
+			}
+		});
+	}
+
+	@Override
+	public Response toResponse(Throwable t) {
+		if (t instanceof WebApplicationException) {
+			Response response = ((WebApplicationException) t).getResponse();
+			if (response != null) {
+				return response;
+			}
+		}
+
+		if (t instanceof IllegalArgumentException) {
+			BAD_REQUEST.incrementAndGet();
+			return Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(t.getMessage()).build();
+		}
+
+		if (t instanceof PersistenceException) {
+			PERSISTENCE.incrementAndGet();
+			if (shouldLog()) {
+				System.out.println("ERROR persistence failure" + suppressed() + ": " + t.getMessage());
+			}
+		}
+		else {
+			UNEXPECTED.incrementAndGet();
+			if (shouldLog()) {
+				System.out.println("ERROR unexpected failure" + suppressed() + ": " + t);
+				t.printStackTrace();
+			}
+		}
+
+		return Response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR).entity(t.getMessage()).build();
+	}
+
+	/**
+	 * Take one of this minute's log messages
+	 * @return true if there is one left, false if the failure should only be counted
+	 */
+	private static boolean shouldLog() {
+		long now = System.nanoTime();
+		long start = WINDOW_START.get();
+
+		if (now - start > MINUTE_NANOS && WINDOW_START.compareAndSet(start, now)) {
+			LOGGED.set(0);
+		}
+
+		if (LOGGED.incrementAndGet() <= LOG_PER_MINUTE) {
+			return true;
+		}
+		SUPPRESSED.incrementAndGet();
+		NOT_LOGGED.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Take the count of messages left out since the last one was logged
+	 * @return a note of the count, or an empty string if none were left out
+	 */
+	private static String suppressed() {
+		long count = SUPPRESSED.getAndSet(0);
+		return count == 0 ? "" : " (" + count + " similar failures not logged)";
+	}
+}
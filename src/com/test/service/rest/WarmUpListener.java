@@ -0,0 +1,124 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import com.test.service.builders.DBUtility;
+import com.test.service.builders.MinionBuilder;
+import com.test.service.builders.MinionServiceHelper;
+import com.test.service.builders.ParentBuilder;
+import com.test.service.builders.ParentServiceHelper;
+import com.test.service.builders.ServiceException;
+import com.test.service.builders.Settings;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Minion;
+import com.test.service.model.Parent;
+
+/**
+ * Warms the application up before it takes any requests: the container doesn't start the servlets until this
+ * has finished, so the first requests don't pay for bootstrapping the persistence units, compiling the queries
+ * or loading the classes.
+ * The warm-up runs the hot queries for a name which doesn't exist, so it only reads and finds nothing.
+ * It is also a check of the schema: with the prod profile the tables are not created by JPA, so if
+ * META-INF/sql has not been applied to the database the warm-up fails and says so in the log.
+ * The time taken is reported in the startup metrics, see FirstRequestFilter
+ */
+@WebListener
+public class WarmUpListener implements ServletContextListener {
+
+	// Name used for the warm-up queries: not a valid parent or minion name in practice
+	private static final String WARM_UP_NAME = "__warm-up__";
+
+	/**
+	 * Run the warm-up, if enabled
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		FirstRequestFilter.deploymentStarted();
+
+		if (!Settings.getBoolean("warmUp/enabled", true)) {
+			FirstRequestFilter.warmUpFinished(true);
+			return;
+		}
+
+		int iterations = Math.max(1, Settings.getInt("warmUp/iterations", 10));
+		boolean succeeded = true;
+
+		try {
+			for (int i = 0; i < iterations; i++) {
+				warmUp();
+			}
+		}
+		catch (Throwable t) {
+			// Don't stop the application starting: the same failure will be reported on the requests that hit it
+			succeeded = false;
+			System.out.println("ERROR warm-up failed, check that the schema in META-INF/sql has been applied: " + t.getMessage());
+		}
+
+		FirstRequestFilter.warmUpFinished(succeeded);
+	}
+
+	/**
+	 * Nothing to do on shutdown
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+	}
+
+	/**
+	 * Run the hot read paths once, and the builders used by the write paths
+	 */
+	private void warmUp() {
+		// Read-only persistence unit: the GET endpoints
+		ParentServiceHelper parents = new ParentServiceHelper();
+		parents.get(WARM_UP_NAME);
+		parents.getSummaries(WARM_UP_NAME, "/");
+		try {
+			parents.getMinionPage(WARM_UP_NAME, null, 1, true);
+		}
+		catch (ServiceException.NotFound nf) {
+			// Expected: the parent doesn't exist
+		}
+		new MinionServiceHelper().get(WARM_UP_NAME);
+
+		// JTA persistence unit: the name lookups made by every write
+		new DBUtility<ParentEntity>().getEntitiesByName(ParentEntity.TYPE, WARM_UP_NAME);
+		new DBUtility<MinionEntity>().getEntitiesByName(MinionEntity.TYPE, WARM_UP_NAME);
+
+		// Builders, in both directions
+		Parent parent = new Parent();
+		parent.setName(WARM_UP_NAME);
+		ParentBuilder parentBuilder = new ParentBuilder();
+		ParentEntity pEntity = parentBuilder.createEntityFromElement(parent);
+		parentBuilder.createElementFromEntity(pEntity);
+
+		Minion minion = new Minion();
+		minion.setName(WARM_UP_NAME);
+		minion.setContents(new ArrayList<String>(Arrays.asList(WARM_UP_NAME)));
+		MinionBuilder minionBuilder = new MinionBuilder();
+		MinionEntity mEntity = minionBuilder.createEntityFromElement(minion);
+		mEntity.setParent(pEntity);
+		minionBuilder.createElementFromEntity(mEntity);
+	}
+}
@@ -0,0 +1,47 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import com.test.service.builders.WriteBehind;
+
+/**
+ * Starts the write-behind drainer with the application, so that a journal left by the last run is replayed
+ * straight away, and stops it with the application
+ */
+@WebListener
+public class WriteBehindListener implements ServletContextListener {
+
+	/**
+	 * Start the drainer
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		WriteBehind.start();
+	}
+
+	/**
+	 * Stop the drainer: writes not yet applied stay in the journal
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		WriteBehind.stop();
+	}
+}
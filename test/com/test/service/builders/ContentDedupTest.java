@@ -0,0 +1,269 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+
+/**
+ * Deduplication of minion contents (contents/dedup is set for the tests, see pom.xml): minions with the same
+ * contents share one row in the database and one list in memory
+ */
+public class ContentDedupTest {
+
+	// Minions with the same contents in each test
+	private static final int MINIONS = 3;
+
+	// The duplicate-heavy dataset: many minions sharing a few distinct contents lists
+	private static final int DATASET_MINIONS = 200;
+	private static final int DATASET_DISTINCT = 5;
+
+	@BeforeClass
+	public static void startShards() {
+		TestShards.start();
+	}
+
+	@Test
+	public void sharedContentsAreStoredOnce() throws Exception {
+		ArrayList<String> contents = contents("stored");
+		String hash = ContentDedup.hash(contents);
+		int shard = createMinions("stored", contents);
+
+		assertEquals(1, TestShards.queryLong(shard, "SELECT COUNT(*) FROM CONTENT WHERE HASH = ?", hash));
+		assertEquals(MINIONS, TestShards.queryLong(shard, "SELECT REFCOUNT FROM CONTENT WHERE HASH = ?", hash));
+		// The minions hold just the hash, so the contents are written once rather than once for each minion
+		assertEquals(MINIONS, TestShards.queryLong(shard, "SELECT COUNT(*) FROM DBENTITY WHERE CONTENTSHASH = ? AND CONTENTS IS NULL", hash));
+	}
+
+	@Test
+	public void sharedContentsAreOneListInMemory() throws Exception {
+		ArrayList<String> contents = contents("memory");
+		int shard = createMinions("memory", contents);
+
+		ReadDBUtility<MinionEntity> reader = new ReadDBUtility<MinionEntity>(shard);
+		try {
+			List<MinionEntity> first = reader.getEntitiesByName(MinionEntity.TYPE, "memory-minion0");
+			List<MinionEntity> second = reader.getEntitiesByName(MinionEntity.TYPE, "memory-minion1");
+			ArrayList<String> firstContents = reader.getContents(first.get(0));
+
+			assertEquals(contents, firstContents);
+			assertSame(firstContents, reader.getContents(second.get(0)));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void contentsInsertedByAnotherWriterAreCounted() throws Exception {
+		ArrayList<String> contents = contents("race");
+		String hash = ContentDedup.hash(contents);
+		int shard = ShardRouter.shardFor("race-parent");
+
+		// Both writers of the same new contents insert the row: the second finds it there, without failing
+		assertTrue(ContentDedup.insert(shard, hash, contents));
+		assertTrue(ContentDedup.insert(shard, hash, contents));
+		assertEquals(0, TestShards.queryLong(shard, "SELECT REFCOUNT FROM CONTENT WHERE HASH = ?", hash));
+
+		createMinions("race", contents);
+
+		assertEquals(1, TestShards.queryLong(shard, "SELECT COUNT(*) FROM CONTENT WHERE HASH = ?", hash));
+		assertEquals(MINIONS, TestShards.queryLong(shard, "SELECT REFCOUNT FROM CONTENT WHERE HASH = ?", hash));
+	}
+
+	@Test
+	public void unusedContentsAreDeleted() throws Exception {
+		ArrayList<String> contents = contents("deleted");
+		String hash = ContentDedup.hash(contents);
+		int shard = createMinions("deleted", contents);
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+
+		db.removeMinion("deleted-minion0");
+		assertEquals(MINIONS - 1, TestShards.queryLong(shard, "SELECT REFCOUNT FROM CONTENT WHERE HASH = ?", hash));
+
+		for (int i = 1; i < MINIONS; i++) {
+			db.removeMinion("deleted-minion" + i);
+		}
+		assertEquals(0, TestShards.queryLong(shard, "SELECT COUNT(*) FROM CONTENT WHERE HASH = ?", hash));
+	}
+
+	@Test
+	public void contentsLeftByAFailedWriteAreCleanedUp() throws Exception {
+		ArrayList<String> contents = contents("orphan");
+		String hash = ContentDedup.hash(contents);
+		int shard = ShardRouter.shardFor("orphan-parent");
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+
+		createParent(db, "orphan-parent");
+		MinionEntity minion = new MinionEntity();
+		minion.setName("orphan-minion");
+		minion.setContents(contents);
+
+		// The contents are committed on their own, so they stay when the minion's transaction rolls back
+		db.beginTran();
+		db.applyMinionCreate(minion, "orphan-parent");
+		db.rollback();
+
+		assertEquals(0, TestShards.countByName(MinionEntity.TYPE, "orphan-minion")[shard]);
+		assertEquals(0, TestShards.queryLong(shard, "SELECT REFCOUNT FROM CONTENT WHERE HASH = ?", hash));
+
+		assertTrue(ContentCleanup.run() >= 1);
+		assertEquals(0, TestShards.queryLong(shard, "SELECT COUNT(*) FROM CONTENT WHERE HASH = ?", hash));
+	}
+
+	@Test
+	public void aDuplicatedDatasetTakesLessSpace() throws Exception {
+		// The same dataset on the same shard, once through DBUtility (deduplicated) and once written straight
+		// through the entity manager, which is how minions are stored with contents/dedup off
+		String shared = TestShards.nameOn("dataset-shared", 0);
+		String inline = TestShards.nameOn("dataset-inline", 0);
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(0);
+
+		createParent(db, shared);
+		for (int i = 0; i < DATASET_MINIONS; i++) {
+			MinionEntity minion = new MinionEntity();
+			minion.setName(shared + "-minion" + i);
+			minion.setContents(datasetContents(i));
+			db.persistMinion(minion, shared);
+		}
+
+		Integer inlineId = createParent(db, inline);
+		db.beginTran();
+		for (int i = 0; i < DATASET_MINIONS; i++) {
+			MinionEntity minion = new MinionEntity();
+			minion.setName(inline + "-minion" + i);
+			minion.setContents(datasetContents(i));
+			minion.setParent(db.getEntityManager().getReference(ParentEntity.class, inlineId));
+			db.getEntityManager().persist(minion);
+		}
+		db.commitTran();
+
+		// In the DB: the shared rows and the hashes held by the minions, against a copy in every minion
+		String minionsOf = "FROM DBENTITY M JOIN DBENTITY P ON M.PARENTID = P.ID WHERE P.NAME = ?";
+		long sharedRows = TestShards.queryLong(0, "SELECT COUNT(*) FROM CONTENT WHERE HASH IN (SELECT M.CONTENTSHASH " + minionsOf + ")", shared);
+		long sharedBytes = TestShards.queryLong(0, "SELECT SUM(LENGTH(DATA)) FROM CONTENT WHERE HASH IN (SELECT M.CONTENTSHASH " + minionsOf + ")", shared)
+				+ TestShards.queryLong(0, "SELECT SUM(LENGTH(M.CONTENTSHASH)) " + minionsOf, shared);
+		long inlineRows = TestShards.queryLong(0, "SELECT COUNT(*) " + minionsOf + " AND M.CONTENTS IS NOT NULL", inline);
+		long inlineBytes = TestShards.queryLong(0, "SELECT SUM(LENGTH(M.CONTENTS)) " + minionsOf, inline);
+
+		// On the heap: the distinct lists held once every minion has been read
+		long[] sharedHeap = readAll(shared);
+		long[] inlineHeap = readAll(inline);
+
+		System.out.println("Contents of " + DATASET_MINIONS + " minions with " + DATASET_DISTINCT + " distinct lists:");
+		System.out.println("  deduplicated: " + sharedRows + " rows, " + sharedBytes + " bytes in the DB, "
+				+ sharedHeap[0] + " lists of " + sharedHeap[1] + " chars on the heap");
+		System.out.println("  inline:       " + inlineRows + " rows, " + inlineBytes + " bytes in the DB, "
+				+ inlineHeap[0] + " lists of " + inlineHeap[1] + " chars on the heap");
+
+		assertEquals(DATASET_DISTINCT, sharedRows);
+		assertEquals(DATASET_MINIONS, inlineRows);
+		assertTrue(sharedBytes < inlineBytes);
+		assertEquals(DATASET_DISTINCT, sharedHeap[0]);
+		assertEquals(DATASET_MINIONS, inlineHeap[0]);
+		assertTrue(sharedHeap[1] < inlineHeap[1]);
+	}
+
+	/**
+	 * Read all the minions of a parent, as a page of them would be
+	 * @param parentName name of the parent
+	 * @return the number of distinct contents lists read, and their total length in chars
+	 */
+	private static long[] readAll(String parentName) {
+		ReadDBUtility<DBEntity> reader = new ReadDBUtility<DBEntity>(ShardRouter.shardFor(parentName));
+		Map<Object, Boolean> lists = new IdentityHashMap<Object, Boolean>();
+		long chars = 0;
+
+		try {
+			for (Object[] row: reader.getMinionRows(reader.getParentId(parentName))) {
+				@SuppressWarnings("unchecked")
+				List<String> contents = (List<String>) row[2];
+				if (lists.put(contents, Boolean.TRUE) == null) {
+					for (String content: contents) {
+						chars += content.length();
+					}
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return new long[] { lists.size(), chars };
+	}
+
+	private static ArrayList<String> datasetContents(int minion) {
+		ArrayList<String> contents = new ArrayList<String>();
+		for (int line = 0; line < 20; line++) {
+			contents.add("Line " + line + " of the contents shared by group " + minion % DATASET_DISTINCT);
+		}
+		return contents;
+	}
+
+	private static Integer createParent(DBUtility<DBEntity> db, String name) {
+		ParentEntity parent = new ParentEntity();
+		parent.setName(name);
+		db.persistObject(parent);
+
+		Integer id = db.getEntitiesByName(ParentEntity.TYPE, name).get(0).getId();
+		assertNotNull(id);
+		return id;
+	}
+
+	private static ArrayList<String> contents(String test) {
+		return new ArrayList<String>(Arrays.asList(test, "the same contents", "for every minion"));
+	}
+
+	/**
+	 * Create a parent, and minions under it which all have the same contents
+	 * @param prefix start of the names
+	 * @param contents of each minion
+	 * @return the shard of the parent
+	 * @throws Exception if a minion can't be stored
+	 */
+	private static int createMinions(String prefix, ArrayList<String> contents) throws Exception {
+		String parentName = prefix + "-parent";
+		int shard = ShardRouter.shardFor(parentName);
+		DBUtility<DBEntity> db = new DBUtility<DBEntity>(shard);
+
+		createParent(db, parentName);
+
+		for (int i = 0; i < MINIONS; i++) {
+			MinionEntity minion = new MinionEntity();
+			minion.setName(prefix + "-minion" + i);
+			// A copy each, as they would be for separate requests
+			minion.setContents(new ArrayList<String>(contents));
+			db.persistMinion(minion, parentName);
+		}
+		return shard;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Minion;
+import com.test.service.model.Parent;
+
+/**
+ * Routing of parents and minions to the shards, and moves between shards, with a Derby database for each of two
+ * shards (shards/count is set for the tests, see pom.xml)
+ */
+public class ShardRouterTest {
+
+	private static final String MINION_COUNT_QUERY = "SELECT MINIONCOUNT FROM DBENTITY WHERE DTYPE = 'Parent' AND NAME = ?";
+
+	@BeforeClass
+	public static void startShards() {
+		TestShards.start();
+		assertTrue("The tests need at least two shards", ShardRouter.count() >= 2);
+	}
+
+	@Test
+	public void minionsAreStoredWithTheirParent() throws Exception {
+		for (int shard = 0; shard < ShardRouter.count(); shard++) {
+			String parentName = TestShards.nameOn("routed-parent", shard);
+			String minionName = "routed-minion" + shard;
+
+			new ParentServiceHelper().persist(parent(parentName));
+			new MinionServiceHelper().persist(minion(minionName, parentName));
+
+			assertOnlyOn(shard, ParentEntity.TYPE, parentName);
+			assertOnlyOn(shard, MinionEntity.TYPE, minionName);
+			assertEquals(1, TestShards.queryLong(shard, MINION_COUNT_QUERY, parentName));
+		}
+	}
+
+	@Test
+	public void aRenamedParentMovesWithItsMinions() throws Exception {
+		String from = TestShards.nameOn("renamed-from", 0);
+		String to = TestShards.nameOn("renamed-to", 1);
+
+		new ParentServiceHelper().persist(parent(from));
+		new MinionServiceHelper().persist(minion("renamed-minion0", from));
+		new MinionServiceHelper().persist(minion("renamed-minion1", from));
+
+		Parent moved = new ParentServiceHelper().update(from, parent(to));
+
+		assertEquals(to, moved.getName());
+		assertOnlyOn(-1, ParentEntity.TYPE, from);
+		assertOnlyOn(1, ParentEntity.TYPE, to);
+		assertOnlyOn(1, MinionEntity.TYPE, "renamed-minion0");
+		assertOnlyOn(1, MinionEntity.TYPE, "renamed-minion1");
+		assertEquals(2, TestShards.queryLong(1, MINION_COUNT_QUERY, to));
+	}
+
+	@Test
+	public void aMinionMovesToItsNewParentsShard() throws Exception {
+		String from = TestShards.nameOn("moved-from", 0);
+		String to = TestShards.nameOn("moved-to", 1);
+
+		new ParentServiceHelper().persist(parent(from));
+		new ParentServiceHelper().persist(parent(to));
+		new MinionServiceHelper().persist(minion("moved-minion", from));
+
+		new DBUtility<DBEntity>(0).moveMinion(new DBUtility<DBEntity>(1), "moved-minion", minion(null, to), false);
+
+		assertOnlyOn(1, MinionEntity.TYPE, "moved-minion");
+		assertEquals(0, TestShards.queryLong(0, MINION_COUNT_QUERY, from));
+		assertEquals(1, TestShards.queryLong(1, MINION_COUNT_QUERY, to));
+	}
+
+	@Test
+	public void aFailedMoveChangesNeitherShard() throws Exception {
+		String from = TestShards.nameOn("failed-from", 0);
+		String missing = TestShards.nameOn("failed-to", 1);
+
+		new ParentServiceHelper().persist(parent(from));
+		new MinionServiceHelper().persist(minion("failed-minion", from));
+
+		try {
+			new DBUtility<DBEntity>(0).moveMinion(new DBUtility<DBEntity>(1), "failed-minion", minion(null, missing), false);
+			fail("Moved a minion to a parent which doesn't exist");
+		}
+		catch (ServiceException.NotFound nf) {
+			// The new parent is looked up on the target shard after the minion is read from the source
+		}
+
+		assertOnlyOn(0, MinionEntity.TYPE, "failed-minion");
+		assertEquals(1, TestShards.queryLong(0, MINION_COUNT_QUERY, from));
+	}
+
+	private static Parent parent(String name) {
+		Parent parent = new Parent();
+		parent.setName(name);
+		return parent;
+	}
+
+	private static Minion minion(String name, String parentName) {
+		Minion minion = new Minion();
+		minion.setName(name);
+		minion.setParentName(parentName);
+		minion.setContents(new ArrayList<String>(Arrays.asList("contents of " + name)));
+		return minion;
+	}
+
+	/**
+	 * Check that an entity is on one shard and no other
+	 * @param shard index of the shard, or -1 for none
+	 * @param type ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name of the entity
+	 * @throws Exception if the shards can't be queried
+	 */
+	private static void assertOnlyOn(int shard, String type, String name) throws Exception {
+		long[] counts = TestShards.countByName(type, name);
+
+		for (int i = 0; i < counts.length; i++) {
+			assertEquals(type + " " + name + " on shard " + i, i == shard ? 1 : 0, counts[i]);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * JNDI for the tests, standing in for the container's java:comp names: every InitialContext sees the same
+ * bindings, and names that were never bound are not found, like an env-entry that isn't set.
+ * Selected with the java.naming.factory.initial system property (see pom.xml)
+ */
+public class TestNaming implements InitialContextFactory {
+
+	private static final Map<String, Object> BINDINGS = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Bind a name for every context created from now on
+	 * @param name the full JNDI name, e.g. java:comp/env/TestServicePC
+	 * @param value the object to look up
+	 */
+	static void bind(String name, Object value) {
+		BINDINGS.put(name, value);
+	}
+
+	@Override
+	public Context getInitialContext(Hashtable<?, ?> environment) {
+		return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				String operation = method.getName();
+
+				if (operation.equals("lookup")) {
+					String name = String.valueOf(args[0]);
+					Object value = BINDINGS.get(name);
+					if (value == null) {
+						throw new NameNotFoundException(name);
+					}
+					return value;
+				}
+				if (operation.equals("close")) {
+					return null;
+				}
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(this, args);
+				}
+				throw new OperationNotSupportedException(operation);
+			}
+		});
+	}
+}
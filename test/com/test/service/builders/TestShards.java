@@ -0,0 +1,229 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+/**
+ * A set of in-memory Derby databases, one for each shard (shards/count, see pom.xml), bound in TestNaming
+ * under the names DBUtility, ReadDBUtility and ContentDedup look up in the container.
+ * Each shard has one resource-local entity manager standing in for the container-managed one, and the
+ * UserTransaction drives all of them together: every shard is flushed before any commits, and all are rolled
+ * back if one fails, which covers the cases the tests need but is not a real XA transaction manager
+ */
+public final class TestShards {
+
+	// Resource-local copy of TestServicePU, see test/META-INF/persistence.xml
+	private static final String UNIT = "ShardTestPU";
+
+	private static EntityManagerFactory[] factories;
+
+	private static EntityManager[] managers;
+
+	private TestShards() {
+	}
+
+	/**
+	 * Create the databases and bind them, the first time
+	 */
+	public static synchronized void start() {
+		if (factories != null) {
+			return;
+		}
+
+		int count = ShardRouter.count();
+		factories = new EntityManagerFactory[count];
+		managers = new EntityManager[count];
+
+		for (int shard = 0; shard < count; shard++) {
+			Map<String, String> properties = new HashMap<String, String>();
+			properties.put("javax.persistence.jdbc.url", url(shard) + ";create=true");
+			// A session each, as the factories share the unit
+			properties.put("eclipselink.session-name", UNIT + shard);
+
+			factories[shard] = Persistence.createEntityManagerFactory(UNIT, properties);
+			managers[shard] = factories[shard].createEntityManager();
+
+			String suffix = shard == 0 ? "" : String.valueOf(shard);
+			TestNaming.bind(DBUtility.JNDI_NAME + suffix, containerManaged(managers[shard]));
+			TestNaming.bind(ReadDBUtility.JNDI_NAME + suffix, factories[shard]);
+			TestNaming.bind(ContentDedup.JNDI_NAME + suffix, factories[shard]);
+		}
+		TestNaming.bind("java:comp/UserTransaction", new ShardTransaction());
+	}
+
+	/**
+	 * Run a query returning a single number against a shard, outside any transaction
+	 * @param shard index of the shard
+	 * @param sql the query
+	 * @param parameters values for the ? markers
+	 * @return the number in the first column of the first row, or 0 if there is no row
+	 * @throws SQLException if the query fails
+	 */
+	static long queryLong(int shard, String sql, Object... parameters) throws SQLException {
+		Connection connection = DriverManager.getConnection(url(shard));
+		try {
+			PreparedStatement statement = connection.prepareStatement(sql);
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setObject(i + 1, parameters[i]);
+			}
+			ResultSet results = statement.executeQuery();
+			return results.next() ? results.getLong(1) : 0;
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Find the shards holding an entity
+	 * @param type the entity type, ParentEntity.TYPE or MinionEntity.TYPE
+	 * @param name of the entity
+	 * @return the number of matching rows on each shard
+	 * @throws SQLException if a query fails
+	 */
+	static long[] countByName(String type, String name) throws SQLException {
+		long[] counts = new long[ShardRouter.count()];
+		for (int shard = 0; shard < counts.length; shard++) {
+			counts[shard] = queryLong(shard, "SELECT COUNT(*) FROM DBENTITY WHERE DTYPE = ? AND NAME = ?", type, name);
+		}
+		return counts;
+	}
+
+	/**
+	 * Find a name which ShardRouter places on a given shard
+	 * @param prefix start of the name
+	 * @param shard index of the shard
+	 * @return the prefix followed by the first number which hashes to the shard
+	 */
+	static String nameOn(String prefix, int shard) {
+		for (int i = 0; ; i++) {
+			if (ShardRouter.shardFor(prefix + i) == shard) {
+				return prefix + i;
+			}
+		}
+	}
+
+	private static String url(int shard) {
+		return "jdbc:derby:memory:" + UNIT + shard;
+	}
+
+	/**
+	 * Wrap an entity manager to behave like a container-managed one, which joins the JTA transaction
+	 * @param manager the resource-local entity manager of a shard
+	 * @return the entity manager to look up
+	 */
+	private static EntityManager containerManaged(final EntityManager manager) {
+		return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[] { EntityManager.class },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				// Already enlisted: ShardTransaction begins every shard
+				if (method.getName().equals("joinTransaction")) {
+					return null;
+				}
+				try {
+					return method.invoke(manager, args);
+				}
+				catch (InvocationTargetException ite) {
+					throw ite.getCause();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The transaction of the test thread, across every shard
+	 */
+	private static final class ShardTransaction implements UserTransaction {
+
+		@Override
+		public void begin() {
+			if (getStatus() != Status.STATUS_NO_TRANSACTION) {
+				throw new IllegalStateException("A transaction is already active");
+			}
+			// Like a transaction-scoped persistence context, nothing is carried over from before
+			for (EntityManager manager: managers) {
+				manager.clear();
+				manager.getTransaction().begin();
+			}
+		}
+
+		@Override
+		public void commit() {
+			// Every shard writes its changes before any of them commits, like the prepare phase
+			try {
+				for (EntityManager manager: managers) {
+					if (manager.getTransaction().getRollbackOnly()) {
+						throw new IllegalStateException("The transaction is marked for rollback");
+					}
+					manager.flush();
+				}
+			}
+			catch (RuntimeException re) {
+				rollback();
+				throw re;
+			}
+			for (EntityManager manager: managers) {
+				manager.getTransaction().commit();
+				manager.clear();
+			}
+		}
+
+		@Override
+		public void rollback() {
+			for (EntityManager manager: managers) {
+				if (manager.getTransaction().isActive()) {
+					manager.getTransaction().rollback();
+				}
+				manager.clear();
+			}
+		}
+
+		@Override
+		public int getStatus() {
+			return managers[0].getTransaction().isActive() ? Status.STATUS_ACTIVE : Status.STATUS_NO_TRANSACTION;
+		}
+
+		@Override
+		public void setRollbackOnly() {
+			for (EntityManager manager: managers) {
+				manager.getTransaction().setRollbackOnly();
+			}
+		}
+
+		@Override
+		public void setTransactionTimeout(int seconds) {
+		}
+	}
+}
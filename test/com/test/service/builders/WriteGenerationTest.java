@@ -0,0 +1,133 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.test.service.jpa.DBEntity;
+import com.test.service.jpa.MinionEntity;
+import com.test.service.jpa.ParentEntity;
+import com.test.service.model.Minion;
+
+/**
+ * Write generations by name, which the response cache keeps its entries by: a write moves on the generations of
+ * what it changed, and leaves the others alone. The names are chosen to hash to different stripes
+ */
+public class WriteGenerationTest {
+
+	private static final String PARENT = "gen-parent";
+	private static final String OTHER_PARENT = "gen-other-parent";
+	private static final String MINION = "gen-minion0";
+	private static final String NEW_MINION = "gen-minion1";
+	private static final String OTHER_MINION = "gen-other-minion";
+
+	@BeforeClass
+	public static void createParents() {
+		TestShards.start();
+		DBUtility.trackNames();
+
+		createParent(PARENT, MINION);
+		createParent(OTHER_PARENT, OTHER_MINION);
+	}
+
+	@Test
+	public void anUpdateOnlyChangesTheMinion() {
+		Generations before = new Generations();
+
+		Minion update = new Minion();
+		update.setDescription("updated");
+		db(MINION).updateMinion(MINION, update, false);
+
+		Generations after = new Generations();
+		assertTrue(after.all > before.all);
+		assertTrue(after.minion > before.minion);
+		assertEquals(before.otherMinion, after.otherMinion);
+		// The parent only lists the names of its minions
+		assertEquals(before.parent, after.parent);
+		assertEquals(before.otherParent, after.otherParent);
+	}
+
+	@Test
+	public void aNewOrDeletedMinionChangesItsParent() {
+		Generations before = new Generations();
+
+		MinionEntity minion = new MinionEntity();
+		minion.setName(NEW_MINION);
+		db(PARENT).persistMinion(minion, PARENT);
+
+		Generations created = new Generations();
+		assertTrue(created.parent > before.parent);
+		assertEquals(before.otherParent, created.otherParent);
+		assertEquals(before.minion, created.minion);
+
+		assertEquals(1, db(PARENT).removeMinion(NEW_MINION));
+
+		Generations deleted = new Generations();
+		assertTrue(deleted.parent > created.parent);
+		assertEquals(created.otherParent, deleted.otherParent);
+		assertEquals(created.otherMinion, deleted.otherMinion);
+	}
+
+	@Test
+	public void aParentChangeChangesEveryMinion() {
+		Generations before = new Generations();
+
+		db(OTHER_PARENT).moveMinions(OTHER_PARENT, OTHER_PARENT);
+
+		Generations after = new Generations();
+		assertTrue(after.otherParent > before.otherParent);
+		assertEquals(before.parent, after.parent);
+		// The names of the minions of the parent aren't known
+		assertTrue(after.minion > before.minion);
+		assertTrue(after.otherMinion > before.otherMinion);
+	}
+
+	/**
+	 * The generations of the test's parents and minions at one time
+	 */
+	private static final class Generations {
+		final long all = DBUtility.getWriteGeneration();
+		final long parent = DBUtility.getWriteGeneration(ParentEntity.TYPE, PARENT);
+		final long otherParent = DBUtility.getWriteGeneration(ParentEntity.TYPE, OTHER_PARENT);
+		final long minion = DBUtility.getWriteGeneration(MinionEntity.TYPE, MINION);
+		final long otherMinion = DBUtility.getWriteGeneration(MinionEntity.TYPE, OTHER_MINION);
+	}
+
+	private static void createParent(String name, String minionName) {
+		ParentEntity parent = new ParentEntity();
+		parent.setName(name);
+		db(name).persistObject(parent);
+
+		MinionEntity minion = new MinionEntity();
+		minion.setName(minionName);
+		db(name).persistMinion(minion, name);
+	}
+
+	/**
+	 * Get a utility for the shard of one of the test's parents or minions: minions are on their parent's shard
+	 * @param name of the parent or minion
+	 * @return the utility
+	 */
+	private static DBUtility<DBEntity> db(String name) {
+		String parent = name.startsWith("gen-other") ? OTHER_PARENT : PARENT;
+		return new DBUtility<DBEntity>(ShardRouter.shardFor(parent));
+	}
+}
@@ -0,0 +1,289 @@
+/**
+* (C) Copyright IBM Corporation 2015.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.test.service.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.concurrent.ContextService;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.test.service.builders.ParentServiceHelper;
+import com.test.service.builders.TestShards;
+import com.test.service.model.Parent;
+
+/**
+ * Load test of the two ways RequestExecutor runs the resource methods, with loadTest.clients (10000) clients at
+ * once: on the request thread, where every waiting client holds a platform thread of its own, and on virtual
+ * threads behind the DB permits, handed over by a small pool of request threads (Java 21 and later, otherwise
+ * skipped). Each request reads a parent through ParentServiceHelper, then keeps its connection for
+ * loadTest.latencyMillis more, standing in for a database on another machine, out of a pool of
+ * loadTest.connections.
+ * Prints the throughput, peak threads and peak memory of each mode. Not run by mvn test: use mvn test -Pload,
+ * on a Java 21 JVM to compare both
+ */
+public class RequestExecutorLoadTest {
+
+	private static final int CLIENTS = Integer.getInteger("loadTest.clients", 10000);
+	private static final int CONNECTIONS = Integer.getInteger("loadTest.connections", 40);
+	private static final long LATENCY_MILLIS = Long.getLong("loadTest.latencyMillis", 5);
+	// Request threads handing requests over to virtual threads, as the container's pool would
+	private static final int REQUEST_THREADS = Integer.getInteger("loadTest.requestThreads", 50);
+
+	private static final String PARENT = "load-parent";
+
+	// The connection pool
+	private static final Semaphore CONNECTIONS_FREE = new Semaphore(CONNECTIONS, true);
+
+	// How often the threads and memory are sampled while a mode runs
+	private static final long SAMPLE_MILLIS = 10;
+
+	@BeforeClass
+	public static void createParent() {
+		TestShards.start();
+
+		Parent parent = new Parent();
+		parent.setName(PARENT);
+		new ParentServiceHelper().persist(parent);
+	}
+
+	@Test
+	public void requestThreads() throws Exception {
+		// Grows a thread for each client waiting, as the container's pool does when every request blocks
+		ExecutorService clients = Executors.newCachedThreadPool();
+
+		measure("request threads", new RequestExecutor(null, null, CONNECTIONS), clients);
+	}
+
+	@Test
+	public void virtualThreads() throws Exception {
+		ExecutorService virtual = RequestExecutor.newVirtualThreadExecutor();
+		Assume.assumeTrue(virtual != null);
+
+		ExecutorService clients = Executors.newFixedThreadPool(REQUEST_THREADS);
+
+		try {
+			measure("virtual threads", new RequestExecutor(virtual, sameContext(), CONNECTIONS), clients);
+		}
+		finally {
+			virtual.shutdown();
+		}
+	}
+
+	/**
+	 * Send every client's request at once, wait for all the responses and print what it took
+	 * @param mode name of the mode, for the report
+	 * @param executor runs the requests
+	 * @param clients threads the requests arrive on
+	 * @throws Exception if the requests can't be sent
+	 */
+	private static void measure(String mode, final RequestExecutor executor, ExecutorService clients) throws Exception {
+		final CountDownLatch done = new CountDownLatch(CLIENTS);
+		final AtomicInteger failures = new AtomicInteger();
+		final AsyncResponse async = countingResponse(done, failures);
+		final Callable<Response> method = new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				CONNECTIONS_FREE.acquire();
+				try {
+					assertEquals(1, new ParentServiceHelper().get(PARENT).size());
+					Thread.sleep(LATENCY_MILLIS);
+				}
+				finally {
+					CONNECTIONS_FREE.release();
+				}
+				// There is no JAX-RS runtime to build a response with
+				return null;
+			}
+		};
+
+		Sampler sampler = new Sampler();
+		Thread sampling = new Thread(sampler, "Load test sampler");
+		sampling.setDaemon(true);
+		sampling.start();
+
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < CLIENTS; i++) {
+				clients.execute(new Runnable() {
+					@Override
+					public void run() {
+						executor.submit(async, method);
+					}
+				});
+			}
+			assertTrue(mode + " didn't finish", done.await(10, TimeUnit.MINUTES));
+		}
+		finally {
+			clients.shutdown();
+			sampler.stop();
+			sampling.join();
+		}
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		System.out.println(String.format("%s: %d clients in %d ms, %d requests/s, peak %d threads, peak heap +%d MB, peak RSS +%d MB",
+				mode, CLIENTS, millis, CLIENTS * 1000L / millis, sampler.peakThreads, sampler.peakHeap >> 20,
+				sampler.peakResident < 0 ? -1 : sampler.peakResident >> 20));
+
+		assertEquals(0, failures.get());
+	}
+
+	/**
+	 * A suspended request which counts its responses
+	 * @param done counted down for each response
+	 * @param failures counted for each exception or server error
+	 * @return the request
+	 */
+	private static AsyncResponse countingResponse(final CountDownLatch done, final AtomicInteger failures) {
+		return (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(), new Class<?>[] { AsyncResponse.class },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				if (method.getName().equals("resume")) {
+					if (args[0] instanceof Throwable) {
+						if (failures.getAndIncrement() == 0) {
+							((Throwable) args[0]).printStackTrace();
+						}
+					}
+					else if (args[0] instanceof Response && ((Response) args[0]).getStatus() >= 500) {
+						failures.incrementAndGet();
+					}
+					done.countDown();
+					return Boolean.TRUE;
+				}
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(this, args);
+				}
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+	/**
+	 * A context service which leaves tasks as they are: TestNaming has the same names on every thread
+	 * @return the context service
+	 */
+	private static ContextService sameContext() {
+		return (ContextService) Proxy.newProxyInstance(ContextService.class.getClassLoader(), new Class<?>[] { ContextService.class },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				if (method.getName().equals("createContextualProxy")) {
+					return args[0];
+				}
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(this, args);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * Samples the live threads, the heap in use and the resident size of the process (Linux only), as the
+	 * increase over what they were when it was created
+	 */
+	private static final class Sampler implements Runnable {
+
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		private final long baseHeap;
+		private final long baseResident;
+
+		private volatile boolean stopping;
+
+		int peakThreads;
+		long peakHeap;
+		long peakResident = -1;
+
+		Sampler() {
+			System.gc();
+			baseHeap = memory.getHeapMemoryUsage().getUsed();
+			baseResident = resident();
+			threads.resetPeakThreadCount();
+		}
+
+		@Override
+		public void run() {
+			while (!stopping) {
+				peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed() - baseHeap);
+				long now = resident();
+				if (now >= 0 && baseResident >= 0) {
+					peakResident = Math.max(peakResident, now - baseResident);
+				}
+				try {
+					Thread.sleep(SAMPLE_MILLIS);
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+			peakThreads = threads.getPeakThreadCount();
+		}
+
+		void stop() {
+			stopping = true;
+		}
+
+		/**
+		 * Get the resident size of the process
+		 * @return bytes, or -1 if /proc/self/status can't be read
+		 */
+		private static long resident() {
+			try {
+				BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"));
+				try {
+					for (String line = status.readLine(); line != null; line = status.readLine()) {
+						if (line.startsWith("VmRSS:")) {
+							return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+						}
+					}
+				}
+				finally {
+					status.close();
+				}
+			}
+			catch (IOException ioe) {
+				// Not Linux
+			}
+			return -1;
+		}
+	}
+}